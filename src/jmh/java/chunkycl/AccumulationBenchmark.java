@@ -0,0 +1,62 @@
+package chunkycl;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import se.llbit.chunky.renderer.scene.Scene;
+import se.llbit.math.Vector3;
+
+/**
+ * Conversion between the double sample buffer and the float accumulation buffer. This runs when a
+ * render is resumed and every time samples are read back for display. MB/s counts the sample buffer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class AccumulationBenchmark {
+    @Param({"1920"})
+    public int width;
+
+    @Param({"1080"})
+    public int height;
+
+    private CpuRayTracer rayTracer;
+    private double[] samples;
+
+    @Setup
+    public void setup() {
+        rayTracer = new CpuRayTracer();
+        rayTracer.setCamera(new Scene().camera(), new Vector3(), width, height);
+
+        samples = new double[width * height * 3];
+        Random random = new Random(0);
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = random.nextDouble();
+        }
+        rayTracer.loadAccumulation(samples, 16);
+    }
+
+    /** Rescale the sample buffer into the accumulation buffer */
+    @Benchmark
+    public void loadAccumulation(Throughput throughput) {
+        rayTracer.loadAccumulation(samples, 16);
+        throughput.addBytes((long) samples.length * Double.BYTES);
+    }
+
+    /** Rescale the accumulation buffer into the sample buffer */
+    @Benchmark
+    public double[] readAccumulation(Throughput throughput) {
+        rayTracer.readAccumulation(samples);
+        throughput.addBytes((long) samples.length * Double.BYTES);
+        return samples;
+    }
+}
@@ -0,0 +1,51 @@
+package chunkycl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import se.llbit.chunky.renderer.projection.ProjectionMode;
+import se.llbit.chunky.renderer.scene.Camera;
+import se.llbit.chunky.renderer.scene.Scene;
+import se.llbit.math.Vector3;
+
+/**
+ * Camera ray setup done by setCamera. Pinhole cameras only compute a basis, other projections sample
+ * a direction for every pixel corner.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CameraRaysBenchmark {
+    @Param({"PINHOLE", "FISHEYE", "PANORAMIC"})
+    public ProjectionMode projection;
+
+    @Param({"1920"})
+    public int width;
+
+    @Param({"1080"})
+    public int height;
+
+    private Camera camera;
+    private final Vector3 origin = new Vector3();
+
+    @Setup
+    public void setup() {
+        camera = new Scene().camera();
+        camera.setProjectionMode(projection);
+    }
+
+    @Benchmark
+    public CameraRays cameraRays(Throughput throughput) {
+        CameraRays rays = new CameraRays(camera, origin, width, height);
+        throughput.rays += (long) width * height;
+        return rays;
+    }
+}
@@ -0,0 +1,59 @@
+package chunkycl;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import se.llbit.chunky.renderer.Postprocess;
+import se.llbit.chunky.renderer.scene.Scene;
+
+/**
+ * Post processing of a frame on the CPU with Scene.finalizePixel, as done by the FramePresenter on a
+ * single thread. MB/s counts the sample buffer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FinalizePixelBenchmark {
+    @Param({"NONE", "GAMMA", "TONEMAP1"})
+    public Postprocess postprocess;
+
+    @Param({"1920"})
+    public int width;
+
+    @Param({"1080"})
+    public int height;
+
+    private Scene scene;
+
+    @Setup
+    public void setup() {
+        scene = new Scene();
+        scene.setCanvasSize(width, height);
+        scene.setPostprocess(postprocess);
+
+        double[] samples = scene.getSampleBuffer();
+        Random random = new Random(0);
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = random.nextDouble();
+        }
+    }
+
+    @Benchmark
+    public void finalizeFrame(Throughput throughput) {
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                scene.finalizePixel(x, y);
+            }
+        }
+        throughput.addBytes((long) width * height * 3 * Double.BYTES);
+    }
+}
@@ -0,0 +1,79 @@
+package chunkycl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import se.llbit.chunky.renderer.scene.Camera;
+import se.llbit.chunky.renderer.scene.Scene;
+import se.llbit.chunky.renderer.scene.Sun;
+import se.llbit.math.Vector3;
+
+/**
+ * Kernel throughput on a synthetic terrain. The OpenCL device is selected with the
+ * {@code chunkycl.devices} system property as usual, a CPU implementation like PoCL gives results
+ * that do not depend on the GPU of the machine. rays/s counts camera rays, every ray is followed for
+ * up to rayDepth bounces.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RayTraceBenchmark {
+    @Param({"megakernel", "wavefront"})
+    public String engine;
+
+    /** Depth of the synthetic octree */
+    @Param({"8", "10"})
+    public int depth;
+
+    @Param({"5"})
+    public int rayDepth;
+
+    @Param({"4"})
+    public int samples;
+
+    @Param({"640"})
+    public int width;
+
+    @Param({"360"})
+    public int height;
+
+    private DeviceManager rayTracer;
+    private Sun sun;
+    private int seed = 0;
+
+    @Setup
+    public void setup() {
+        // Read once when the devices are created, every parameter combination runs in its own fork.
+        // Adaptive sampling is disabled since converged pixels would not be traced.
+        System.setProperty("chunkycl.engine", engine);
+        System.setProperty("chunkycl.adaptiveThreshold", "0");
+
+        rayTracer = new DeviceManager();
+        rayTracer.load(SceneData.synthetic(depth, 0), true);
+
+        // Look down at the terrain from above its center
+        Scene scene = new Scene();
+        int size = 1 << depth;
+        Camera camera = scene.camera();
+        camera.setPosition(new Vector3(size / 2.0, size * 0.6, size / 2.0));
+        camera.setView(Math.PI / 4, -Math.PI / 4, 0);
+        sun = scene.sun();
+
+        rayTracer.setCamera(camera, new Vector3(), width, height);
+        rayTracer.clearAccumulation();
+    }
+
+    @Benchmark
+    public void rayTrace(Throughput throughput) {
+        rayTracer.rayTrace(seed++, rayDepth, false, sun, samples);
+        throughput.rays += (long) width * height * samples;
+    }
+}
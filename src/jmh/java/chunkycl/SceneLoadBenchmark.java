@@ -0,0 +1,92 @@
+package chunkycl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import se.llbit.chunky.resources.BitmapImage;
+import se.llbit.chunky.resources.Texture;
+
+/**
+ * Host side work of a scene load: packing the block textures into the atlas and hashing the octree
+ * to find the slices that changed. MB/s counts the texture pixels and the octree respectively.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SceneLoadBenchmark {
+    /** Number of blocks in the palette */
+    @Param({"1000"})
+    public int blocks;
+
+    /** Depth of the synthetic octree */
+    @Param({"9"})
+    public int depth;
+
+    // Two palettes with different textures, alternated so every atlas is built from scratch
+    private final List<List<Texture>> palettes = new ArrayList<>();
+    private int nextPalette = 0;
+    private long textureBytes;
+
+    private SceneData scene;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        for (int p = 0; p < 2; p++) {
+            List<Texture> textures = new ArrayList<>(blocks);
+            for (int i = 0; i < blocks; i++) {
+                // Every fourth block shares a texture like blocks with several states do
+                if (i % 4 != 0) {
+                    textures.add(textures.get(i - 1));
+                    continue;
+                }
+                BitmapImage image = new BitmapImage(16, 16);
+                for (int j = 0; j < image.data.length; j++) {
+                    image.data[j] = random.nextInt();
+                }
+                textures.add(new Texture(image));
+            }
+            palettes.add(textures);
+        }
+        textureBytes = (long) blocks * 16 * 16 * Integer.BYTES;
+
+        scene = SceneData.synthetic(depth, 0);
+    }
+
+    /** Build the atlas of a palette that is not cached */
+    @Benchmark
+    public TextureAtlas packTextures(Throughput throughput) {
+        TextureAtlas atlas = TextureAtlas.get(palettes.get(nextPalette));
+        nextPalette ^= 1;
+        throughput.addBytes(textureBytes);
+        return atlas;
+    }
+
+    /** Reload a palette whose atlas is cached */
+    @Benchmark
+    public TextureAtlas packTexturesCached(Throughput throughput) {
+        TextureAtlas atlas = TextureAtlas.get(palettes.get(0));
+        throughput.addBytes(textureBytes);
+        return atlas;
+    }
+
+    /** Hash the octree slices for an incremental upload */
+    @Benchmark
+    public long[] hashOctree(Throughput throughput) {
+        // The hashes are cached per instance
+        SceneData data = new SceneData(scene.depth, scene.treeData, scene.blockTextures, scene.blockData);
+        throughput.addBytes((long) scene.treeData.length * Integer.BYTES);
+        return data.getOctreeSliceHashes();
+    }
+}
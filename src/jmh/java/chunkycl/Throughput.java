@@ -0,0 +1,31 @@
+package chunkycl;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Work done by a benchmark. JMH reports the public fields per second, so the results show up as
+ * rays/s and MB/s next to the ops/s of the benchmark method and can be compared between commits.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class Throughput {
+    /** Camera rays traced or generated */
+    public long rays;
+
+    /** Megabytes of input processed */
+    public double megabytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        rays = 0;
+        megabytes = 0;
+    }
+
+    void addBytes(long bytes) {
+        megabytes += bytes / (1024.0 * 1024.0);
+    }
+}
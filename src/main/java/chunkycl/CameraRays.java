@@ -0,0 +1,153 @@
+package chunkycl;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import se.llbit.chunky.renderer.projection.ProjectionMode;
+import se.llbit.chunky.renderer.scene.Camera;
+import se.llbit.math.Ray;
+import se.llbit.math.Vector3;
+
+/**
+ * Camera parameters for generating the primary rays on the device. Pinhole cameras are reduced to
+ * a basis. Other projections are sampled once per pixel corner on the CPU and interpolated.
+ */
+public class CameraRays {
+    /** Rays are generated from the camera basis */
+    public static final int PROJECTION_PINHOLE = 0;
+    /** Rays are interpolated from a table of pixel corner directions */
+    public static final int PROJECTION_TABLE = 1;
+
+    /** Side of the square of view rays that the pinhole basis is solved from, in units of the height */
+    private static final double PINHOLE_SAMPLE_SIZE = 0.25;
+
+    public final int width;
+    public final int height;
+    public final int projection;
+
+    // float3 values are stored as 4 floats to match the OpenCL layout
+    public final float[] origin = new float[4];
+    public final float[] forward = new float[4];
+    public final float[] right = new float[4];
+    public final float[] up = new float[4];
+
+    /** Pixel corner directions, (width+1) * (height+1) * 3 floats. Null for pinhole cameras. */
+    public final float[] rayTable;
+
+    public CameraRays(Camera camera, Vector3 sceneOrigin, int width, int height) {
+        this.width = width;
+        this.height = height;
+
+        Ray ray = new Ray();
+
+        // Ray origin and direction through the center of the screen
+        camera.calcViewRay(ray, 0, 0);
+        origin[0] = (float) (ray.o.x - sceneOrigin.x);
+        origin[1] = (float) (ray.o.y - sceneOrigin.y);
+        origin[2] = (float) (ray.o.z - sceneOrigin.z);
+        forward[0] = (float) ray.d.x;
+        forward[1] = (float) ray.d.y;
+        forward[2] = (float) ray.d.z;
+
+        if (camera.getProjectionMode() == ProjectionMode.PINHOLE && pinholeBasis(camera, ray)) {
+            projection = PROJECTION_PINHOLE;
+            rayTable = null;
+        } else {
+            // Sample the view direction at every pixel corner
+            double halfWidth = width / (2.0 * height);
+            double invHeight = 1.0 / height;
+            int stride = width + 1;
+            float[] table = new float[stride * (height + 1) * 3];
+
+            IntStream.rangeClosed(0, height).parallel().forEach(j -> {
+                Ray cornerRay = new Ray();
+                for (int i = 0; i <= width; i++) {
+                    camera.calcViewRay(cornerRay, -halfWidth + i*invHeight, -.5 + j*invHeight);
+                    table[(j * stride + i)*3 + 0] = (float) cornerRay.d.x;
+                    table[(j * stride + i)*3 + 1] = (float) cornerRay.d.y;
+                    table[(j * stride + i)*3 + 2] = (float) cornerRay.d.z;
+                }
+            });
+
+            projection = PROJECTION_TABLE;
+            rayTable = table;
+        }
+    }
+
+    /** Check if this camera generates the same rays as another camera */
+    public boolean sameRays(CameraRays other) {
+        return other != null && width == other.width && height == other.height && projection == other.projection
+                && Arrays.equals(origin, other.origin) && Arrays.equals(forward, other.forward)
+                && Arrays.equals(right, other.right) && Arrays.equals(up, other.up)
+                && Arrays.equals(rayTable, other.rayTable);
+    }
+
+    /**
+     * Recover the basis of a pinhole camera. A pinhole ray through (x, y) is forward + x * right + y * up,
+     * normalized. forward is only perpendicular to right and up if the camera is not shifted, so the
+     * basis is solved from the rays through the corners of a square: the ray through the fourth corner
+     * is a combination of the other three, which fixes their lengths. Returns false and leaves the
+     * basis unset if a test ray does not match, e.g. if the projection is not a plain pinhole.
+     */
+    private boolean pinholeBasis(Camera camera, Ray ray) {
+        double s = PINHOLE_SAMPLE_SIZE;
+        double[] d00 = viewRay(camera, ray, 0, 0);
+        double[] d10 = viewRay(camera, ray, s, 0);
+        double[] d01 = viewRay(camera, ray, 0, s);
+        double[] d11 = viewRay(camera, ray, s, s);
+
+        // Solve b * d10 + c * d01 - a * d00 = d11 with Cramer's rule
+        double[] n00 = {-d00[0], -d00[1], -d00[2]};
+        double det = det(d10, d01, n00);
+        if (Math.abs(det) < 1e-12) {
+            return false;
+        }
+        double b = det(d11, d01, n00) / det;
+        double c = det(d10, d11, n00) / det;
+        double a = det(d10, d01, d11) / det;
+
+        double[] f = new double[3];
+        double[] r = new double[3];
+        double[] u = new double[3];
+        for (int i = 0; i < 3; i++) {
+            f[i] = a * d00[i];
+            r[i] = (b * d10[i] - f[i]) / s;
+            u[i] = (c * d01[i] - f[i]) / s;
+        }
+
+        // Check the basis with a ray that was not used to solve it
+        double tx = -0.3;
+        double ty = 0.2;
+        double[] test = viewRay(camera, ray, tx, ty);
+        double[] d = new double[3];
+        for (int i = 0; i < 3; i++) {
+            d[i] = f[i] + tx * r[i] + ty * u[i];
+        }
+        double length = Math.sqrt(d[0] * d[0] + d[1] * d[1] + d[2] * d[2]);
+        if ((d[0] * test[0] + d[1] * test[1] + d[2] * test[2]) / length < 1 - 1e-6) {
+            return false;
+        }
+
+        for (int i = 0; i < 3; i++) {
+            forward[i] = (float) f[i];
+            right[i] = (float) r[i];
+            up[i] = (float) u[i];
+        }
+        return true;
+    }
+
+    /** Get the normalized direction of a view ray */
+    private static double[] viewRay(Camera camera, Ray ray, double x, double y) {
+        camera.calcViewRay(ray, x, y);
+        Vector3 d = ray.d;
+        double length = d.length();
+        return new double[] {d.x / length, d.y / length, d.z / length};
+    }
+
+    /** Determinant of the matrix with the columns a, b and c */
+    private static double det(double[] a, double[] b, double[] c) {
+        return a[0] * (b[1] * c[2] - b[2] * c[1])
+                - b[0] * (a[1] * c[2] - a[2] * c[1])
+                + c[0] * (a[1] * b[2] - a[2] * b[1]);
+    }
+}
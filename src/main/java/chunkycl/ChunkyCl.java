@@ -24,6 +24,21 @@ public class ChunkyCl implements Plugin {
     }
 
     public static void main(String[] args) throws Exception {
+        // Render without a UI and report the performance
+        if (args.length > 0 && args[0].equals("-benchmark")) {
+            HeadlessBenchmark benchmark;
+            try {
+                benchmark = new HeadlessBenchmark(args);
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                System.err.println("Usage: " + HeadlessBenchmark.USAGE);
+                System.exit(1);
+                return;
+            }
+            benchmark.run();
+            System.exit(0);
+        }
+
         // Start Chunky normally with this plugin attached.
         Chunky.loadDefaultTextures();
         Chunky chunky = new Chunky(ChunkyOptions.getDefaults());
@@ -0,0 +1,1265 @@
+package chunkycl;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+import org.apache.commons.math3.util.FastMath;
+
+import se.llbit.chunky.renderer.Postprocess;
+import se.llbit.chunky.renderer.scene.Camera;
+import se.llbit.chunky.renderer.scene.Scene;
+import se.llbit.chunky.renderer.scene.Sun;
+import se.llbit.math.Vector3;
+import se.llbit.util.TaskTracker;
+
+/**
+ * CPU implementation of rayTracer.cl. This walks the same scene data that is uploaded to the GPU and
+ * renders tiles in parallel with fork/join. It is used when OpenCL is not available.
+ */
+public class CpuRayTracer implements RayTracer {
+    private static final float EPS = 0.000005f;
+    private static final float OFFSET = 0.0001f;
+    private static final int MAX_STEPS = 1024;
+    private static final int RUSSIAN_ROULETTE_DEPTH = 3;
+    private static final float SUN_RADIUS = 0.03f;
+
+    /** Tile size in pixels */
+    private static final int TILE_SIZE = 32;
+
+    /** Target duration of a single batch in milliseconds */
+    private static final double BATCH_TARGET_TIME = 50;
+    /** Maximum number of samples per pixel in a single batch */
+    private static final int MAX_BATCH_SIZE = 256;
+
+    private final ForkJoinPool pool;
+
+    // Batches run one after another on this thread, the tiles of a batch run on the pool
+    private final ExecutorService sequencer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "CPU Ray Tracer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private SceneData scene = null;
+    private CameraRays camera = null;
+    private int width;
+    private int height;
+
+    private float[] accumulation = new float[0];
+    // Adaptive sampling statistics, see the rayTracer kernel
+    private float[] stats = new float[0];
+    // Tiles where every pixel converged. Adaptive batches only add their mean instead of rendering them.
+    private boolean[] convergedTiles = new boolean[0];
+    private int accumulatedSpp = -1;
+    private int batchSize = 1;
+
+    // First hits of the preview, see the rayTracer kernel. The block is stored with intBitsToFloat.
+    private float[] gbuffer = new float[0];
+    private int gbufferRows = 0;
+    private static final int GBUFFER_SIZE = 10;
+
+    // Host staging arrays for readback, alternated between batches
+    private final float[][] readbackBuffers = {new float[0], new float[0]};
+    private final int[][] frameBuffers = {new int[0], new int[0]};
+    private int nextReadbackBuffer = 0;
+
+    // Post processing of frames, see the postprocess kernel
+    private int postprocessMode = POSTPROCESS_GAMMA;
+    private float exposure = 1;
+
+    public CpuRayTracer() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Render on {@code threads} threads */
+    CpuRayTracer(int threads) {
+        pool = new ForkJoinPool(threads);
+        System.out.println("Using: CPU (" + pool.getParallelism() + " threads)");
+    }
+
+    @Override public void load(Scene scene, TaskTracker.Task renderTask, boolean octreeChanged) {
+        long start = System.nanoTime();
+        SceneData data = SceneData.load(scene, renderTask);
+        RenderTimers.INSTANCE.recordSince("load.extract", start);
+        if (data != null) {
+            load(data, octreeChanged);
+        }
+
+        renderTask.update("Loading GPU", 3, 3);
+    }
+
+    @Override public void load(SceneData data, boolean octreeChanged) {
+        this.scene = data;
+        gbufferRows = 0;
+    }
+
+    @Override public void setCamera(Camera camera, Vector3 sceneOrigin, int width, int height) {
+        if (width != this.width || height != this.height) {
+            accumulation = new float[width * height * 3];
+            stats = new float[width * height * 4];
+            gbuffer = new float[width * height * GBUFFER_SIZE];
+            convergedTiles = new boolean[((width + TILE_SIZE - 1) / TILE_SIZE) * ((height + TILE_SIZE - 1) / TILE_SIZE)];
+            accumulatedSpp = -1;
+            batchSize = 1;
+        }
+
+        CameraRays rays = new CameraRays(camera, sceneOrigin, width, height);
+        if (!rays.sameRays(this.camera)) {
+            gbufferRows = 0;
+        }
+
+        this.width = width;
+        this.height = height;
+        this.camera = rays;
+    }
+
+    @Override public int nextBatchSize(int maxSamples) {
+        return Math.max(1, Math.min(batchSize, maxSamples));
+    }
+
+    @Override public Batch enqueueBatch(int seed, int rayDepth, Sun sun, int samples, Readback readback) {
+        float[] buffer = null;
+        int[] frame = null;
+        if (readback == Readback.SAMPLES) {
+            buffer = readbackBuffers[nextReadbackBuffer];
+            if (buffer.length != accumulation.length) {
+                buffer = new float[accumulation.length];
+                readbackBuffers[nextReadbackBuffer] = buffer;
+            }
+            nextReadbackBuffer ^= 1;
+        } else if (readback == Readback.FRAME) {
+            frame = frameBuffers[nextReadbackBuffer];
+            if (frame.length != width * height) {
+                frame = new int[width * height];
+                frameBuffers[nextReadbackBuffer] = frame;
+            }
+            nextReadbackBuffer ^= 1;
+        }
+
+        accumulatedSpp += samples;
+        Batch batch = new Batch(samples, accumulatedSpp, buffer, frame);
+        RenderJob job = new RenderJob(seed, rayDepth, false, sun, samples, 0, height);
+        batch.job = job;
+        float[] readbackBuffer = buffer;
+        int[] frameBuffer = frame;
+        float frameScale = 1.0f / accumulatedSpp;
+        int mode = postprocessMode;
+        float frameExposure = exposure;
+
+        batch.task = sequencer.submit(() -> {
+            long start = System.nanoTime();
+            pool.invoke(job);
+            batch.duration = (System.nanoTime() - start) / 1e6;
+
+            if (readbackBuffer != null) {
+                long copyStart = System.nanoTime();
+                System.arraycopy(job.accumulation, 0, readbackBuffer, 0, readbackBuffer.length);
+                RenderTimers.INSTANCE.recordSince("batch.transfer", copyStart);
+            } else if (frameBuffer != null) {
+                long postprocessStart = System.nanoTime();
+                postprocess(job.accumulation, frameBuffer, frameScale, mode, frameExposure);
+                RenderTimers.INSTANCE.recordSince("batch.postprocess", postprocessStart);
+            }
+        });
+
+        return batch;
+    }
+
+    /** A batch of samples that is rendering on the CPU */
+    public class Batch implements RayTracer.Batch {
+        private final int samples;
+        private final int spp;
+        private final float[] readback;
+        private final int[] frame;
+        private Future<?> task;
+        private volatile double duration;
+        private RenderJob job;
+
+        private Batch(int samples, int spp, float[] readback, int[] frame) {
+            this.samples = samples;
+            this.spp = spp;
+            this.readback = readback;
+            this.frame = frame;
+        }
+
+        @Override public void await() {
+            waitFor(task);
+            RenderTimers.INSTANCE.record("batch.kernel", duration);
+
+            // Aim for the target batch time, but at most double the batch size at once so a single
+            // fast batch does not overshoot.
+            int target = (int) (BATCH_TARGET_TIME / Math.max(duration / samples, 1e-3));
+            batchSize = Math.max(1, Math.min(Math.min(target, samples * 2), MAX_BATCH_SIZE));
+        }
+
+        @Override public int getSamples() {
+            return samples;
+        }
+
+        @Override public int getSpp() {
+            return spp;
+        }
+
+        @Override public boolean hasSamples() {
+            return readback != null;
+        }
+
+        @Override public void readSamples(double[] samples) {
+            double scale = 1.0 / spp;
+            for (int i = 0; i < readback.length; i++) {
+                samples[i] = readback[i] * scale;
+            }
+        }
+
+        @Override public int getConvergedPixels() {
+            return job.converged.get();
+        }
+
+        @Override public long getRays() {
+            return job.rays.get();
+        }
+
+        @Override public double getDuration() {
+            return duration;
+        }
+
+        @Override public boolean hasFrame() {
+            return frame != null;
+        }
+
+        @Override public void readFrame(int[] argb) {
+            System.arraycopy(frame, 0, argb, 0, Math.min(argb.length, frame.length));
+        }
+    }
+
+    @Override public void rayTrace(int seed, int rayDepth, boolean preview, Sun sun, int samples) {
+        RenderJob job = new RenderJob(seed, rayDepth, preview, sun, samples, 0, height);
+        long start = System.nanoTime();
+        waitFor(sequencer.submit(() -> pool.invoke(job)));
+        RenderTimers.INSTANCE.recordSince("rayTrace.kernel", start);
+
+        accumulatedSpp += samples;
+        if (preview) {
+            gbufferRows = height;
+        }
+    }
+
+    @Override public void rayTrace(int seed, int rayDepth, boolean preview, Sun sun, int samples, int rowStart, int rowEnd) {
+        RenderJob job = new RenderJob(seed, rayDepth, preview, sun, samples, Math.max(rowStart, 0), Math.min(rowEnd, height));
+        long start = System.nanoTime();
+        waitFor(sequencer.submit(() -> pool.invoke(job)));
+        RenderTimers.INSTANCE.recordSince("rayTrace.kernel", start);
+
+        // Previews render the rows from the top, the G-buffer is complete once the last row is done
+        if (preview && rowStart <= gbufferRows) {
+            gbufferRows = Math.max(gbufferRows, rowEnd);
+        }
+    }
+
+    /** Same as the relight kernel */
+    @Override public boolean relight(Sun sun, float emitterScale) {
+        if (gbufferRows < height || scene == null) {
+            return false;
+        }
+
+        float[] sunPos = RayTracer.sunDirection(sun);
+        float[] sunColor = RayTracer.sunColor(sun);
+        SceneData scene = this.scene;
+        float[] gbuffer = this.gbuffer;
+        float[] accumulation = this.accumulation;
+        waitFor(sequencer.submit(() -> pool.submit(() -> IntStream.range(0, accumulation.length / 3).parallel().forEach(gid -> {
+            // Same as previewShade, reading the G-buffer and writing the accumulation buffer in place
+            int offset = gid * GBUFFER_SIZE;
+            int block = Float.floatToRawIntBits(gbuffer[offset + 9]);
+            float cosine = gbuffer[offset + 3] * sunPos[0] + gbuffer[offset + 4] * sunPos[1]
+                    + gbuffer[offset + 5] * sunPos[2];
+
+            // Same emittance as getTextureRay, the sky has an emittance of 1
+            float emittance = block >= 0 ? scene.blockData[block*4 + 1] / 256.0f * emitterScale : 0;
+            for (int i = 0; i < 3; i++) {
+                float color = gbuffer[offset + 6 + i];
+                float e = block >= 0 ? color * color * emittance : 1;
+                float shading = cosine * sunColor[i];
+                if (shading < 0.3f) shading = 0.3f;
+                accumulation[gid*3 + i] = color * shading * (e + 1);
+            }
+        })).join()));
+
+        accumulatedSpp = 1;
+        return true;
+    }
+
+    @Override public void clearAccumulation() {
+        float[] accumulation = this.accumulation;
+        float[] stats = this.stats;
+        boolean[] convergedTiles = this.convergedTiles;
+        waitFor(sequencer.submit(() -> {
+            Arrays.fill(accumulation, 0);
+            Arrays.fill(stats, 0);
+            Arrays.fill(convergedTiles, false);
+        }));
+        accumulatedSpp = 0;
+    }
+
+    @Override public void loadAccumulation(double[] samples, int spp) {
+        float[] accumulation = this.accumulation;
+        float[] stats = this.stats;
+        boolean[] convergedTiles = this.convergedTiles;
+        waitFor(sequencer.submit(() -> {
+            for (int i = 0; i < accumulation.length; i++) {
+                accumulation[i] = (float) (samples[i] * spp);
+            }
+
+            // The loaded samples count towards the total of every pixel, but not towards the statistics
+            for (int i = 0; i < stats.length; i += 4) {
+                stats[i] = stats[i + 1] = stats[i + 2] = 0;
+                stats[i + 3] = spp;
+            }
+            Arrays.fill(convergedTiles, false);
+        }));
+        accumulatedSpp = spp;
+    }
+
+    @Override public void readAccumulation(double[] samples) {
+        int spp = accumulatedSpp;
+        float[] accumulation = this.accumulation;
+        waitFor(sequencer.submit(() -> {
+            double scale = 1.0 / Math.max(spp, 1);
+            for (int i = 0; i < accumulation.length; i++) {
+                samples[i] = accumulation[i] * scale;
+            }
+        }));
+    }
+
+    @Override public int getAccumulatedSpp() {
+        return accumulatedSpp;
+    }
+
+    /** The accumulation, statistics and G-buffer in host memory */
+    @Override public long getDeviceMemory() {
+        return (long) (accumulation.length + stats.length + gbuffer.length) * Float.BYTES;
+    }
+
+    @Override public boolean supportsFrames() {
+        return true;
+    }
+
+    @Override public void setPostprocess(Postprocess postprocess, double exposure, boolean preview) {
+        this.postprocessMode = RayTracer.postprocessMode(postprocess, preview);
+        this.exposure = (float) exposure;
+    }
+
+    @Override public void readFrame(int[] argb) {
+        float scale = 1.0f / Math.max(accumulatedSpp, 1);
+        int mode = postprocessMode;
+        float frameExposure = exposure;
+        float[] accumulation = this.accumulation;
+        waitFor(sequencer.submit(() -> postprocess(accumulation, argb, scale, mode, frameExposure)));
+    }
+
+    /** Same as the postprocess kernel, runs on the pool */
+    private void postprocess(float[] accumulation, int[] argb, float scale, int mode, float exposure) {
+        pool.submit(() -> IntStream.range(0, Math.min(argb.length, accumulation.length / 3)).parallel().forEach(gid -> {
+            int pixel = 0xFF000000;
+            for (int i = 0; i < 3; i++) {
+                float x = postprocessChannel(accumulation[gid*3 + i] * scale * exposure, mode);
+                x = Math.min(Math.max(x, 0), 1);
+                pixel |= ((int) (x * 255 + 0.5f)) << (16 - 8*i);
+            }
+            argb[gid] = pixel;
+        })).join();
+    }
+
+    /** Same as postprocessChannel in rayTracer.cl */
+    private static float postprocessChannel(float x, int mode) {
+        switch (mode) {
+            case POSTPROCESS_GAMMA:
+                return (float) FastMath.pow(x, 1 / DEFAULT_GAMMA);
+            case POSTPROCESS_TONEMAP1:
+                x = Math.max(0, x - 0.004f);
+                return (x * (6.2f * x + 0.5f)) / (x * (6.2f * x + 1.7f) + 0.06f);
+            case POSTPROCESS_TONEMAP2:
+                x = Math.min(Math.max((x * (2.51f * x + 0.03f)) / (x * (2.43f * x + 0.59f) + 0.14f), 0), 1);
+                return (float) FastMath.pow(x, 1 / DEFAULT_GAMMA);
+            case POSTPROCESS_TONEMAP3:
+                x = hableCurve(x * 16) / hableCurve(11.2f);
+                return (float) FastMath.pow(Math.max(x, 0), 1 / DEFAULT_GAMMA);
+            case POSTPROCESS_PREVIEW:
+                return (float) Math.sqrt(x);
+            default:
+                return x;
+        }
+    }
+
+    /** Same as hableCurve in rayTracer.cl */
+    private static float hableCurve(float x) {
+        float a = 0.15f;
+        float b = 0.50f;
+        float c = 0.10f;
+        float d = 0.20f;
+        float e = 0.02f;
+        float f = 0.30f;
+        return ((x * (a * x + c * b) + d * e) / (x * (a * x + b) + d * f)) - e / f;
+    }
+
+    private static void waitFor(Future<?> task) {
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Render samples for the tiles of the frame that overlap the rows from rowStart to rowEnd. Adaptive
+     * batches only render the tiles with pixels that did not converge, see convergedTiles.
+     */
+    private class RenderJob extends RecursiveAction {
+        private final int seed;
+        private final int rayDepth;
+        private final boolean preview;
+        private final int samples;
+        private final int rowStart;
+        private final int rowEnd;
+
+        // Scene, camera and buffers of the call that created the job, and its sun direction, color of
+        // the preview shading and emittance of the shadow rays. They are captured on the calling
+        // thread, so setCamera and load can replace the fields of the ray tracer while the job runs.
+        private final SceneData scene;
+        private final CameraRays camera;
+        private final int width;
+        private final int height;
+        private final float[] accumulation;
+        private final float[] stats;
+        private final float[] gbuffer;
+        private final boolean[] convergedTiles;
+        private final float[] sunPos;
+        private final float[] sunColor;
+        private final float[] sunEmittance;
+
+        // Tiles rendered by this job, from tiles[start] to tiles[end - 1]. The root job lists them when
+        // it runs, after the batches before it marked their converged tiles.
+        private int[] tiles;
+        private int start;
+        private int end;
+
+        /** Number of pixels that were not traced since they converged */
+        final AtomicInteger converged;
+
+        /** Number of rays traced */
+        final AtomicLong rays;
+
+        RenderJob(int seed, int rayDepth, boolean preview, Sun sun, int samples, int rowStart, int rowEnd) {
+            this.seed = seed;
+            this.rayDepth = rayDepth;
+            this.preview = preview;
+            this.samples = samples;
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+            this.scene = CpuRayTracer.this.scene;
+            this.camera = CpuRayTracer.this.camera;
+            this.width = CpuRayTracer.this.width;
+            this.height = CpuRayTracer.this.height;
+            this.accumulation = CpuRayTracer.this.accumulation;
+            this.stats = CpuRayTracer.this.stats;
+            this.gbuffer = CpuRayTracer.this.gbuffer;
+            this.convergedTiles = CpuRayTracer.this.convergedTiles;
+            this.sunPos = RayTracer.sunDirection(sun);
+            this.sunColor = RayTracer.sunColor(sun);
+            this.sunEmittance = RayTracer.sunEmittance(sun);
+            this.converged = new AtomicInteger();
+            this.rays = new AtomicLong();
+        }
+
+        /** Render the tiles from {@code start} to {@code end} of the parent job */
+        private RenderJob(RenderJob parent, int start, int end) {
+            this.seed = parent.seed;
+            this.rayDepth = parent.rayDepth;
+            this.preview = parent.preview;
+            this.samples = parent.samples;
+            this.rowStart = parent.rowStart;
+            this.rowEnd = parent.rowEnd;
+            this.scene = parent.scene;
+            this.camera = parent.camera;
+            this.width = parent.width;
+            this.height = parent.height;
+            this.accumulation = parent.accumulation;
+            this.stats = parent.stats;
+            this.gbuffer = parent.gbuffer;
+            this.convergedTiles = parent.convergedTiles;
+            this.sunPos = parent.sunPos;
+            this.sunColor = parent.sunColor;
+            this.sunEmittance = parent.sunEmittance;
+            this.tiles = parent.tiles;
+            this.start = start;
+            this.end = end;
+            this.converged = parent.converged;
+            this.rays = parent.rays;
+        }
+
+        @Override protected void compute() {
+            if (scene == null || camera == null) {
+                return;
+            }
+
+            if (tiles == null) {
+                listTiles();
+            }
+
+            if (end - start > 1) {
+                int mid = (start + end) >>> 1;
+                invokeAll(new RenderJob(this, start, mid), new RenderJob(this, mid, end));
+            } else if (end > start) {
+                renderTile(tiles[start]);
+            }
+        }
+
+        /** List the tiles to render and add the mean of the converged tiles */
+        private void listTiles() {
+            boolean adaptive = !preview && ADAPTIVE_THRESHOLD > 0;
+            int tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+            int first = (rowStart / TILE_SIZE) * tilesX;
+            int last = ((rowEnd + TILE_SIZE - 1) / TILE_SIZE) * tilesX;
+
+            tiles = new int[last - first];
+            int[] skipped = new int[last - first];
+            int skippedCount = 0;
+            for (int tile = first; tile < last; tile++) {
+                if (adaptive && convergedTiles[tile]) {
+                    skipped[skippedCount++] = tile;
+                } else {
+                    tiles[end++] = tile;
+                }
+            }
+
+            IntStream.range(0, skippedCount).parallel().forEach(i -> {
+                int tile = skipped[i];
+                int x0 = (tile % tilesX) * TILE_SIZE;
+                int x1 = Math.min(x0 + TILE_SIZE, width);
+                int y0 = Math.max((tile / tilesX) * TILE_SIZE, rowStart);
+                int y1 = Math.min((tile / tilesX) * TILE_SIZE + TILE_SIZE, rowEnd);
+                for (int y = y0; y < y1; y++) {
+                    for (int x = x0; x < x1; x++) {
+                        addMean(this, y * width + x);
+                    }
+                }
+                converged.addAndGet((x1 - x0) * Math.max(y1 - y0, 0));
+            });
+        }
+
+        private void renderTile(int tile) {
+            int tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+            int x0 = (tile % tilesX) * TILE_SIZE;
+            int y0 = (tile / tilesX) * TILE_SIZE;
+            int x1 = Math.min(x0 + TILE_SIZE, width);
+            int y1 = Math.min(y0 + TILE_SIZE, height);
+            boolean wholeTile = y0 >= rowStart && y1 <= rowEnd;
+            y0 = Math.max(y0, rowStart);
+            y1 = Math.min(y1, rowEnd);
+
+            PathState state = new PathState();
+            int skipped = 0;
+            for (int y = y0; y < y1; y++) {
+                for (int x = x0; x < x1; x++) {
+                    if (!renderPixel(this, state, y * width + x)) {
+                        skipped += 1;
+                    }
+                }
+            }
+
+            // Pixels stay converged, so a tile where every pixel converged is skipped from now on
+            if (wholeTile && skipped == (x1 - x0) * (y1 - y0)) {
+                convergedTiles[tile] = true;
+            }
+            converged.addAndGet(skipped);
+            rays.addAndGet(state.rays);
+        }
+    }
+
+    /** Per thread scratch memory so that the per ray code does not allocate */
+    private static final class PathState {
+        final float[] o = new float[3];
+        final float[] d = new float[3];
+        final float[] n = new float[3];
+        final float[] e = new float[3];
+        final float[] color = new float[3];
+        final float[] junk = new float[3];
+        final float[] scale = new float[3];
+        final float[] throughput = new float[3];
+        final float[] radiance = new float[3];
+        final float[] shadowO = new float[3];
+        final float[] shadowD = new float[3];
+        final float[] light = new float[3];
+        final float[] lightP = new float[3];
+        final float[] lightN = new float[3];
+        final float[] lightColor = new float[3];
+        final float[] lightE = new float[3];
+        final int[] lightBlock = new int[3];
+        int random;
+        int level;
+        long rays;
+    }
+
+    /**
+     * Same as the rayTracer kernel for a single work item
+     *
+     * @return false if the pixel was not traced since it converged
+     */
+    private static boolean renderPixel(RenderJob job, PathState state, int gid) {
+        int seed = job.seed;
+        int rayDepth = job.rayDepth;
+        boolean preview = job.preview;
+        int samples = job.samples;
+        SceneData scene = job.scene;
+        float[] accumulation = job.accumulation;
+        float[] stats = job.stats;
+        float[] gbuffer = job.gbuffer;
+        float[] sunPos = job.sunPos;
+        float[] sunColor = job.sunColor;
+        float[] sunEmittance = job.sunEmittance;
+        LightGrid lightGrid = scene.getLightGrid();
+        float[] o = state.o;
+        float[] d = state.d;
+        float[] n = state.n;
+        float[] e = state.e;
+        float[] color = state.color;
+        float[] scale = state.scale;
+        float[] throughput = state.throughput;
+        float[] radiance = state.radiance;
+        float[] light = state.light;
+
+        // Initialize rng
+        state.random = seed * (gid+1);
+        xorshift(state);
+
+        // Previews only shade the first hit
+        int maxbounces = preview ? 1 : rayDepth;
+
+        // Adaptive sampling, add the mean color of converged pixels instead of tracing them
+        float traced = stats[gid*4 + 2];
+        float total = stats[gid*4 + 3];
+        if (!preview && ADAPTIVE_THRESHOLD > 0 && traced >= ADAPTIVE_MIN_SAMPLES) {
+            float mean = stats[gid*4] / traced;
+            float variance = Math.max(stats[gid*4 + 1] / traced - mean * mean, 0);
+
+            if (Math.sqrt(variance / traced) <= ADAPTIVE_THRESHOLD * Math.max(mean, 0.001f)) {
+                addMean(job, gid);
+                return false;
+            }
+        }
+
+        float sum0 = 0, sum1 = 0, sum2 = 0;
+        float sumLuminance = 0, sumLuminanceSquared = 0;
+
+        for (int sample = 0; sample < samples; sample++) {
+            generateRay(job, state, gid, preview ? 0 : 1);
+
+            n[0] = n[1] = n[2] = 0;
+            Arrays.fill(scale, 1);
+            Arrays.fill(throughput, 1);
+            Arrays.fill(radiance, 0);
+
+            // Light grid cell of the previous hit, -1 if no emitters were sampled there
+            int lastCell = -1;
+
+            // Do the bounces
+            for (int bounces = 0; bounces < maxbounces; bounces++) {
+                e[0] = e[1] = e[2] = 0;
+
+                // Find the next visible block, skipping empty octree nodes
+                int block = traceOctree(state, scene);
+                state.rays++;
+                boolean hit = block >= 0;
+
+                // Set color to sky color (1, 1, 1) or texture color
+                if (hit) {
+                    getTextureRay(color, o, n, e, block, scene);
+                } else {
+                    color[0] = 1;
+                    color[1] = 1;
+                    color[2] = 1;
+
+                    e[0] = color[0] * color[0];
+                    e[1] = color[1] * color[1];
+                    e[2] = color[2] * color[2];
+                }
+
+                if (preview) {
+                    // Keep the first hit so the preview can be relit without tracing
+                    previewShade(radiance, color, n, e, sunPos, sunColor);
+                    if (sample == 0) {
+                        int offset = gid * GBUFFER_SIZE;
+                        System.arraycopy(o, 0, gbuffer, offset, 3);
+                        System.arraycopy(n, 0, gbuffer, offset + 3, 3);
+                        System.arraycopy(color, 0, gbuffer, offset + 6, 3);
+                        gbuffer[offset + 9] = Float.intBitsToFloat(block);
+                    }
+                    break;
+                }
+
+                // Emitters near the previous hit were already counted by its shadow ray
+                if (hit && bounces > 0 && nearLightCell(lastCell, lightCell(o, lightGrid), lightGrid)) {
+                    e[0] = e[1] = e[2] = 0;
+                }
+
+                // Add the color and emittance to the path
+                for (int i = 0; i < 3; i++) {
+                    if (bounces == 0) {
+                        scale[i] = e[i] + 1;
+                        throughput[i] = color[i];
+                    } else {
+                        radiance[i] += throughput[i] * e[i];
+                        throughput[i] *= color[i];
+                    }
+                }
+
+                // Exit on sky-hit
+                if (!hit) break;
+
+                // Direct sunlight through a shadow ray to a random point on the sun disk
+                float sun = sampleSun(state, scene, sunPos);
+                for (int i = 0; i < 3; i++) {
+                    radiance[i] += throughput[i] * sunEmittance[i] * sun;
+                }
+
+                // Direct light of a random emitter near the hit
+                lastCell = sampleEmitters(state, scene, lightGrid);
+                for (int i = 0; i < 3; i++) {
+                    radiance[i] += throughput[i] * light[i];
+                }
+
+                if (!russianRoulette(throughput, bounces, state)) break;
+
+                // Calculate new diffuse reflection ray
+                diffuseReflect(state);
+                exitBlock(o, d, state.junk);
+            }
+
+            float r = scale[0] * radiance[0];
+            float g = scale[1] * radiance[1];
+            float b = scale[2] * radiance[2];
+            sum0 += r;
+            sum1 += g;
+            sum2 += b;
+
+            float luminance = 0.2126f * r + 0.7152f * g + 0.0722f * b;
+            sumLuminance += luminance;
+            sumLuminanceSquared += luminance * luminance;
+        }
+
+        // Add the samples to the accumulation buffer
+        accumulation[gid*3 + 0] += sum0;
+        accumulation[gid*3 + 1] += sum1;
+        accumulation[gid*3 + 2] += sum2;
+
+        stats[gid*4 + 0] += sumLuminance;
+        stats[gid*4 + 1] += sumLuminanceSquared;
+        stats[gid*4 + 2] = traced + samples;
+        stats[gid*4 + 3] = total + samples;
+        return true;
+    }
+
+    /** Add the samples of the job as the mean color of a converged pixel, same as skipConverged */
+    private static void addMean(RenderJob job, int gid) {
+        float[] accumulation = job.accumulation;
+        float[] stats = job.stats;
+        int samples = job.samples;
+        float total = stats[gid*4 + 3];
+        float scale = samples / total;
+        accumulation[gid*3 + 0] += accumulation[gid*3 + 0] * scale;
+        accumulation[gid*3 + 1] += accumulation[gid*3 + 1] * scale;
+        accumulation[gid*3 + 2] += accumulation[gid*3 + 2] * scale;
+        stats[gid*4 + 3] = total + samples;
+    }
+
+    /** Same as previewShade in rayTracer.cl */
+    private static void previewShade(float[] sampleColor, float[] color, float[] n, float[] e, float[] sunPos,
+                                     float[] sunColor) {
+        float sun = n[0] * sunPos[0] + n[1] * sunPos[1] + n[2] * sunPos[2];
+        for (int i = 0; i < 3; i++) {
+            float shading = sun * sunColor[i];
+            if (shading < 0.3f) shading = 0.3f;
+            sampleColor[i] = color[i] * shading * (e[i] + 1);
+        }
+    }
+
+    /** Same as sampleSun in rayTracer.cl, for the hit in the path state */
+    private static float sampleSun(PathState state, SceneData scene, float[] s) {
+        // Uniform direction in the cone of the sun disk
+        float x1 = nextFloat(state);
+        float x2 = nextFloat(state);
+        float cosTheta = (float) (1 - x1 * (1 - Math.cos(SUN_RADIUS)));
+        float sinTheta = (float) Math.sqrt(1 - cosTheta * cosTheta);
+        float phi = (float) (2 * Math.PI * x2);
+
+        float u0, u1, u2;
+        if (Math.abs(s[0]) > .1) {
+            u0 = -s[2];
+            u1 = 0;
+            u2 = s[0];
+        } else {
+            u0 = 0;
+            u1 = s[2];
+            u2 = -s[1];
+        }
+        float r = (float) (1 / Math.sqrt(u0 * u0 + u1 * u1 + u2 * u2));
+        u0 *= r;
+        u1 *= r;
+        u2 *= r;
+        float v0 = s[1] * u2 - s[2] * u1;
+        float v1 = s[2] * u0 - s[0] * u2;
+        float v2 = s[0] * u1 - s[1] * u0;
+
+        float a = (float) (sinTheta * FastMath.cos(phi));
+        float b = (float) (sinTheta * FastMath.sin(phi));
+        float[] d = state.shadowD;
+        d[0] = u0 * a + v0 * b + s[0] * cosTheta;
+        d[1] = u1 * a + v1 * b + s[1] * cosTheta;
+        d[2] = u2 * a + v2 * b + s[2] * cosTheta;
+
+        float[] n = state.n;
+        float cosine = d[0] * n[0] + d[1] * n[1] + d[2] * n[2];
+        if (cosine <= 0) {
+            return 0;
+        }
+
+        // Leave the hit block like a reflected ray and look for anything in the way
+        float[] o = state.shadowO;
+        System.arraycopy(state.o, 0, o, 0, 3);
+        exitBlock(o, d, state.junk);
+        state.rays++;
+        if (traceOctree(state, scene, o, d, state.junk) >= 0) {
+            return 0;
+        }
+
+        return cosine;
+    }
+
+    /** Same as sampleEmitters in rayTracer.cl, for the hit in the path state. Sets state.light. */
+    private static int sampleEmitters(PathState state, SceneData scene, LightGrid grid) {
+        float[] light = state.light;
+        light[0] = light[1] = light[2] = 0;
+
+        float[] o = state.o;
+        int cell = lightCell(o, grid);
+        if (cell < 0) {
+            return -1;
+        }
+
+        int start = grid.cells[cell];
+        int count = grid.cells[cell + 1] - start;
+        if (count == 0) {
+            return cell;
+        }
+
+        int emitter = grid.lightList[start + Math.min((int) (nextFloat(state) * count), count - 1)];
+        int[] l = state.lightBlock;
+        System.arraycopy(grid.emitters, emitter * 4, l, 0, 3);
+        int block = grid.emitters[emitter*4 + 3];
+        float x0 = nextFloat(state);
+        float x1 = nextFloat(state);
+        float x2 = nextFloat(state);
+
+        // Faces of the emitter that face the hit, there are none if the hit is the emitter itself
+        int faces = 0;
+        for (int a = 0; a < 3; a++) {
+            if (Math.abs(o[a] - (l[a] + 0.5f)) > 0.5f) {
+                faces++;
+            }
+        }
+        if (faces == 0) {
+            return cell;
+        }
+
+        int face = Math.min((int) (x0 * faces), faces - 1);
+        int axis = -1;
+        for (int a = 0; a < 3 && axis < 0; a++) {
+            if (Math.abs(o[a] - (l[a] + 0.5f)) > 0.5f && face-- == 0) {
+                axis = a;
+            }
+        }
+
+        // Random point on the face
+        int b = axis == 0 ? 1 : 0;
+        int c = axis == 2 ? 1 : 2;
+        float[] ln = state.lightN;
+        float[] p = state.lightP;
+        ln[0] = ln[1] = ln[2] = 0;
+        ln[axis] = o[axis] > l[axis] ? 1 : -1;
+        p[axis] = ln[axis] > 0 ? l[axis] + 1 : l[axis];
+        p[b] = l[b] + x1;
+        p[c] = l[c] + x2;
+
+        float[] d = state.shadowD;
+        d[0] = p[0] - o[0];
+        d[1] = p[1] - o[1];
+        d[2] = p[2] - o[2];
+        float r2 = d[0] * d[0] + d[1] * d[1] + d[2] * d[2];
+        float r = (float) Math.sqrt(r2);
+        d[0] /= r;
+        d[1] /= r;
+        d[2] /= r;
+
+        float[] n = state.n;
+        float cosine = d[0] * n[0] + d[1] * n[1] + d[2] * n[2];
+        float lightCosine = -(d[0] * ln[0] + d[1] * ln[1] + d[2] * ln[2]);
+        if (cosine <= 0 || lightCosine <= 0) {
+            return cell;
+        }
+
+        // The point is visible if the emitter is the first block hit by the shadow ray
+        float[] so = state.shadowO;
+        System.arraycopy(o, 0, so, 0, 3);
+        exitBlock(so, d, state.junk);
+        state.rays++;
+        if (traceOctree(state, scene, so, d, state.junk) < 0 || Math.floor(so[0]) != l[0]
+                || Math.floor(so[1]) != l[1] || Math.floor(so[2]) != l[2]) {
+            return cell;
+        }
+
+        float[] e = state.lightE;
+        getTextureRay(state.lightColor, p, ln, e, block, scene);
+
+        // Divide by the probability of the point, faces have an area of 1
+        float weight = (float) (cosine * lightCosine / (Math.PI * r2)) * faces * count;
+        for (int i = 0; i < 3; i++) {
+            light[i] = e[i] * weight;
+        }
+        return cell;
+    }
+
+    /** Same as lightCell in rayTracer.cl */
+    private static int lightCell(float[] o, LightGrid grid) {
+        int size = grid.size;
+        if (size == 0) {
+            return -1;
+        }
+
+        int x = Math.min(Math.max(((int) Math.floor(o[0])) >> grid.cellShift, 0), size - 1);
+        int y = Math.min(Math.max(((int) Math.floor(o[1])) >> grid.cellShift, 0), size - 1);
+        int z = Math.min(Math.max(((int) Math.floor(o[2])) >> grid.cellShift, 0), size - 1);
+        return (x * size + y) * size + z;
+    }
+
+    /** Same as nearLightCell in rayTracer.cl */
+    private static boolean nearLightCell(int a, int b, LightGrid grid) {
+        if (a < 0 || b < 0) {
+            return false;
+        }
+
+        int size = grid.size;
+        return Math.abs(a / (size * size) - b / (size * size)) <= 1
+                && Math.abs((a / size) % size - (b / size) % size) <= 1
+                && Math.abs(a % size - b % size) <= 1;
+    }
+
+    /** Xorshift random number generator, same as the kernel */
+    private static void xorshift(PathState state) {
+        int x = state.random;
+        x ^= x << 13;
+        x ^= x >>> 7;
+        x ^= x << 17;
+        x *= 0xDEECE66D;  // Low 32 bits of 0x5DEECE66D
+        state.random = x;
+    }
+
+    /** Same as russianRoulette in rayTracer.cl */
+    private static boolean russianRoulette(float[] throughput, int bounce, PathState state) {
+        if (bounce < RUSSIAN_ROULETTE_DEPTH) {
+            return true;
+        }
+
+        float p = Math.min(Math.max(throughput[0], Math.max(throughput[1], throughput[2])), 1);
+        if (nextFloat(state) >= p) {
+            return false;
+        }
+
+        throughput[0] /= p;
+        throughput[1] /= p;
+        throughput[2] /= p;
+        return true;
+    }
+
+    private static float nextFloat(PathState state) {
+        xorshift(state);
+
+        return (state.random >>> 8) / ((float) (1 << 24));
+    }
+
+    /** Generate the camera ray through a random point of a pixel */
+    private static void generateRay(RenderJob job, PathState state, int gid, float jitter) {
+        CameraRays camera = job.camera;
+        int width = job.width;
+        int height = job.height;
+        float[] o = state.o;
+        float[] d = state.d;
+
+        int px = gid % width;
+        int py = gid / width;
+
+        // Sub pixel offset, jitter = 0 samples the pixel center
+        float ox = (float) (0.5 + (nextFloat(state) - 0.5) * jitter);
+        float oy = (float) (0.5 + (nextFloat(state) - 0.5) * jitter);
+
+        o[0] = camera.origin[0];
+        o[1] = camera.origin[1];
+        o[2] = camera.origin[2];
+
+        if (camera.projection == CameraRays.PROJECTION_PINHOLE) {
+            float invHeight = 1.0f / height;
+            float x = -0.5f * width * invHeight + (px + ox) * invHeight;
+            float y = -0.5f + (py + oy) * invHeight;
+
+            for (int i = 0; i < 3; i++) {
+                d[i] = camera.forward[i] + x * camera.right[i] + y * camera.up[i];
+            }
+        } else {
+            // Interpolate between the directions at the pixel corners
+            float[] rayTable = camera.rayTable;
+            int stride = width + 1;
+            int i00 = (py * stride + px) * 3;
+            int i01 = i00 + stride * 3;
+
+            for (int i = 0; i < 3; i++) {
+                float top = rayTable[i00 + i] + (rayTable[i00 + 3 + i] - rayTable[i00 + i]) * ox;
+                float bottom = rayTable[i01 + i] + (rayTable[i01 + 3 + i] - rayTable[i01 + i]) * ox;
+                d[i] = top + (bottom - top) * oy;
+            }
+        }
+
+        float r = (float) (1 / Math.sqrt(d[0] * d[0] + d[1] * d[1] + d[2] * d[2]));
+        d[0] *= r;
+        d[1] *= r;
+        d[2] *= r;
+    }
+
+    /** Generate a diffuse reflection ray. Based on chunky code */
+    private static void diffuseReflect(PathState state) {
+        float[] d = state.d;
+        float[] n = state.n;
+
+        float x1 = nextFloat(state);
+        float x2 = nextFloat(state);
+        float r = (float) Math.sqrt(x1);
+        float theta = (float) (2 * Math.PI * x2);
+
+        float tx = (float) (r * FastMath.cos(theta));
+        float ty = (float) (r * FastMath.sin(theta));
+        float tz = (float) Math.sqrt(1 - x1);
+
+        // transform from tangent space to world space
+        float xx, xy, xz;
+        float ux, uy, uz;
+        float vx, vy, vz;
+
+        if (Math.abs(n[0]) > .1) {
+            xx = 0;
+            xy = 1;
+            xz = 0;
+        } else {
+            xx = 1;
+            xy = 0;
+            xz = 0;
+        }
+
+        ux = xy * n[2] - xz * n[1];
+        uy = xz * n[0] - xx * n[2];
+        uz = xx * n[1] - xy * n[0];
+
+        r = (float) (1 / Math.sqrt(ux * ux + uy * uy + uz * uz));
+
+        ux *= r;
+        uy *= r;
+        uz *= r;
+
+        vx = uy * n[2] - uz * n[1];
+        vy = uz * n[0] - ux * n[2];
+        vz = ux * n[1] - uy * n[0];
+
+        d[0] = ux * tx + vx * ty + n[0] * tz;
+        d[1] = uy * tx + vy * ty + n[1] * tz;
+        d[2] = uz * tx + vz * ty + n[2] * tz;
+    }
+
+    /** Calculate the texture value of a ray */
+    private static void getTextureRay(float[] color, float[] o, float[] n, float[] e, int block, SceneData scene) {
+        int textureIndex = scene.blockData[block*4];
+        int emittance = scene.blockData[block*4 + 1];
+
+        // Calculate u,v value based on chunky code
+        float u, v;
+        float bx = (float) Math.floor(o[0]);
+        float by = (float) Math.floor(o[1]);
+        float bz = (float) Math.floor(o[2]);
+        if (n[1] != 0) {
+            u = o[0] - bx;
+            v = o[2] - bz;
+        } else if (n[0] != 0) {
+            u = o[2] - bz;
+            v = o[1] - by;
+        } else {
+            u = o[0] - bx;
+            v = o[1] - by;
+        }
+        if (n[0] > 0 || n[2] < 0) {
+            u = 1 - u;
+        }
+        if (n[1] > 0) {
+            v = 1 - v;
+        }
+
+        u = u * 16 - EPS;
+        v = (1 - v) * 16 - EPS;
+
+        // Texture lookup
+        int argb = scene.blockTextures[textureIndex + 16 * (int) v + (int) u];
+
+        // Separate ARGB value
+        color[0] = (float) ((0xFF & (argb >> 16)) / 255.0);
+        color[1] = (float) ((0xFF & (argb >> 8 )) / 255.0);
+        color[2] = (float) ((0xFF & (argb >> 0 )) / 255.0);
+
+        // Calculate emittance
+        e[0] = (float) (color[0] * color[0] * (emittance / 256.0));
+        e[1] = (float) (color[1] * color[1] * (emittance / 256.0));
+        e[2] = (float) (color[2] * color[2] * (emittance / 256.0));
+    }
+
+    /**
+     * Get the value of a location in the octree. The level of the leaf node containing it is stored in
+     * the path state, the leaf node is a cube with a side length of 1 << level.
+     */
+    private static int octreeGet(PathState state, SceneData scene, int x, int y, int z) {
+        int[] treeData = scene.treeData;
+        int level = scene.depth;
+
+        int data = treeData[0];
+        while (data > 0) {
+            level -= 1;
+
+            int lx = 1 & (x >> level);
+            int ly = 1 & (y >> level);
+            int lz = 1 & (z >> level);
+
+            data = treeData[data + ((lx << 2) | (ly << 1) | lz)];
+        }
+
+        state.level = level;
+        return -data;
+    }
+
+    /**
+     * Move the ray forward until it hits a visible block. Transparent leaf nodes are skipped as a whole
+     * instead of one block at a time.
+     *
+     * @return the block or -1 if the ray leaves the octree
+     */
+    private static int traceOctree(PathState state, SceneData scene) {
+        return traceOctree(state, scene, state.o, state.d, state.n);
+    }
+
+    /** Same as above for a ray other than the ray of the path state, e.g. a shadow ray */
+    private static int traceOctree(PathState state, SceneData scene, float[] o, float[] d, float[] n) {
+        for (int i = 0; i < MAX_STEPS; i++) {
+            int block = octreeGet(state, scene, (int) o[0], (int) o[1], (int) o[2]);
+
+            if (!isTransparent(scene, block))
+                return block;
+
+            exitNode(o, d, n, 1 << state.level);
+
+            if (!inbounds(o, scene.depth))
+                return -1;
+        }
+
+        return -1;
+    }
+
+    /** Check if a block is invisible */
+    private static boolean isTransparent(SceneData scene, int block) {
+        return (scene.blockData[block*4 + 3] & SceneData.FLAG_INVISIBLE) != 0;
+    }
+
+    /** Check if we are inbounds */
+    private static boolean inbounds(float[] o, int depth) {
+        int x = (int) o[0];
+        int y = (int) o[1];
+        int z = (int) o[2];
+
+        return (x >> depth) == 0 && (y >> depth) == 0 && (z >> depth) == 0;
+    }
+
+    /** Exit the current block. Based on chunky code. */
+    private static void exitBlock(float[] o, float[] d, float[] n) {
+        exitNode(o, d, n, 1);
+    }
+
+    /** Exit the current axis aligned cube with the given side length */
+    private static void exitNode(float[] o, float[] d, float[] n, float size) {
+        float tNext = 10000000;
+
+        float b0 = (float) Math.floor(o[0] / size) * size;
+        float b1 = (float) Math.floor(o[1] / size) * size;
+        float b2 = (float) Math.floor(o[2] / size) * size;
+
+        float t = (b0 - o[0]) / d[0];
+        if (t > EPS) {
+            tNext = t;
+            n[0] = 1;
+            n[1] = n[2] = 0;
+        } else {
+            t = ((b0 + size) - o[0]) / d[0];
+            if (t < tNext && t > EPS) {
+                tNext = t;
+                n[0] = -1;
+                n[1] = n[2] = 0;
+            }
+        }
+
+        t = (b1 - o[1]) / d[1];
+        if (t < tNext && t > EPS) {
+            tNext = t;
+            n[1] = 1;
+            n[0] = n[2] = 0;
+        } else {
+            t = ((b1 + size) - o[1]) / d[1];
+            if (t < tNext && t > EPS) {
+                tNext = t;
+                n[1] = -1;
+                n[0] = n[2] = 0;
+            }
+        }
+
+        t = (b2 - o[2]) / d[2];
+        if (t < tNext && t > EPS) {
+            tNext = t;
+            n[2] = 1;
+            n[0] = n[1] = 0;
+        } else {
+            t = ((b2 + size) - o[2]) / d[2];
+            if (t < tNext && t > EPS) {
+                tNext = t;
+                n[2] = -1;
+                n[0] = n[1] = 0;
+            }
+        }
+
+        o[0] += OFFSET * d[0];
+        o[1] += OFFSET * d[1];
+        o[2] += OFFSET * d[2];
+
+        o[0] += tNext * d[0];
+        o[1] += tNext * d[1];
+        o[2] += tNext * d[2];
+    }
+}
@@ -0,0 +1,602 @@
+package chunkycl;
+
+import static org.jocl.CL.*;
+
+import org.jocl.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import se.llbit.chunky.renderer.Postprocess;
+import se.llbit.chunky.renderer.scene.Camera;
+import se.llbit.chunky.renderer.scene.Scene;
+import se.llbit.chunky.renderer.scene.Sun;
+import se.llbit.log.Log;
+import se.llbit.math.Vector3;
+import se.llbit.util.TaskTracker;
+
+/**
+ * Renders on every selected OpenCL device. Each frame is split into row ranges which are rebalanced
+ * using the measured throughput of every device. The samples of a row are kept on the device that
+ * renders it and move with the row, so every device post-processes its own rows and the frames and
+ * sample buffers are put together from the rows of all devices.
+ *
+ * <p>Devices are selected with the {@code chunkycl.devices} system property. This is either
+ * {@code all} or a comma separated list of {@code platform:device} indices, e.g. {@code 0:0,1:0}.
+ * The default is the first device of the first platform.
+ *
+ * <p>Scenes that can not be loaded onto the devices, e.g. an octree larger than the maximum allocation
+ * size, are rendered by a CpuRayTracer until the next scene that fits.
+ */
+public class DeviceManager implements RayTracer {
+    private final List<GpuRayTracer> devices = new ArrayList<>();
+
+    // Share of the rows rendered by each device
+    private final double[] shares;
+
+    // Frame size set by setCamera
+    private int width;
+    private int height;
+
+    // Number of samples summed in the accumulation buffers, -1 if the buffer content is undefined
+    private int accumulatedSpp = -1;
+
+    // Camera of the last setCamera call and the number of rows from the top of the frame with a
+    // preview G-buffer for that camera
+    private CameraRays camera = null;
+    private int gbufferRows = 0;
+
+    // Adaptive batch size for enqueueBatch
+    private int batchSize = 1;
+
+    // CPU ray tracer used while the scene does not fit on the devices, created on first use
+    private CpuRayTracer cpu = null;
+    private boolean useCpu = false;
+
+    // Post processing of the last setPostprocess call, applied to the CPU ray tracer when it is created
+    private Postprocess postprocess = Postprocess.DEFAULT;
+    private double exposure = 1;
+    private boolean preview = false;
+
+    /** Target duration of a single batch launch in milliseconds */
+    private static final double BATCH_TARGET_TIME = 50;
+    /** Maximum number of samples per pixel in a single launch */
+    private static final int MAX_BATCH_SIZE = 256;
+    /**
+     * Fraction of the frame height a row range must change by before the rows are moved. Moving rows
+     * waits for the devices, so small changes of the measured throughput are ignored.
+     */
+    private static final double MIN_ROW_CHANGE = 0.02;
+
+    DeviceManager() {
+        // Enable exceptions
+        CL.setExceptionsEnabled(true);
+
+        // Obtain the number of platforms
+        int[] numPlatformsArray = new int[1];
+        clGetPlatformIDs(0, null, numPlatformsArray);
+        int numPlatforms = numPlatformsArray[0];
+
+        // Obtain the platform IDs
+        cl_platform_id[] platforms = new cl_platform_id[numPlatforms];
+        clGetPlatformIDs(platforms.length, platforms, null);
+
+        // Obtain the device IDs of every platform. Platforms without devices, e.g. a runtime that is
+        // installed without its hardware, report CL_DEVICE_NOT_FOUND and are kept with no devices.
+        cl_device_id[][] platformDevices = new cl_device_id[numPlatforms][];
+        System.out.println("OpenCL Devices:");
+        for (int p = 0; p < numPlatforms; p++) {
+            try {
+                int[] numDevicesArray = new int[1];
+                clGetDeviceIDs(platforms[p], CL_DEVICE_TYPE_ALL, 0, null, numDevicesArray);
+                platformDevices[p] = new cl_device_id[numDevicesArray[0]];
+                clGetDeviceIDs(platforms[p], CL_DEVICE_TYPE_ALL, platformDevices[p].length, platformDevices[p], null);
+            } catch (CLException e) {
+                Log.info("OpenCL platform " + p + " has no devices: " + e.getMessage());
+                platformDevices[p] = new cl_device_id[0];
+            }
+
+            // Print out all connected devices
+            for (int i = 0; i < platformDevices[p].length; i++) {
+                System.out.println("  [" + p + ":" + i + "] " + GpuRayTracer.getString(platformDevices[p][i], CL_DEVICE_NAME));
+            }
+        }
+        System.out.println();
+
+        // Create a ray tracer for every selected device
+        String selection = System.getProperty("chunkycl.devices", "0:0").trim();
+        if (selection.equalsIgnoreCase("all")) {
+            for (int p = 0; p < numPlatforms; p++) {
+                for (cl_device_id device : platformDevices[p]) {
+                    devices.add(new GpuRayTracer(platforms[p], device));
+                }
+            }
+        } else {
+            for (String entry : selection.split(",")) {
+                String[] indices = entry.trim().split(":");
+                try {
+                    int p = Integer.parseInt(indices[0]);
+                    int i = indices.length > 1 ? Integer.parseInt(indices[1]) : 0;
+                    devices.add(new GpuRayTracer(platforms[p], platformDevices[p][i]));
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    Log.warn("Invalid OpenCL device \"" + entry + "\" in chunkycl.devices");
+                }
+            }
+        }
+
+        if (devices.isEmpty()) {
+            for (int p = 0; p < numPlatforms && devices.isEmpty(); p++) {
+                if (platformDevices[p].length > 0) {
+                    Log.warn("No OpenCL devices selected, using the first device of platform " + p + ".");
+                    devices.add(new GpuRayTracer(platforms[p], platformDevices[p][0]));
+                }
+            }
+        }
+        if (devices.isEmpty()) {
+            throw new CLException("No OpenCL devices found", CL_DEVICE_NOT_FOUND);
+        }
+
+        shares = new double[devices.size()];
+        Arrays.fill(shares, 1.0 / devices.size());
+    }
+
+    /** Load a scene onto every device */
+    @Override public void load(Scene scene, TaskTracker.Task renderTask, boolean octreeChanged) {
+        long start = System.nanoTime();
+        SceneData data = SceneData.load(scene, renderTask);
+        RenderTimers.INSTANCE.recordSince("load.extract", start);
+        if (data == null) {
+            return;
+        }
+
+        load(data, octreeChanged);
+
+        renderTask.update("Loading GPU", 3, 3);
+    }
+
+    /**
+     * Load the scene onto every device. If a device can not hold the scene, it is rendered on the CPU
+     * until a new octree is loaded successfully.
+     */
+    @Override public void load(SceneData data, boolean octreeChanged) {
+        gbufferRows = 0;
+        if (useCpu && !octreeChanged) {
+            cpu.load(data, false);
+            return;
+        }
+
+        try {
+            for (GpuRayTracer device : devices) {
+                device.load(data, octreeChanged);
+            }
+        } catch (CLException e) {
+            Log.error("Could not load the scene onto the OpenCL devices, rendering on the CPU instead.", e);
+            if (cpu == null) {
+                cpu = new CpuRayTracer();
+                cpu.setPostprocess(postprocess, exposure, preview);
+            }
+            cpu.load(data, true);
+            cpu.clearAccumulation();
+            useCpu = true;
+            return;
+        }
+
+        if (useCpu) {
+            Log.info("Scene loaded onto the OpenCL devices, no longer rendering on the CPU.");
+            useCpu = false;
+            accumulatedSpp = -1;
+        }
+    }
+
+    /** Set the camera used by the following render calls */
+    @Override public void setCamera(Camera camera, Vector3 sceneOrigin, int width, int height) {
+        if (useCpu) {
+            cpu.setCamera(camera, sceneOrigin, width, height);
+            return;
+        }
+        if (width != this.width || height != this.height) {
+            accumulatedSpp = -1;
+            batchSize = 1;
+        }
+
+        // The samples only move with the rows if the frame size stays the same
+        boolean sameSize = width == this.width && height == this.height;
+        this.width = width;
+        this.height = height;
+
+        CameraRays rays = new CameraRays(camera, sceneOrigin, width, height);
+        if (!rays.sameRays(this.camera)) {
+            gbufferRows = 0;
+        }
+        this.camera = rays;
+
+        for (GpuRayTracer device : devices) {
+            device.setCamera(rays);
+        }
+        splitRows(sameSize);
+    }
+
+    /**
+     * Get the number of samples per pixel for the next batch. The batch size adapts so that a launch
+     * takes about BATCH_TARGET_TIME milliseconds on the slowest device.
+     */
+    @Override public int nextBatchSize(int maxSamples) {
+        if (useCpu) {
+            return cpu.nextBatchSize(maxSamples);
+        }
+        return Math.max(1, Math.min(batchSize, maxSamples));
+    }
+
+    /**
+     * Enqueue a batch of render samples on every device without waiting for it. The result selected by
+     * {@code readback} is read back once the batch is done. The batch must be awaited before the batch
+     * after the next one is enqueued.
+     */
+    @Override public RayTracer.Batch enqueueBatch(int seed, int rayDepth, Sun sun, int samples, Readback readback) {
+        if (useCpu) {
+            return cpu.enqueueBatch(seed, rayDepth, sun, samples, readback);
+        }
+        accumulatedSpp += samples;
+
+        boolean readSamples = readback == Readback.SAMPLES || (readback == Readback.FRAME && !supportsFrames());
+        int frameSpp = readback == Readback.FRAME && supportsFrames() ? accumulatedSpp : 0;
+
+        GpuRayTracer.Batch[] batches = new GpuRayTracer.Batch[devices.size()];
+        int[] rows = new int[devices.size()];
+        for (int i = 0; i < batches.length; i++) {
+            GpuRayTracer device = devices.get(i);
+            rows[i] = device.getRows();
+            if (rows[i] > 0) {
+                batches[i] = device.enqueueBatch(seed, rayDepth, sun, samples, readSamples, frameSpp);
+            }
+        }
+
+        return new Batch(samples, accumulatedSpp, batches, rows, readSamples);
+    }
+
+    /** A batch of samples that is rendering on all devices */
+    public class Batch implements RayTracer.Batch {
+        private final int samples;
+        private final int spp;
+        private final GpuRayTracer.Batch[] batches;
+        private final int[] rows;
+        private final boolean readback;
+
+        private Batch(int samples, int spp, GpuRayTracer.Batch[] batches, int[] rows, boolean readback) {
+            this.samples = samples;
+            this.spp = spp;
+            this.batches = batches;
+            this.rows = rows;
+            this.readback = readback;
+        }
+
+        /** Wait for the batch to finish and rebalance the devices */
+        @Override public void await() {
+            double slowest = 0;
+            double[] throughput = new double[batches.length];
+            double totalThroughput = 0;
+
+            for (int i = 0; i < batches.length; i++) {
+                if (batches[i] != null) {
+                    batches[i].await();
+                    double duration = Math.max(batches[i].getDuration(), 1e-3);
+                    slowest = Math.max(slowest, duration);
+                    throughput[i] = rows[i] / duration;
+                    totalThroughput += throughput[i];
+                }
+            }
+
+            // Aim for the target launch time, but at most double the batch size at once so a single
+            // fast launch does not overshoot.
+            int target = (int) (BATCH_TARGET_TIME / Math.max(slowest / samples, 1e-3));
+            batchSize = Math.max(1, Math.min(Math.min(target, samples * 2), MAX_BATCH_SIZE));
+
+            // Move rows towards the faster devices. Devices without rows keep their share.
+            if (devices.size() > 1 && totalThroughput > 0) {
+                double measuredShare = 0;
+                for (int i = 0; i < batches.length; i++) {
+                    if (batches[i] != null) {
+                        measuredShare += shares[i];
+                    }
+                }
+                for (int i = 0; i < batches.length; i++) {
+                    if (batches[i] != null) {
+                        shares[i] = 0.5 * shares[i] + 0.5 * measuredShare * throughput[i] / totalThroughput;
+                    }
+                }
+                if (splitRows(true)) {
+                    // The G-buffer of a row is on the device that previewed it
+                    gbufferRows = 0;
+                }
+            }
+        }
+
+        /** Number of samples per pixel in this batch */
+        @Override public int getSamples() {
+            return samples;
+        }
+
+        /** Total number of samples per pixel accumulated once this batch is done */
+        @Override public int getSpp() {
+            return spp;
+        }
+
+        /** Check if the samples are read back with this batch */
+        @Override public boolean hasSamples() {
+            return readback;
+        }
+
+        /** Store the average sample values read back with this batch. Only valid after await */
+        @Override public void readSamples(double[] samples) {
+            Arrays.fill(samples, 0);
+            for (GpuRayTracer.Batch batch : batches) {
+                if (batch != null) {
+                    batch.addSamples(samples, 1.0 / spp);
+                }
+            }
+        }
+
+        /** Number of pixels that were skipped by adaptive sampling on all devices. Only valid after await */
+        @Override public int getConvergedPixels() {
+            int converged = 0;
+            for (GpuRayTracer.Batch batch : batches) {
+                if (batch != null) {
+                    converged += batch.getConvergedPixels();
+                }
+            }
+            return converged;
+        }
+
+        /** Number of rays traced on all devices. Only valid after await */
+        @Override public long getRays() {
+            long rays = 0;
+            for (GpuRayTracer.Batch batch : batches) {
+                if (batch != null) {
+                    rays += batch.getRays();
+                }
+            }
+            return rays;
+        }
+
+        /** Time in milliseconds the slowest device spent on this batch. Only valid after await */
+        @Override public double getDuration() {
+            double duration = 0;
+            for (GpuRayTracer.Batch batch : batches) {
+                if (batch != null) {
+                    duration = Math.max(duration, batch.getDuration());
+                }
+            }
+            return duration;
+        }
+
+        /** Check if a post-processed frame is read back with this batch */
+        @Override public boolean hasFrame() {
+            for (GpuRayTracer.Batch batch : batches) {
+                if (batch != null) {
+                    return batch.hasFrame();
+                }
+            }
+            return false;
+        }
+
+        /** Store the rows of the post-processed frame read back from every device. Only valid after await */
+        @Override public void readFrame(int[] argb) {
+            for (GpuRayTracer.Batch batch : batches) {
+                if (batch != null) {
+                    batch.readFrame(argb);
+                }
+            }
+        }
+    }
+
+    /**
+     * Trace {@code samples} samples for every pixel and add them to the accumulation buffers. This
+     * blocks until the samples are done. Nothing is read back, use readAccumulation to get the result.
+     */
+    @Override public void rayTrace(int seed, int rayDepth, boolean preview, Sun sun, int samples) {
+        if (useCpu) {
+            cpu.rayTrace(seed, rayDepth, preview, sun, samples);
+            return;
+        }
+        for (GpuRayTracer device : devices) {
+            if (device.getRows() > 0) {
+                device.rayTrace(seed, rayDepth, preview, sun, samples);
+            }
+        }
+        for (GpuRayTracer device : devices) {
+            device.finish();
+        }
+
+        accumulatedSpp += samples;
+        if (preview) {
+            gbufferRows = height;
+        }
+    }
+
+    /**
+     * Trace {@code samples} samples for the pixels in the rows from {@code rowStart} to {@code rowEnd}
+     * on the devices that render these rows. This blocks until the samples are done.
+     */
+    @Override public void rayTrace(int seed, int rayDepth, boolean preview, Sun sun, int samples, int rowStart, int rowEnd) {
+        if (useCpu) {
+            cpu.rayTrace(seed, rayDepth, preview, sun, samples, rowStart, rowEnd);
+            return;
+        }
+        for (GpuRayTracer device : devices) {
+            device.rayTrace(seed, rayDepth, preview, sun, samples, rowStart, rowEnd);
+        }
+        for (GpuRayTracer device : devices) {
+            device.finish();
+        }
+
+        // Previews render the rows from the top, the G-buffer is complete once the last row is done
+        if (preview && rowStart <= gbufferRows) {
+            gbufferRows = Math.max(gbufferRows, rowEnd);
+        }
+    }
+
+    /** Relight the preview on every device, see RayTracer.relight */
+    @Override public boolean relight(Sun sun, float emitterScale) {
+        if (useCpu) {
+            return cpu.relight(sun, emitterScale);
+        }
+        if (gbufferRows < height) {
+            return false;
+        }
+
+        for (GpuRayTracer device : devices) {
+            device.relight(sun, emitterScale);
+        }
+        for (GpuRayTracer device : devices) {
+            device.finish();
+        }
+        accumulatedSpp = 1;
+        return true;
+    }
+
+    /** Reset the accumulation buffers to zero samples */
+    @Override public void clearAccumulation() {
+        if (useCpu) {
+            cpu.clearAccumulation();
+            return;
+        }
+        for (GpuRayTracer device : devices) {
+            device.clearAccumulation();
+        }
+        accumulatedSpp = 0;
+    }
+
+    /** Continue accumulating from an existing sample buffer averaged over {@code spp} samples */
+    @Override public void loadAccumulation(double[] samples, int spp) {
+        if (useCpu) {
+            cpu.loadAccumulation(samples, spp);
+            return;
+        }
+        for (GpuRayTracer device : devices) {
+            device.loadAccumulation(samples, spp);
+        }
+        accumulatedSpp = spp;
+    }
+
+    /** Read back the accumulation buffers and store the average sample values */
+    @Override public void readAccumulation(double[] samples) {
+        if (useCpu) {
+            cpu.readAccumulation(samples);
+            return;
+        }
+        Arrays.fill(samples, 0);
+        double scale = 1.0 / Math.max(accumulatedSpp, 1);
+        for (GpuRayTracer device : devices) {
+            device.addAccumulation(samples, scale);
+        }
+    }
+
+    /** Get the number of samples in the accumulation buffers, -1 if they have not been initialized */
+    @Override public int getAccumulatedSpp() {
+        if (useCpu) {
+            return cpu.getAccumulatedSpp();
+        }
+        return accumulatedSpp;
+    }
+
+    @Override public long getDeviceMemory() {
+        long size = cpu != null ? cpu.getDeviceMemory() : 0;
+        for (GpuRayTracer device : devices) {
+            size += device.getMemorySize();
+        }
+        return size;
+    }
+
+    /** Frames are post-processed on the devices, each device post-processes its rows */
+    @Override public boolean supportsFrames() {
+        if (useCpu) {
+            return cpu.supportsFrames();
+        }
+        return true;
+    }
+
+    /** Set the post processing used for frames */
+    @Override public void setPostprocess(Postprocess postprocess, double exposure, boolean preview) {
+        this.postprocess = postprocess;
+        this.exposure = exposure;
+        this.preview = preview;
+        if (cpu != null) {
+            cpu.setPostprocess(postprocess, exposure, preview);
+        }
+
+        int mode = RayTracer.postprocessMode(postprocess, preview);
+        for (GpuRayTracer device : devices) {
+            device.setPostprocess(mode, (float) exposure);
+        }
+    }
+
+    /**
+     * Post-process the accumulation buffers and read them back as ARGB pixels. Every device fills in
+     * its rows. Requires supportsFrames
+     */
+    @Override public void readFrame(int[] argb) {
+        if (useCpu) {
+            cpu.readFrame(argb);
+            return;
+        }
+        for (GpuRayTracer device : devices) {
+            device.readFrame(argb, 1.0 / Math.max(accumulatedSpp, 1));
+        }
+    }
+
+    /**
+     * Split the frame rows between the devices according to their shares.
+     *
+     * @param moveSamples true to move the samples of rows that change devices. The split is then only
+     * changed if a row range changes by more than MIN_ROW_CHANGE.
+     * @return true if the rows of any device changed
+     */
+    private boolean splitRows(boolean moveSamples) {
+        int n = devices.size();
+        int[] starts = new int[n];
+        int[] ends = new int[n];
+        int row = 0;
+        double cumulative = 0;
+        int change = 0;
+        for (int i = 0; i < n; i++) {
+            cumulative += shares[i];
+
+            // Every device gets at least one row if there are enough rows
+            int end = (int) Math.round(cumulative * height);
+            int min = Math.min(row + 1, height);
+            int max = Math.max(min, height - (n - 1 - i));
+            end = i == n - 1 ? height : Math.max(min, Math.min(end, max));
+
+            starts[i] = row;
+            ends[i] = end;
+            GpuRayTracer device = devices.get(i);
+            change = Math.max(change, Math.abs(device.getRowStart() - row));
+            change = Math.max(change, Math.abs(device.getRowEnd() - end));
+            row = end;
+        }
+
+        if (change == 0 || (moveSamples && change <= MIN_ROW_CHANGE * height)) {
+            return false;
+        }
+
+        // Move the rows a device gives up to the devices that render them next
+        if (moveSamples) {
+            for (int i = 0; i < n; i++) {
+                GpuRayTracer source = devices.get(i);
+                for (int j = 0; j < n; j++) {
+                    int start = Math.max(source.getRowStart(), starts[j]);
+                    int end = Math.min(source.getRowEnd(), ends[j]);
+                    if (i != j && end > start) {
+                        source.moveRows(devices.get(j), start, end);
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < n; i++) {
+            devices.get(i).setRows(starts[i], ends[i]);
+        }
+        return true;
+    }
+}
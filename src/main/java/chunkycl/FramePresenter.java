@@ -0,0 +1,194 @@
+package chunkycl;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import se.llbit.chunky.renderer.scene.Scene;
+import se.llbit.chunky.resources.BitmapImage;
+import se.llbit.log.Log;
+
+/**
+ * Turns the sample buffer into the displayed image. Frames are only finalized when new samples were
+ * published and at most {@code chunkycl.maxFps} times per second. The rows of a frame are split into
+ * bands which are finalized on a fixed size thread pool. Frames that were already post-processed on
+ * the device are displayed directly with presentFrame.
+ *
+ * <p>The sample buffer is read while holding the scene lock, so writers must hold it too.
+ */
+public class FramePresenter extends Thread {
+    /** Number of row bands per thread, more bands balance the load better */
+    private static final int BANDS_PER_THREAD = 4;
+
+    private final Scene scene;
+    private final Runnable repaint;
+    private final ExecutorService pool;
+    private final int threads;
+
+    /** Minimum time between frames in milliseconds */
+    public final long frameInterval;
+
+    // Number of times samples were published and the published count of the last presented frame
+    private int published = 0;
+    private int presented = 0;
+
+    // Back buffer of the scene for frames that were post-processed on the device, null if not accessible
+    private final Field backBuffer;
+
+    public FramePresenter(Scene scene, Runnable repaint, int threads) {
+        super("Frame Presenter");
+        setDaemon(true);
+
+        this.scene = scene;
+        this.repaint = repaint;
+        this.threads = Math.max(1, threads);
+
+        AtomicInteger count = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(this.threads, runnable -> {
+            Thread thread = new Thread(runnable, "3D Render Worker " + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        int maxFps = Integer.getInteger("chunkycl.maxFps", 10);
+        this.frameInterval = 1000 / Math.max(1, maxFps);
+
+        // Obtain the back buffer through reflection
+        Field field;
+        try {
+            field = Scene.class.getDeclaredField("backBuffer");
+            field.setAccessible(true);
+        } catch (NoSuchFieldException | SecurityException e) {
+            Log.warn("Could not access the scene back buffer, frames are post-processed on the CPU.");
+            field = null;
+        }
+        this.backBuffer = field;
+    }
+
+    /** Check if finished frames can be displayed with presentFrame */
+    public boolean canPresentFrames() {
+        return backBuffer != null;
+    }
+
+    /**
+     * Display a frame that was already post-processed. Samples published before are not presented
+     * since the frame is newer.
+     *
+     * @return false if the frame could not be displayed
+     */
+    public boolean presentFrame(int[] argb) {
+        synchronized (scene) {
+            try {
+                BitmapImage image = (BitmapImage) backBuffer.get(scene);
+                if (image.data.length != argb.length) {
+                    return false;
+                }
+                System.arraycopy(argb, 0, image.data, 0, argb.length);
+            } catch (IllegalAccessException e) {
+                return false;
+            }
+
+            scene.swapBuffers();
+        }
+
+        synchronized (this) {
+            presented = published;
+        }
+        repaint.run();
+        return true;
+    }
+
+    /** Signal that the sample buffer holds new samples. The frame is presented asynchronously. */
+    public synchronized void publish() {
+        published += 1;
+        notifyAll();
+    }
+
+    /** Finalize the sample buffer and display it immediately on the calling thread */
+    public void presentNow() throws InterruptedException {
+        int generation;
+        synchronized (this) {
+            generation = published;
+        }
+        present();
+        synchronized (this) {
+            presented = Math.max(presented, generation);
+        }
+    }
+
+    @Override public void run() {
+        try {
+            long lastPresentTime = 0;
+            while (!isInterrupted()) {
+                // Wait for new samples
+                synchronized (this) {
+                    while (published == presented) {
+                        wait();
+                    }
+                }
+
+                // Limit the frame rate, samples published meanwhile are included in this frame
+                long delay = lastPresentTime + frameInterval - System.currentTimeMillis();
+                if (delay > 0) {
+                    sleep(delay);
+                }
+
+                // A newer frame may have been presented meanwhile
+                synchronized (this) {
+                    if (published == presented) {
+                        continue;
+                    }
+                }
+
+                presentNow();
+                lastPresentTime = System.currentTimeMillis();
+            }
+        } catch (InterruptedException e) {
+            // Interrupted.
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** Finalize all pixels into the back buffer, swap buffers and repaint */
+    private void present() throws InterruptedException {
+        synchronized (scene) {
+            int width = scene.canvasWidth();
+            int height = scene.canvasHeight();
+            int bandHeight = Math.max(1, (height + threads * BANDS_PER_THREAD - 1) / (threads * BANDS_PER_THREAD));
+
+            List<Callable<Void>> bands = new ArrayList<>();
+            for (int start = 0; start < height; start += bandHeight) {
+                int bandStart = start;
+                int bandEnd = Math.min(height, start + bandHeight);
+                bands.add(() -> {
+                    for (int y = bandStart; y < bandEnd; y++) {
+                        for (int x = 0; x < width; x++) {
+                            scene.finalizePixel(x, y);
+                        }
+                    }
+                    return null;
+                });
+            }
+
+            for (Future<Void> band : pool.invokeAll(bands)) {
+                try {
+                    band.get();
+                } catch (ExecutionException e) {
+                    Log.error("Error while finalizing the frame.", e.getCause());
+                    return;
+                }
+            }
+
+            scene.swapBuffers();
+        }
+
+        repaint.run();
+    }
+}
@@ -2,113 +2,185 @@ package chunkycl;
 
 import static org.jocl.CL.*;
 
-import org.apache.commons.math3.util.FastMath;
 import org.jocl.*;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
-import java.lang.reflect.Field;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.LinkedList;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
 
-import se.llbit.chunky.block.Block;
-import se.llbit.chunky.chunk.BlockPalette;
-import se.llbit.chunky.renderer.scene.Scene;
+import se.llbit.chunky.PersistentSettings;
 import se.llbit.chunky.renderer.scene.Sun;
-import se.llbit.chunky.resources.Texture;
 import se.llbit.log.Log;
-import se.llbit.math.Octree;
-import se.llbit.math.PackedOctree;
-import se.llbit.math.Vector3;
-import se.llbit.util.TaskTracker;
 
+/**
+ * Ray tracer for a single OpenCL device. Each device holds its own copy of the scene and renders the
+ * rows of the frame assigned to it by the DeviceManager.
+ */
 public class GpuRayTracer {
-    private cl_mem octreeDepth = null;
     private cl_mem octreeData = null;
-    private cl_mem voxelLength = null;
-    private cl_mem transparentArray = null;
-    private cl_mem transparentLength = null;
     private cl_mem blockTextures = null;
     private cl_mem blockData = null;
 
+    // Light grid of the emissive blocks, see LightGrid
+    private cl_mem lightCells = null;
+    private cl_mem lightList = null;
+    private cl_mem lights = null;
+
+    private int octreeDepth;
+    private int voxelLength;
+
+    // The octree is stored in octreeData or octreeBuffer depending on the layout
+    private cl_mem octreeBuffer = null;
+    private int octreeLayout = OCTREE_LAYOUT_IMAGE;
+
+    // Size and slice hashes of the uploaded scene, used to skip unchanged data on reload
+    private long octreeSize = 0;
+    private long[] octreeSliceHashes = null;
+    private int[] uploadedTextures = null;
+    private int blockDataLength = 0;
+
+    /** Number of ints in one row of the octree image */
+    private static final int OCTREE_ROW_INTS = 8192 * 4;
+
+    /** Octree layouts, must match rayTracer.cl */
+    private static final int OCTREE_LAYOUT_IMAGE = 0;
+    private static final int OCTREE_LAYOUT_BUFFER = 1;
+
+    // Device limits for the octree storage
+    private final long maxImageHeight;
+    private final long maxAllocSize;
+
+    // Per frame buffers. These are kept across calls and only reallocated when the canvas grows.
+    private cl_mem rayTableBuffer = null;
+    private cl_mem accumBuffer = null;
+    private int frameCapacity = 0;
+    private int rayTableCapacity = 0;
+
+    // Camera state set by setCamera
+    private int width;
+    private int height;
+
+    // Rows rendered by this device
+    private int rowStart = 0;
+    private int rowEnd = 0;
+
+    // Rows with samples in the accumulation buffer. Rows outside of this range are zero.
+    private int touchedStart = 0;
+    private int touchedEnd = 0;
+
+    // Direct staging buffers for asynchronous readback, alternated between batches.
+    // Non-blocking transfers are only possible with direct buffers.
+    private final FloatBuffer[] readbackBuffers = new FloatBuffer[2];
+    private final IntBuffer[] frameBuffers = new IntBuffer[2];
+    private int nextReadbackBuffer = 0;
+
+    // Host staging array of loadAccumulation and addAccumulation, kept across calls
+    private float[] accumulationStaging = new float[0];
+
+    // Post processed ARGB frame
+    private cl_mem frameBuffer = null;
+
+    // Adaptive sampling statistics, 4 floats per pixel
+    private cl_mem statsBuffer = null;
+
+    // Pixels that are not converged, compacted by the adaptiveQueue kernel and traced by adaptive launches
+    private cl_mem pixelQueue = null;
+    private cl_mem pixelQueueLength;
+
+    // Upper bound of the pixels in the rows of this device that are not converged. Converged pixels stay
+    // converged, so the count of any finished batch bounds the following launches.
+    private int activePixels = Integer.MAX_VALUE;
+
+    // First hits of the preview, GBUFFER_SIZE floats per pixel
+    private cl_mem gbufferBuffer = null;
+    private static final int GBUFFER_SIZE = 10;
+
+    // Counters of a launch, the number of converged pixels and the number of rays traced
+    private cl_mem countersBuffer;
+    private static final int COUNTER_CONVERGED = 0;
+    private static final int COUNTER_RAYS = 1;
+    private static final int COUNTERS = 2;
+
+    // Start and kernel events of rayTrace calls, profiled once finish returns
+    private final List<cl_event[]> rayTraceEvents = new ArrayList<>();
+
     private cl_program program;
     private cl_kernel kernel;
+    private cl_kernel postprocessKernel;
+    private cl_kernel relightKernel;
+    private cl_kernel adaptiveKernel;
+
+    // Wavefront engine used instead of the rayTracer kernel, null if not enabled
+    private final Wavefront wavefront;
 
     private cl_context context;
     private cl_command_queue commandQueue;
 
     private int[] version;
 
+    private final String name;
+
     public final long workgroupSize;
 
     private static String programSource;
 
-    @SuppressWarnings("deprecation")
-    GpuRayTracer() {
-        // The platform, device type and device number
-        final int platformIndex = 0;
-        final long deviceType = CL_DEVICE_TYPE_ALL;
-        final int deviceIndex = 0;
+    /** Options passed to the OpenCL compiler */
+    private static final String BUILD_OPTIONS = "";
 
-        // Load program source
-        InputStream programStream = GpuRayTracer.class.getClassLoader().getResourceAsStream("rayTracer.cl");
-        assert programStream != null;
-        Scanner s = new Scanner(programStream).useDelimiter("\\A");
-        programSource = s.hasNext() ? s.next() : "";
-
-        // Enable exceptions
-        CL.setExceptionsEnabled(true);
+    /**
+     * Trace with the wavefront kernels instead of the rayTracer megakernel. Set with
+     * {@code chunkycl.engine=wavefront}.
+     */
+    private static final boolean WAVEFRONT = "wavefront".equalsIgnoreCase(System.getProperty("chunkycl.engine"));
 
-        // Obtain the number of platforms
-        int[] numPlatformsArray = new int[1];
-        clGetPlatformIDs(0, null, numPlatformsArray);
-        int numPlatforms = numPlatformsArray[0];
-
-        // Obtain a platform ID
-        cl_platform_id[] platforms = new cl_platform_id[numPlatforms];
-        clGetPlatformIDs(platforms.length, platforms, null);
-        cl_platform_id platform = platforms[platformIndex];
+    @SuppressWarnings("deprecation")
+    GpuRayTracer(cl_platform_id platform, cl_device_id device) {
+        // Load program source
+        synchronized (GpuRayTracer.class) {
+            if (programSource == null) {
+                InputStream programStream = GpuRayTracer.class.getClassLoader().getResourceAsStream("rayTracer.cl");
+                assert programStream != null;
+                Scanner s = new Scanner(programStream).useDelimiter("\\A");
+                programSource = s.hasNext() ? s.next() : "";
+            }
+        }
 
         // Initialize the context properties
         cl_context_properties contextProperties = new cl_context_properties();
         contextProperties.addProperty(CL_CONTEXT_PLATFORM, platform);
 
-        // Obtain the number of devices for the platform
-        int[] numDevicesArray = new int[1];
-        clGetDeviceIDs(platform, deviceType, 0, null, numDevicesArray);
-        int numDevices = numDevicesArray[0];
-
-        // Obtain a device ID
-        cl_device_id[] devices = new cl_device_id[numDevices];
-        clGetDeviceIDs(platform, deviceType, numDevices, devices, null);
-        cl_device_id device = devices[deviceIndex];
-
-        // Print out all connected devices
-        System.out.println("OpenCL Devices:");
-        for (int i = 0; i < numDevices; i++) {
-            System.out.println("  [" + i  + "] " + getString(devices[i], CL_DEVICE_NAME));
-        }
-
-        // Print out selected device
-        System.out.println("\nUsing: " + getString(device, CL_DEVICE_NAME));
-
+        name = getString(device, CL_DEVICE_NAME);
         workgroupSize = getSizes(device, CL_DEVICE_MAX_WORK_GROUP_SIZE, 1)[0];
+        maxImageHeight = getSizes(device, CL_DEVICE_IMAGE2D_MAX_HEIGHT, 1)[0];
+        maxAllocSize = getLong(device, CL_DEVICE_MAX_MEM_ALLOC_SIZE);
 
         // Create a context for the selected device
         context = clCreateContext(
                 contextProperties, 1, new cl_device_id[]{device},
                 null, null, null);
 
-        // Create a command-queue for the selected device
+        // Create a command-queue for the selected device. Profiling is enabled for the stage timers.
         cl_queue_properties properties = new cl_queue_properties();
+        properties.addProperty(CL_QUEUE_PROPERTIES, CL_QUEUE_PROFILING_ENABLE);
 
         // Get OpenCL version
         this.version = new int[2];
         String versionString = getString(device, CL_DEVICE_VERSION);
         this.version[0] = Integer.parseInt(versionString.substring(7, 8));
         this.version[1] = Integer.parseInt(versionString.substring(9, 10));
+        System.out.println("Using: " + name);
         System.out.println("       " + versionString);
 
         // Create command queue with correct version
@@ -117,7 +189,7 @@ public class GpuRayTracer {
                     context, device, properties, null);
         } else {
             commandQueue = clCreateCommandQueue(
-                    context, device, 0, null);
+                    context, device, CL_QUEUE_PROFILING_ENABLE, null);
         }
 
         // Check if version is behind
@@ -125,13 +197,43 @@ public class GpuRayTracer {
             Log.error("OpenCL 1.2+ required.");
         }
 
-        // Create the program
-        program = clCreateProgramWithSource(context, 1, new String[] {programSource},
-                null, null);
+        // Create the program, using a cached binary if there is one for this device and driver
+        File cacheFile = programCacheFile(device);
+        program = loadProgramBinary(device, cacheFile);
+
+        if (program == null) {
+            program = clCreateProgramWithSource(context, 1, new String[] {programSource},
+                    null, null);
+
+            // Build the program
+            buildProgram(device);
+            saveProgramBinary(cacheFile);
+        }
 
-        // Build the program
+        // Create the kernels
+        kernel = clCreateKernel(program, "rayTracer", null);
+        postprocessKernel = clCreateKernel(program, "postprocess", null);
+        relightKernel = clCreateKernel(program, "relight", null);
+        adaptiveKernel = clCreateKernel(program, "adaptiveQueue", null);
+
+        // Adaptive sampling settings, the pixel queue length and the launch counters
+        countersBuffer = clCreateBuffer(context, CL_MEM_READ_WRITE, Sizeof.cl_int * COUNTERS, null, null);
+        pixelQueueLength = clCreateBuffer(context, CL_MEM_READ_WRITE, Sizeof.cl_int, null, null);
+        clSetKernelArg(kernel, 23, Sizeof.cl_mem, Pointer.to(countersBuffer));
+        clSetKernelArg(kernel, 25, Sizeof.cl_mem, Pointer.to(pixelQueueLength));
+        clSetKernelArg(adaptiveKernel, 3, Sizeof.cl_mem, Pointer.to(countersBuffer));
+        clSetKernelArg(adaptiveKernel, 4, Sizeof.cl_float, Pointer.to(new float[] {RayTracer.ADAPTIVE_THRESHOLD}));
+        clSetKernelArg(adaptiveKernel, 5, Sizeof.cl_int, Pointer.to(new int[] {RayTracer.ADAPTIVE_MIN_SAMPLES}));
+        clSetKernelArg(adaptiveKernel, 7, Sizeof.cl_mem, Pointer.to(pixelQueueLength));
+
+        wavefront = WAVEFRONT ? new Wavefront(context, commandQueue, program, countersBuffer, pixelQueueLength) : null;
+        System.out.println("       " + (WAVEFRONT ? "wavefront" : "megakernel") + " engine");
+    }
+
+    /** Build the program and print the build log on failure */
+    private void buildProgram(cl_device_id device) {
         try {
-            clBuildProgram(program, 0, null, null, null, null);
+            clBuildProgram(program, 0, null, BUILD_OPTIONS, null, null);
         } catch (CLException e) {
             if (e.getStatus() == CL_BUILD_PROGRAM_FAILURE) {
                 // Obtain the length of the string that will be queried
@@ -148,258 +250,904 @@ public class GpuRayTracer {
 
             throw e;
         }
-
-        // Create the kernel
-        kernel = clCreateKernel(program, "rayTracer", null);
     }
 
-    @SuppressWarnings("unchecked")
-    public void load(Scene scene, TaskTracker.Task renderTask) {
-        Octree octree;
-        int[] treeData;
+    /**
+     * Get the program cache file for a device. The file name is a hash of everything that affects the
+     * compiled binary, so a driver update or a changed kernel never loads a stale binary.
+     *
+     * @return the cache file or null if caching is disabled
+     */
+    private static File programCacheFile(cl_device_id device) {
+        if (!Boolean.parseBoolean(System.getProperty("chunkycl.programCache", "true"))) {
+            return null;
+        }
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            String key = getString(device, CL_DEVICE_NAME) + "\n"
+                    + getString(device, CL_DRIVER_VERSION) + "\n"
+                    + getString(device, CL_DEVICE_VERSION) + "\n"
+                    + BUILD_OPTIONS + "\n"
+                    + programSource;
+            byte[] hash = digest.digest(key.getBytes(StandardCharsets.UTF_8));
+
+            StringBuilder name = new StringBuilder();
+            for (byte b : hash) {
+                name.append(String.format("%02x", b));
+            }
 
-        // Free opencl memory if applicable
-        if (this.octreeData != null) {
-            clReleaseMemObject(this.octreeData);
-            clReleaseMemObject(this.voxelLength);
-            clReleaseMemObject(this.transparentArray);
-            clReleaseMemObject(this.transparentLength);
-            clReleaseMemObject(this.blockTextures);
-            clReleaseMemObject(this.blockData);
+            File cacheDirectory = new File(PersistentSettings.settingsDirectory(), "chunkycl-cache");
+            return new File(cacheDirectory, name + ".bin");
+        } catch (NoSuchAlgorithmException e) {
+            return null;
         }
+    }
 
-        renderTask.update("Loading Octree into GPU", 3, 0);
+    /**
+     * Create and build the program from a cached binary.
+     *
+     * @return the program or null if there is no usable cached binary
+     */
+    private cl_program loadProgramBinary(cl_device_id device, File cacheFile) {
+        if (cacheFile == null || !cacheFile.isFile()) {
+            return null;
+        }
 
-        // Obtain octree through reflection
+        cl_program binaryProgram = null;
         try {
-            Field worldOctree = scene.getClass().getDeclaredField("worldOctree");
-            worldOctree.setAccessible(true);
-            octree = (Octree) worldOctree.get(scene);
-
-            Field worldOctreeImplementation = octree.getClass().getDeclaredField("implementation");
-            worldOctreeImplementation.setAccessible(true);
-            PackedOctree packedWorldOctree = (PackedOctree) worldOctreeImplementation.get(octree);
-
-            Field worldOctreeTreeData = packedWorldOctree.getClass().getDeclaredField("treeData");
-            worldOctreeTreeData.setAccessible(true);
-            treeData = (int[]) worldOctreeTreeData.get(packedWorldOctree);
-        } catch (NoSuchFieldException | IllegalAccessException e) {
-            e.printStackTrace();
+            byte[] binary = Files.readAllBytes(cacheFile.toPath());
+            int[] binaryStatus = new int[1];
+            binaryProgram = clCreateProgramWithBinary(context, 1, new cl_device_id[] {device},
+                    new long[] {binary.length}, new byte[][] {binary}, binaryStatus, null);
+            if (binaryStatus[0] != CL_SUCCESS) {
+                throw new CLException("Invalid program binary", binaryStatus[0]);
+            }
+            clBuildProgram(binaryProgram, 0, null, BUILD_OPTIONS, null, null);
+            return binaryProgram;
+        } catch (IOException | CLException e) {
+            // Stale or corrupt cache, rebuild from source
+            Log.info("Ignoring cached OpenCL program " + cacheFile.getName() + ": " + e.getMessage());
+            if (binaryProgram != null) {
+                clReleaseProgram(binaryProgram);
+            }
+            if (!cacheFile.delete()) {
+                Log.warn("Could not delete cached OpenCL program " + cacheFile);
+            }
+            return null;
+        }
+    }
+
+    /** Store the binary of the built program in the cache */
+    private void saveProgramBinary(File cacheFile) {
+        if (cacheFile == null) {
             return;
         }
 
-        // Load bounds into memory
-        this.octreeDepth = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_int, Pointer.to(new int[] {octree.getDepth()}), null);
+        try {
+            long[] size = new long[1];
+            clGetProgramInfo(program, CL_PROGRAM_BINARY_SIZES, Sizeof.size_t, Pointer.to(size), null);
+            if (size[0] <= 0) {
+                return;
+            }
 
-        // Load octree into texture memory for performance reasons
-        // Octree data taken from packed octree is turned into a 8192 x (x) image
-        // Data is loaded into the rgba channels to maximize efficiency
-        cl_image_format format = new cl_image_format();
-        format.image_channel_data_type = CL_SIGNED_INT32;
-        format.image_channel_order = CL_RGBA;
+            byte[] binary = new byte[(int) size[0]];
+            clGetProgramInfo(program, CL_PROGRAM_BINARIES, Sizeof.POINTER, Pointer.to(Pointer.to(binary)), null);
 
-        int[] treeDataCopy = new int[(treeData.length/8192 + 1) * 8192];
-        System.arraycopy(treeData, 0, treeDataCopy, 0, treeData.length);
+            // Write to a temporary file first so a crash never leaves a partial binary behind
+            File cacheDirectory = cacheFile.getParentFile();
+            if (!cacheDirectory.isDirectory() && !cacheDirectory.mkdirs()) {
+                return;
+            }
+            File tempFile = new File(cacheDirectory, cacheFile.getName() + ".tmp");
+            Files.write(tempFile.toPath(), binary);
+            Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | CLException e) {
+            Log.warn("Could not cache OpenCL program: " + e.getMessage());
+        }
+    }
 
-        cl_image_desc desc = new cl_image_desc();
-        desc.image_type = CL_MEM_OBJECT_IMAGE2D;
-        desc.image_width = Math.min(treeData.length, 8192);
-        desc.image_height = treeData.length / 8192 + 1;
+    /** Get the name of the device */
+    public String getName() {
+        return name;
+    }
 
-        this.octreeData = clCreateImage(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                format, desc, Pointer.to(treeDataCopy), null);
+    /**
+     * Upload the scene to the device. Images that keep their size are reused and only the parts that
+     * changed since the last upload are written.
+     *
+     * @param octreeChanged false if only the materials changed and the octree can be kept
+     */
+    public void load(SceneData data, boolean octreeChanged) {
+        if (octreeChanged || this.octreeData == null) {
+            long start = System.nanoTime();
+            loadOctree(data);
+            RenderTimers.INSTANCE.recordSince("load.octree", start);
+        }
+        long start = System.nanoTime();
+        loadMaterials(data);
+        RenderTimers.INSTANCE.recordSince("load.materials", start);
+        start = System.nanoTime();
+        LightGrid lightGrid = data.getLightGrid();
+        loadLights(lightGrid);
+        RenderTimers.INSTANCE.recordSince("load.lights", start);
+
+        // Scene arguments do not change between samples so they are only set once per load
+        clSetKernelArg(kernel, 2, Sizeof.cl_int, Pointer.to(new int[] {octreeDepth}));
+        clSetKernelArg(kernel, 3, Sizeof.cl_mem, Pointer.to(octreeData));
+        clSetKernelArg(kernel, 4, Sizeof.cl_int, Pointer.to(new int[] {voxelLength}));
+        clSetKernelArg(kernel, 5, Sizeof.cl_mem, Pointer.to(blockTextures));
+        clSetKernelArg(kernel, 6, Sizeof.cl_mem, Pointer.to(blockData));
+        clSetKernelArg(kernel, 20, Sizeof.cl_mem, Pointer.to(octreeBuffer));
+        clSetKernelArg(kernel, 21, Sizeof.cl_int, Pointer.to(new int[] {octreeLayout}));
+        clSetKernelArg(kernel, 29, Sizeof.cl_mem, Pointer.to(lightCells));
+        clSetKernelArg(kernel, 30, Sizeof.cl_mem, Pointer.to(lightList));
+        clSetKernelArg(kernel, 31, Sizeof.cl_mem, Pointer.to(lights));
+        clSetKernelArg(kernel, 32, Sizeof.cl_int, Pointer.to(new int[] {lightGrid.size}));
+        clSetKernelArg(kernel, 33, Sizeof.cl_int, Pointer.to(new int[] {lightGrid.cellShift}));
+        clSetKernelArg(relightKernel, 1, Sizeof.cl_mem, Pointer.to(blockData));
+
+        if (wavefront != null) {
+            wavefront.setScene(octreeDepth, octreeData, octreeBuffer, octreeLayout, blockTextures, blockData);
+            wavefront.setLights(lightCells, lightList, lights, lightGrid.size, lightGrid.cellShift);
+        }
+    }
 
-        this.voxelLength = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_int, Pointer.to(new int[] {treeData.length}), null);
+    /**
+     * Upload the light grid. It depends on both the octree and the block data, so it is uploaded again
+     * on every load. The grid is small compared to the octree.
+     */
+    private void loadLights(LightGrid lightGrid) {
+        if (this.lightCells != null) {
+            clReleaseMemObject(this.lightCells);
+            clReleaseMemObject(this.lightList);
+            clReleaseMemObject(this.lights);
+        }
 
-        renderTask.update("Loading blocks into GPU", 3, 1);
+        this.lightCells = createIntBuffer(lightGrid.cells);
+        this.lightList = createIntBuffer(lightGrid.lightList);
+        this.lights = createIntBuffer(lightGrid.emitters);
+    }
 
-        // Create transparent block table
-        List<Integer> transparentList = new LinkedList<>();
-        List<Block> blockPalette;
-        BlockPalette palette = scene.getPalette();
+    /** Create a read only buffer with a copy of an array, at least one int long */
+    private cl_mem createIntBuffer(int[] values) {
+        int[] data = values.length > 0 ? values : new int[1];
+        return clCreateBuffer(context, CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
+                (long) Sizeof.cl_int * data.length, Pointer.to(data), null);
+    }
 
-        // Get block palette through reflection
-        try {
-            Field blockPaletteList = palette.getClass().getDeclaredField("palette");
-            blockPaletteList.setAccessible(true);
-            blockPalette = (List<Block>) blockPaletteList.get(palette);
-        } catch (NoSuchFieldException | IllegalAccessException e) {
-            e.printStackTrace();
-            return;
+    /**
+     * Upload the octree. The octree is stored in a 8192 x (x) image with 4 ints per texel if it fits in
+     * an image on this device and in a plain buffer otherwise. Slices of the tree are compared by hash
+     * with the last upload and only changed slices are written.
+     *
+     * @throws CLException if the octree does not fit in a single allocation on this device. The last
+     * octree is kept in that case.
+     */
+    private void loadOctree(SceneData data) {
+        int[] treeData = data.treeData;
+        long[] sliceHashes = data.getOctreeSliceHashes();
+        int rows = Math.max(1, (treeData.length + OCTREE_ROW_INTS - 1) / OCTREE_ROW_INTS);
+        long imageBytes = (long) rows * OCTREE_ROW_INTS * Sizeof.cl_int;
+        long bufferBytes = (long) Math.max(1, treeData.length) * Sizeof.cl_int;
+
+        // Images are preferred since reads go through the texture cache
+        String forcedLayout = System.getProperty("chunkycl.octreeLayout", "auto");
+        int layout;
+        if (forcedLayout.equalsIgnoreCase("buffer")) {
+            layout = OCTREE_LAYOUT_BUFFER;
+        } else if (forcedLayout.equalsIgnoreCase("image")) {
+            layout = OCTREE_LAYOUT_IMAGE;
+            if (rows > maxImageHeight || imageBytes > maxAllocSize) {
+                Log.warn(name + ": octree needs " + rows + " image rows, device supports " + maxImageHeight
+                        + ", using a buffer instead of the image forced by chunkycl.octreeLayout");
+                layout = OCTREE_LAYOUT_BUFFER;
+            }
+        } else {
+            layout = rows <= maxImageHeight && imageBytes <= maxAllocSize ? OCTREE_LAYOUT_IMAGE : OCTREE_LAYOUT_BUFFER;
+        }
+        long size = layout == OCTREE_LAYOUT_IMAGE ? rows : treeData.length;
+
+        if (layout == OCTREE_LAYOUT_BUFFER && bufferBytes > maxAllocSize) {
+            throw new CLException(name + ": octree of " + bufferBytes / (1024 * 1024) + " MB exceeds the maximum "
+                    + "allocation size of " + maxAllocSize / (1024 * 1024) + " MB", CL_INVALID_BUFFER_SIZE);
         }
 
-        // Build transparent block list
-        for (int i = 0; i < blockPalette.size(); i++) {
-            if (palette.get(i).invisible)
-                transparentList.add(i);
-        }
-
-        // Convert transparent block list into array
-        int[] transparent = new int[transparentList.size()];
-        for (int i = 0; i < transparent.length; i++) {
-            transparent[i] = transparentList.remove(0);
-        }
-
-        // Load transparent block list onto gpu as array.
-        // Size is relatively small so there is no need to load it as a texture
-        this.transparentArray = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                (long) Sizeof.cl_int * transparent.length,
-                Pointer.to(transparent), null);
-
-        this.transparentLength = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR, Sizeof.cl_int,
-                Pointer.to(new int[] {transparent.length}), null);
-
-        renderTask.update("Loading Block Textures into GPU", 3, 2);
-
-        // Load all block textures into GPU texture memory
-        // Load block texture data directly into an array which is dynamically sized for non-full blocks
-        Texture stoneTexture = blockPalette.get(palette.stoneId).getTexture(0);
-        int[] blockTexturesArray = new int[stoneTexture.getData().length * blockPalette.size()];
-        int[] blockIndexesArray = new int[blockPalette.size() * 4];
-        int index = 0;
-        for (int i = 0; i < blockPalette.size(); i++) {
-            Block block = blockPalette.get(i);
-            Texture texture = block.getTexture(0);
-            int[] textureData = texture.getData();
-
-            // Resize array if necessary
-            if (index + textureData.length > blockTexturesArray.length) {
-                int[] tempCopyArray = new int[blockTexturesArray.length];
-                System.arraycopy(blockTexturesArray, 0, tempCopyArray, 0, blockTexturesArray.length);
-                blockTexturesArray = new int[blockTexturesArray.length + 4*textureData.length];
-                System.arraycopy(tempCopyArray, 0, blockTexturesArray, 0, tempCopyArray.length);
+        // Allocate new memory if the layout or size changed
+        if (this.octreeData == null || layout != this.octreeLayout || size != this.octreeSize) {
+            if (this.octreeData != null) {
+                clReleaseMemObject(this.octreeData);
+                clReleaseMemObject(this.octreeBuffer);
+                this.octreeData = null;
+                this.octreeBuffer = null;
             }
 
-            // Add block texture data
-            blockIndexesArray[i*4] = index;
-            System.arraycopy(textureData, 0, blockTexturesArray, index, textureData.length);
-            index += textureData.length;
+            cl_image_format format = new cl_image_format();
+            format.image_channel_data_type = CL_SIGNED_INT32;
+            format.image_channel_order = CL_RGBA;
+
+            cl_image_desc desc = new cl_image_desc();
+            desc.image_type = CL_MEM_OBJECT_IMAGE2D;
+
+            // The unused storage is a minimal placeholder so the kernel arguments are always valid
+            if (layout == OCTREE_LAYOUT_IMAGE) {
+                desc.image_width = OCTREE_ROW_INTS / 4;
+                desc.image_height = rows;
+                this.octreeData = clCreateImage(context, CL_MEM_READ_ONLY, format, desc, null, null);
+                this.octreeBuffer = clCreateBuffer(context, CL_MEM_READ_ONLY, Sizeof.cl_int, null, null);
+                Log.info(name + ": octree stored in a " + desc.image_width + " x " + rows + " image, "
+                        + imageBytes / (1024 * 1024) + " MB");
+            } else {
+                desc.image_width = 1;
+                desc.image_height = 1;
+                this.octreeData = clCreateImage(context, CL_MEM_READ_ONLY, format, desc, null, null);
+                this.octreeBuffer = clCreateBuffer(context, CL_MEM_READ_ONLY, bufferBytes, null, null);
+                Log.info(name + ": octree stored in a buffer, " + bufferBytes / (1024 * 1024) + " MB"
+                        + " (image would need " + rows + " rows, device supports " + maxImageHeight + ")");
+            }
 
-            // Include block information in auxiliary array
-            blockIndexesArray[i*4 + 1] = (int) (block.emittance * scene.getEmitterIntensity() * 256);
-            blockIndexesArray[i*4 + 2] = (int) (block.specular * 256);
+            this.octreeLayout = layout;
+            this.octreeSize = size;
+            this.octreeSliceHashes = null;
+        }
 
-            // x = index, y/256 = emittance, z/256 = specular
+        // Write the slices that changed
+        int sliceRows = SceneData.OCTREE_SLICE_INTS / OCTREE_ROW_INTS;
+        for (int slice = 0; slice < sliceHashes.length; slice++) {
+            if (octreeSliceHashes == null || slice >= octreeSliceHashes.length
+                    || octreeSliceHashes[slice] != sliceHashes[slice]) {
+                if (layout == OCTREE_LAYOUT_IMAGE) {
+                    writeOctreeRows(treeData, slice * sliceRows, Math.min((slice + 1) * sliceRows, rows));
+                } else {
+                    int start = slice * SceneData.OCTREE_SLICE_INTS;
+                    int end = Math.min(start + SceneData.OCTREE_SLICE_INTS, treeData.length);
+                    clEnqueueWriteBuffer(commandQueue, octreeBuffer, CL_TRUE,
+                            (long) start * Sizeof.cl_int, (long) (end - start) * Sizeof.cl_int,
+                            Pointer.to(treeData).withByteOffset((long) start * Sizeof.cl_int), 0, null, null);
+                }
+            }
         }
 
-        // Copy block texture data into fitted array to prevent Segfaults
-        int[] blockTexturesArrayCopy = new int[(blockTexturesArray.length/8192/3 + 1) * 8192 * 3];
-        System.arraycopy(blockTexturesArray, 0, blockTexturesArrayCopy, 0, blockTexturesArray.length);
+        this.octreeSliceHashes = sliceHashes;
+        this.octreeDepth = data.depth;
+        this.voxelLength = treeData.length;
+    }
 
-        // Load arrays as images.
-        format.image_channel_data_type = CL_UNSIGNED_INT32;
+    /**
+     * Write rows of the octree image. Full rows are written directly from the tree array, only the last
+     * partial row is padded.
+     */
+    private void writeOctreeRows(int[] treeData, int rowStart, int rowEnd) {
+        int fullEnd = Math.min(rowEnd, treeData.length / OCTREE_ROW_INTS);
+        if (fullEnd > rowStart) {
+            clEnqueueWriteImage(commandQueue, octreeData, CL_TRUE,
+                    new long[] {0, rowStart, 0}, new long[] {OCTREE_ROW_INTS / 4, fullEnd - rowStart, 1}, 0, 0,
+                    Pointer.to(treeData).withByteOffset((long) rowStart * OCTREE_ROW_INTS * Sizeof.cl_int),
+                    0, null, null);
+        }
+
+        int partialRow = Math.max(fullEnd, rowStart);
+        if (partialRow < rowEnd) {
+            int[] row = new int[OCTREE_ROW_INTS];
+            int offset = partialRow * OCTREE_ROW_INTS;
+            System.arraycopy(treeData, offset, row, 0, Math.max(0, Math.min(treeData.length - offset, row.length)));
+            clEnqueueWriteImage(commandQueue, octreeData, CL_TRUE,
+                    new long[] {0, partialRow, 0}, new long[] {OCTREE_ROW_INTS / 4, 1, 1}, 0, 0,
+                    Pointer.to(row), 0, null, null);
+        }
+    }
+
+    /** Upload the block textures and block data, reusing the images if their size did not change */
+    private void loadMaterials(SceneData data) {
+        // The ARGB ints of the atlas are converted to RGBA bytes, since the byte order of the ints in
+        // memory depends on the host. They are normalized to floats when read.
+        cl_image_format format = new cl_image_format();
+        format.image_channel_data_type = CL_UNORM_INT8;
         format.image_channel_order = CL_RGBA;
 
+        cl_image_desc desc = new cl_image_desc();
         desc.image_type = CL_MEM_OBJECT_IMAGE2D;
-        desc.image_width = Math.min(blockTexturesArray.length/3, 8192);
-        desc.image_height = blockTexturesArray.length / 8192 / 3 + 1;
+        desc.image_width = TextureAtlas.WIDTH;
+        desc.image_height = data.blockTextures.length / TextureAtlas.WIDTH;
 
-        blockTextures = clCreateImage(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR, format, desc,
-                Pointer.to(blockTexturesArrayCopy), null);
+        if (this.blockTextures == null || data.blockTextures.length != this.uploadedTextures.length) {
+            if (this.blockTextures != null) {
+                clReleaseMemObject(this.blockTextures);
+            }
+            this.blockTextures = clCreateImage(context,
+                    CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR, format, desc,
+                    Pointer.to(TextureAtlas.toRgba(data.blockTextures)), null);
+        } else if (data.blockTextures != this.uploadedTextures) {
+            // The atlas is cached, so an unchanged atlas is the same array as the last upload
+            clEnqueueWriteImage(commandQueue, blockTextures, CL_TRUE, new long[] {0, 0, 0},
+                    new long[] {desc.image_width, desc.image_height, 1}, 0, 0,
+                    Pointer.to(TextureAtlas.toRgba(data.blockTextures)), 0, null, null);
+        }
+        this.uploadedTextures = data.blockTextures;
 
         format.image_channel_data_type = CL_SIGNED_INT32;
         format.image_channel_order = CL_RGBA;
 
+        // One int4 texel per block, see SceneData.blockData
         desc.image_type = CL_MEM_OBJECT_IMAGE1D;
-        desc.image_width = blockIndexesArray.length / 3;
-        blockData = clCreateImage(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR, format, desc,
-                Pointer.to(blockIndexesArray), null);
-
-        renderTask.update("Loading GPU", 3, 3);
-    }
-
-    public float[] rayTrace(float[] rayDirs, Vector3 origin, int seed, int rayDepth, boolean preview, Sun sun) {
-        // Results array
-        float[] rayRes = new float[rayDirs.length];
-
-        float[] rayPos = new float[3];
-        rayPos[0] = (float) origin.x;
-        rayPos[1] = (float) origin.y;
-        rayPos[2] = (float) origin.z;
-
-        float[] sunPos = new float[3];
-        sunPos[0] = (float) (FastMath.cos(sun.getAzimuth()) * FastMath.cos(sun.getAltitude()));
-        sunPos[1] = (float) (FastMath.sin(sun.getAltitude()));
-        sunPos[2] = (float) (FastMath.sin(sun.getAzimuth()) * FastMath.cos(sun.getAltitude()));
-
-        Pointer srcRayRes = Pointer.to(rayRes);
-
-        // Transfer arguments to GPU memory
-        cl_mem clRayPos = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                (long) Sizeof.cl_float * rayPos.length, Pointer.to(rayPos), null);
-        cl_mem clNormCoords = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                (long) Sizeof.cl_float * rayDirs.length, Pointer.to(rayDirs), null);
-        cl_mem clSeed = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_int, Pointer.to(new int[] {seed}), null);
-        cl_mem clRayDepth = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_int, Pointer.to(new int[] {rayDepth}), null);
-        cl_mem clSunPos = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_float * 3, Pointer.to(sunPos), null);
-        cl_mem clPreview = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_int, Pointer.to(new int[] {preview ? 1 : 0}), null);
-
-        cl_mem clRayRes = clCreateBuffer(context, CL_MEM_WRITE_ONLY,
-                (long) Sizeof.cl_float * rayRes.length, null, null);
-
-        // Set the arguments
-        clSetKernelArg(kernel, 0, Sizeof.cl_mem, Pointer.to(clRayPos));
-        clSetKernelArg(kernel, 1, Sizeof.cl_mem, Pointer.to(clNormCoords));
-        clSetKernelArg(kernel, 2, Sizeof.cl_mem, Pointer.to(octreeDepth));
-        clSetKernelArg(kernel, 3, Sizeof.cl_mem, Pointer.to(octreeData));
-        clSetKernelArg(kernel, 4, Sizeof.cl_mem, Pointer.to(voxelLength));
-        clSetKernelArg(kernel, 5, Sizeof.cl_mem, Pointer.to(transparentArray));
-        clSetKernelArg(kernel, 6, Sizeof.cl_mem, Pointer.to(transparentLength));
-        clSetKernelArg(kernel, 7, Sizeof.cl_mem, Pointer.to(blockTextures));
-        clSetKernelArg(kernel, 8, Sizeof.cl_mem, Pointer.to(blockData));
-        clSetKernelArg(kernel, 9, Sizeof.cl_mem, Pointer.to(clSeed));
-        clSetKernelArg(kernel, 10, Sizeof.cl_mem, Pointer.to(clRayDepth));
-        clSetKernelArg(kernel, 11, Sizeof.cl_mem, Pointer.to(clPreview));
-        clSetKernelArg(kernel, 12, Sizeof.cl_mem, Pointer.to(clSunPos));
-        clSetKernelArg(kernel, 13, Sizeof.cl_mem, Pointer.to(clRayRes));
-
-        // Work size = rays
-        long[] global_work_size = new long[]{rayRes.length/3};
+        desc.image_width = data.blockData.length / 4;
+        desc.image_height = 0;
+
+        if (this.blockData != null && data.blockData.length == this.blockDataLength) {
+            clEnqueueWriteImage(commandQueue, blockData, CL_TRUE, new long[] {0, 0, 0},
+                    new long[] {desc.image_width, 1, 1}, 0, 0,
+                    Pointer.to(data.blockData), 0, null, null);
+        } else {
+            if (this.blockData != null) {
+                clReleaseMemObject(this.blockData);
+            }
+            this.blockData = clCreateImage(context,
+                    CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR, format, desc,
+                    Pointer.to(data.blockData), null);
+            this.blockDataLength = data.blockData.length;
+        }
+    }
+
+    /** Set the camera used by the following render calls */
+    public void setCamera(CameraRays camera) {
+        this.width = camera.width;
+        this.height = camera.height;
+        this.activePixels = Integer.MAX_VALUE;
+        ensureFrameCapacity(width * height * 3);
+
+        if (camera.rayTable != null) {
+            long start = System.nanoTime();
+            ensureRayTableCapacity(camera.rayTable.length);
+            clEnqueueWriteBuffer(commandQueue, rayTableBuffer, CL_TRUE, 0,
+                    (long) Sizeof.cl_float * camera.rayTable.length, Pointer.to(camera.rayTable), 0, null, null);
+            RenderTimers.INSTANCE.recordSince("camera.upload", start);
+        } else {
+            ensureRayTableCapacity(3);
+        }
+
+        clSetKernelArg(kernel, 0, Sizeof.cl_float * 4, Pointer.to(camera.origin));
+        clSetKernelArg(kernel, 12, Sizeof.cl_float * 4, Pointer.to(camera.forward));
+        clSetKernelArg(kernel, 13, Sizeof.cl_float * 4, Pointer.to(camera.right));
+        clSetKernelArg(kernel, 14, Sizeof.cl_float * 4, Pointer.to(camera.up));
+        clSetKernelArg(kernel, 15, Sizeof.cl_int, Pointer.to(new int[] {width}));
+        clSetKernelArg(kernel, 16, Sizeof.cl_int, Pointer.to(new int[] {height}));
+        clSetKernelArg(kernel, 17, Sizeof.cl_int, Pointer.to(new int[] {camera.projection}));
+
+        if (wavefront != null) {
+            wavefront.setCamera(camera, rayTableBuffer);
+        }
+    }
+
+    /** Set the rows of the frame rendered by this device */
+    public void setRows(int start, int end) {
+        if (start != rowStart || end != rowEnd) {
+            activePixels = Integer.MAX_VALUE;
+        }
+        rowStart = start;
+        rowEnd = end;
+    }
+
+    /** Get the number of rows rendered by this device */
+    public int getRows() {
+        return rowEnd - rowStart;
+    }
+
+    /** Get the first row rendered by this device */
+    public int getRowStart() {
+        return rowStart;
+    }
+
+    /** Get the row after the last row rendered by this device */
+    public int getRowEnd() {
+        return rowEnd;
+    }
+
+    /**
+     * Enqueue a batch of render samples without waiting for it. If {@code readback} is set the rows
+     * with samples are read into one of two staging buffers once the batch is done. If {@code frameSpp}
+     * is positive the accumulation buffer is also post-processed as a frame of that many samples per
+     * pixel and read back. The batch must be awaited before the batch after the next one is enqueued.
+     */
+    public Batch enqueueBatch(int seed, int rayDepth, Sun sun, int samples, boolean readback, int frameSpp) {
+        Batch batch = new Batch(samples, rowStart, rowEnd);
+
+        clEnqueueFillBuffer(commandQueue, countersBuffer, Pointer.to(new int[] {0}), Sizeof.cl_int, 0,
+                Sizeof.cl_int * COUNTERS, 0, null, batch.startEvent);
+        enqueueKernel(seed, rayDepth, false, sun, samples, rowStart, rowEnd, batch.kernelEvent);
+        clEnqueueReadBuffer(commandQueue, countersBuffer, CL_FALSE, 0, Sizeof.cl_int * COUNTERS,
+                Pointer.to(batch.counters), 0, null, batch.countersEvent);
+
+        if (readback) {
+            FloatBuffer buffer = readbackBuffers[nextReadbackBuffer];
+            if (buffer == null || buffer.capacity() != width * height * 3) {
+                buffer = ByteBuffer.allocateDirect(Sizeof.cl_float * width * height * 3)
+                        .order(ByteOrder.nativeOrder()).asFloatBuffer();
+                readbackBuffers[nextReadbackBuffer] = buffer;
+            }
+
+            batch.readback = buffer;
+            batch.readStart = touchedStart * width * 3;
+            batch.readEnd = touchedEnd * width * 3;
+            batch.readEvent = new cl_event();
+            enqueueRead(buffer, batch.readStart, batch.readEnd, false, batch.readEvent);
+        } else if (frameSpp > 0) {
+            IntBuffer buffer = frameBuffers[nextReadbackBuffer];
+            if (buffer == null || buffer.capacity() != width * height) {
+                buffer = ByteBuffer.allocateDirect(Sizeof.cl_int * width * height)
+                        .order(ByteOrder.nativeOrder()).asIntBuffer();
+                frameBuffers[nextReadbackBuffer] = buffer;
+            }
+
+            // Only the rows of this device are post-processed, the other devices have the samples of the
+            // other rows
+            batch.frame = buffer;
+            batch.frameStart = rowStart * width;
+            batch.frameEnd = rowEnd * width;
+            batch.readEvent = new cl_event();
+            batch.postprocessEvent = new cl_event();
+            enqueuePostprocess(1.0 / frameSpp, batch.postprocessEvent);
+            clEnqueueReadBuffer(commandQueue, frameBuffer, CL_FALSE, (long) Sizeof.cl_int * batch.frameStart,
+                    (long) Sizeof.cl_int * (batch.frameEnd - batch.frameStart),
+                    Pointer.to(buffer).withByteOffset((long) Sizeof.cl_int * batch.frameStart), 0, null, batch.readEvent);
+        }
+        nextReadbackBuffer ^= 1;
+
+        // Start the work now instead of at the next blocking call
+        clFlush(commandQueue);
+
+        return batch;
+    }
+
+    /** A batch of samples that is rendering on the device */
+    public class Batch {
+        private final int samples;
+        private final int batchRowStart;
+        private final int batchRowEnd;
+        private final cl_event startEvent = new cl_event();
+        private final cl_event kernelEvent = new cl_event();
+        private final cl_event countersEvent = new cl_event();
+        private final IntBuffer counters = ByteBuffer.allocateDirect(Sizeof.cl_int * COUNTERS)
+                .order(ByteOrder.nativeOrder()).asIntBuffer();
+        private cl_event postprocessEvent = null;
+        private cl_event readEvent = null;
+        private FloatBuffer readback = null;
+        private IntBuffer frame = null;
+        private int frameStart;
+        private int frameEnd;
+        private int readStart;
+        private int readEnd;
+        private double duration;
+
+        private Batch(int samples, int rowStart, int rowEnd) {
+            this.samples = samples;
+            this.batchRowStart = rowStart;
+            this.batchRowEnd = rowEnd;
+        }
+
+        /** Wait for the batch to finish and record the device times of its stages */
+        public void await() {
+            clWaitForEvents(2, new cl_event[] {kernelEvent, countersEvent});
+
+            // The kernel time starts with the counter reset, so it covers every kernel of the wavefront engine
+            duration = profiledTime(startEvent, kernelEvent);
+            RenderTimers.INSTANCE.record("batch.kernel", duration);
+            clReleaseEvent(startEvent);
+            clReleaseEvent(kernelEvent);
+            clReleaseEvent(countersEvent);
+
+            // Tighten the launch size of the following adaptive batches if the rows did not change
+            if (RayTracer.ADAPTIVE_THRESHOLD > 0 && batchRowStart == rowStart && batchRowEnd == rowEnd) {
+                activePixels = Math.min(activePixels, (batchRowEnd - batchRowStart) * width - getConvergedPixels());
+            }
+
+            if (postprocessEvent != null) {
+                clWaitForEvents(1, new cl_event[] {postprocessEvent});
+                RenderTimers.INSTANCE.record("batch.postprocess", profiledTime(postprocessEvent, postprocessEvent));
+                clReleaseEvent(postprocessEvent);
+                postprocessEvent = null;
+            }
+            if (readEvent != null) {
+                clWaitForEvents(1, new cl_event[] {readEvent});
+                RenderTimers.INSTANCE.record("batch.transfer", profiledTime(readEvent, readEvent));
+                clReleaseEvent(readEvent);
+                readEvent = null;
+            }
+        }
+
+        /** Time in milliseconds the device spent on the kernels of this batch. Only valid after await */
+        public double getDuration() {
+            return duration;
+        }
+
+        /** Number of pixels that were not traced since they converged. Only valid after await */
+        public int getConvergedPixels() {
+            return counters.get(COUNTER_CONVERGED);
+        }
+
+        /** Number of rays traced in this batch. Only valid after await */
+        public long getRays() {
+            return counters.get(COUNTER_RAYS) & 0xFFFFFFFFL;
+        }
+
+        /** Add the samples read back with this batch, multiplied by scale. Only valid after await */
+        public void addSamples(double[] samples, double scale) {
+            for (int i = readStart; i < readEnd; i++) {
+                samples[i] += readback.get(i) * scale;
+            }
+        }
+
+        /** Check if a post-processed frame is read back with this batch */
+        public boolean hasFrame() {
+            return frame != null;
+        }
+
+        /**
+         * Copy the pixels of the post-processed frame read back with this batch. Only the rows of this
+         * device are copied. Only valid after await
+         */
+        public void readFrame(int[] argb) {
+            int end = Math.min(frameEnd, argb.length);
+            if (end > frameStart) {
+                frame.position(frameStart);
+                frame.get(argb, frameStart, end - frameStart);
+            }
+        }
+    }
+
+    /** Enqueue samples for every pixel in the rows of this device. Use finish to wait for them. */
+    public void rayTrace(int seed, int rayDepth, boolean preview, Sun sun, int samples) {
+        rayTrace(seed, rayDepth, preview, sun, samples, rowStart, rowEnd);
+    }
+
+    /**
+     * Enqueue samples for the pixels in the rows of this device that are between start and end. Use
+     * finish to wait for them.
+     */
+    public void rayTrace(int seed, int rayDepth, boolean preview, Sun sun, int samples, int start, int end) {
+        start = Math.max(start, rowStart);
+        end = Math.min(end, rowEnd);
+        if (end > start) {
+            // The marker starts the timing, the wavefront engine only sets the event on its last kernel
+            cl_event[] events = new cl_event[] {new cl_event(), new cl_event()};
+            clEnqueueMarkerWithWaitList(commandQueue, 0, null, events[0]);
+            enqueueKernel(seed, rayDepth, preview, sun, samples, start, end, events[1]);
+            rayTraceEvents.add(events);
+            clFlush(commandQueue);
+        }
+    }
+
+    /** Wait for all enqueued work to complete and record the device time of the rayTrace calls */
+    public void finish() {
+        clFinish(commandQueue);
+
+        for (cl_event[] events : rayTraceEvents) {
+            RenderTimers.INSTANCE.record("rayTrace.kernel", profiledTime(events[0], events[1]));
+            clReleaseEvent(events[0]);
+            clReleaseEvent(events[1]);
+        }
+        rayTraceEvents.clear();
+    }
+
+    /**
+     * Get the time in milliseconds on the device from the start of one command to the end of another.
+     * Both events must be complete.
+     */
+    private static double profiledTime(cl_event first, cl_event last) {
+        long[] start = new long[1];
+        long[] end = new long[1];
+        clGetEventProfilingInfo(first, CL_PROFILING_COMMAND_START, Sizeof.cl_ulong, Pointer.to(start), null);
+        clGetEventProfilingInfo(last, CL_PROFILING_COMMAND_END, Sizeof.cl_ulong, Pointer.to(end), null);
+        return Math.max(end[0] - start[0], 0) / 1e6;
+    }
+
+    private void enqueueKernel(int seed, int rayDepth, boolean preview, Sun sun, int samples, int start, int end,
+                               cl_event event) {
+        float[] sunPos = RayTracer.sunDirection(sun);
+        float[] sunColor = RayTracer.sunColor(sun);
+        float[] sunEmittance = RayTracer.sunEmittance(sun);
+
+        // Set the per sample arguments. float3 arguments are passed as 4 floats.
+        clSetKernelArg(kernel, 7, Sizeof.cl_int, Pointer.to(new int[] {seed}));
+        clSetKernelArg(kernel, 8, Sizeof.cl_int, Pointer.to(new int[] {rayDepth}));
+        clSetKernelArg(kernel, 9, Sizeof.cl_int, Pointer.to(new int[] {preview ? 1 : 0}));
+        clSetKernelArg(kernel, 10, Sizeof.cl_float * 4, Pointer.to(sunPos));
+        clSetKernelArg(kernel, 26, Sizeof.cl_float * 4, Pointer.to(sunColor));
+        clSetKernelArg(kernel, 28, Sizeof.cl_float * 4, Pointer.to(sunEmittance));
+
+        // Preview rays go through the pixel center, render rays are jittered over the whole pixel
+        clSetKernelArg(kernel, 18, Sizeof.cl_float, Pointer.to(new float[] {preview ? 0 : 1}));
+        clSetKernelArg(kernel, 19, Sizeof.cl_int, Pointer.to(new int[] {samples}));
+
+        // Work size = rays in the rows, the offset keeps the global id equal to the pixel index
+        long[] global_work_offset = new long[]{(long) start * width};
+        long[] global_work_size = new long[]{(long) (end - start) * width};
+
+        // Adaptive launches first compact the pixels that are not converged into the pixel queue and only
+        // launch work items for the queue, at most as many as were not converged after the last batch
+        boolean compacted = !preview && RayTracer.ADAPTIVE_THRESHOLD > 0;
+        if (compacted) {
+            clEnqueueFillBuffer(commandQueue, pixelQueueLength, Pointer.to(new int[] {0}), Sizeof.cl_int, 0,
+                    Sizeof.cl_int, 0, null, null);
+            clSetKernelArg(adaptiveKernel, 0, Sizeof.cl_int, Pointer.to(new int[] {samples}));
+            clEnqueueNDRangeKernel(commandQueue, adaptiveKernel, 1, global_work_offset, global_work_size,
+                    null, 0, null, null);
+
+            if (start == rowStart && end == rowEnd) {
+                global_work_size[0] = Math.max(1, Math.min(global_work_size[0], activePixels));
+            }
+            global_work_offset[0] = 0;
+        }
+        clSetKernelArg(kernel, 34, Sizeof.cl_int, Pointer.to(new int[] {compacted ? 1 : 0}));
 
         // Execute the program
-        clEnqueueNDRangeKernel(commandQueue, kernel, 1, null, global_work_size,
-                null, 0, null, null);
+        if (wavefront != null) {
+            wavefront.setSun(sunPos, sunColor, sunEmittance);
+            wavefront.enqueue(seed, rayDepth, preview, samples, global_work_offset[0], global_work_size[0],
+                    compacted, event);
+        } else {
+            clEnqueueNDRangeKernel(commandQueue, kernel, 1, global_work_offset, global_work_size,
+                    null, 0, null, event);
+        }
 
-        // Get the results
-        try {
-            clEnqueueReadBuffer(commandQueue, clRayRes, CL_TRUE, 0, (long) Sizeof.cl_float * rayRes.length,
-                    srcRayRes, 0, null, null);
-        } catch (CLException e) {
-            throw e;
+        touchRows(start, end);
+    }
+
+    /** Extend the rows with samples */
+    private void touchRows(int start, int end) {
+        if (touchedEnd <= touchedStart) {
+            touchedStart = start;
+            touchedEnd = end;
+        } else {
+            touchedStart = Math.min(touchedStart, start);
+            touchedEnd = Math.max(touchedEnd, end);
+        }
+    }
+
+    /**
+     * Shade the preview G-buffer of the rows of this device with new lighting and replace the
+     * accumulated preview samples. Use finish to wait for it.
+     *
+     * @param emitterScale emitter intensity relative to the intensity the block data was loaded with
+     */
+    public void relight(Sun sun, float emitterScale) {
+        if (rowEnd <= rowStart) {
+            return;
+        }
+
+        clSetKernelArg(relightKernel, 2, Sizeof.cl_float * 4, Pointer.to(RayTracer.sunDirection(sun)));
+        clSetKernelArg(relightKernel, 3, Sizeof.cl_float * 4, Pointer.to(RayTracer.sunColor(sun)));
+        clSetKernelArg(relightKernel, 4, Sizeof.cl_float, Pointer.to(new float[] {emitterScale}));
+        clEnqueueNDRangeKernel(commandQueue, relightKernel, 1, new long[] {(long) rowStart * width},
+                new long[] {(long) (rowEnd - rowStart) * width}, null, 0, null, null);
+        clFlush(commandQueue);
+        touchRows(rowStart, rowEnd);
+    }
+
+    /** Reset the accumulation buffer to zero samples */
+    public void clearAccumulation() {
+        activePixels = Integer.MAX_VALUE;
+        clEnqueueFillBuffer(commandQueue, accumBuffer, Pointer.to(new float[] {0}), Sizeof.cl_float, 0,
+                (long) Sizeof.cl_float * width * height * 3, 0, null, null);
+        clEnqueueFillBuffer(commandQueue, statsBuffer, Pointer.to(new float[] {0}), Sizeof.cl_float, 0,
+                (long) Sizeof.cl_float * width * height * 4, 0, null, null);
+        touchedStart = touchedEnd = 0;
+    }
+
+    /**
+     * Set the accumulation buffer in the rows of this device to the sample buffer multiplied by scale.
+     * The other rows are set to zero.
+     */
+    public void loadAccumulation(double[] samples, double scale) {
+        activePixels = Integer.MAX_VALUE;
+        float[] accumulation = getAccumulationStaging();
+        int start = rowStart * width * 3;
+        int end = rowEnd * width * 3;
+        for (int i = start; i < end; i++) {
+            accumulation[i] = (float) (samples[i] * scale);
         }
 
-        // Clean up
-        clReleaseMemObject(clRayPos);
-        clReleaseMemObject(clNormCoords);
-        clReleaseMemObject(clRayRes);
-        clReleaseMemObject(clSeed);
-        clReleaseMemObject(clRayDepth);
-        clReleaseMemObject(clPreview);
+        clEnqueueFillBuffer(commandQueue, accumBuffer, Pointer.to(new float[] {0}), Sizeof.cl_float, 0,
+                (long) Sizeof.cl_float * width * height * 3, 0, null, null);
+        if (end > start) {
+            clEnqueueWriteBuffer(commandQueue, accumBuffer, CL_TRUE, (long) Sizeof.cl_float * start,
+                    (long) Sizeof.cl_float * (end - start),
+                    Pointer.to(accumulation).withByteOffset((long) Sizeof.cl_float * start), 0, null, null);
+        }
+
+        // The loaded samples count towards the total of every pixel, but not towards the statistics
+        clEnqueueFillBuffer(commandQueue, statsBuffer, Pointer.to(new float[] {0, 0, 0, (float) scale}),
+                Sizeof.cl_float * 4, 0, (long) Sizeof.cl_float * width * height * 4, 0, null, null);
+        touchedStart = rowStart;
+        touchedEnd = rowEnd;
+    }
+
+    /**
+     * Move the samples and statistics of the rows from {@code start} to {@code end} to another device
+     * and set them to zero on this device. This waits for the work on both devices that is already
+     * enqueued, so rows are only moved when the split between the devices changes noticeably.
+     */
+    public void moveRows(GpuRayTracer target, int start, int end) {
+        if (end <= start) {
+            return;
+        }
+
+        long offset = (long) start * width;
+        long pixels = (long) (end - start) * width;
+        float[] accumulation = new float[(int) pixels * 3];
+        float[] stats = new float[(int) pixels * 4];
+        clEnqueueReadBuffer(commandQueue, accumBuffer, CL_TRUE, Sizeof.cl_float * offset * 3,
+                Sizeof.cl_float * pixels * 3, Pointer.to(accumulation), 0, null, null);
+        clEnqueueReadBuffer(commandQueue, statsBuffer, CL_TRUE, Sizeof.cl_float * offset * 4,
+                Sizeof.cl_float * pixels * 4, Pointer.to(stats), 0, null, null);
+        clEnqueueFillBuffer(commandQueue, accumBuffer, Pointer.to(new float[] {0}), Sizeof.cl_float,
+                Sizeof.cl_float * offset * 3, Sizeof.cl_float * pixels * 3, 0, null, null);
+
+        clEnqueueWriteBuffer(target.commandQueue, target.accumBuffer, CL_TRUE, Sizeof.cl_float * offset * 3,
+                Sizeof.cl_float * pixels * 3, Pointer.to(accumulation), 0, null, null);
+        clEnqueueWriteBuffer(target.commandQueue, target.statsBuffer, CL_TRUE, Sizeof.cl_float * offset * 4,
+                Sizeof.cl_float * pixels * 4, Pointer.to(stats), 0, null, null);
+        target.touchRows(start, end);
+    }
+
+    /** Read back the accumulation buffer and add it multiplied by scale to the sample buffer */
+    public void addAccumulation(double[] samples, double scale) {
+        float[] buffer = getAccumulationStaging();
+
+        int start = touchedStart * width * 3;
+        int end = touchedEnd * width * 3;
+        enqueueRead(Pointer.to(buffer), start, end, true, null);
+
+        for (int i = start; i < end; i++) {
+            samples[i] += buffer[i] * scale;
+        }
+    }
+
+    /** Get the host staging array with the size of the accumulation buffer of the current frame */
+    private float[] getAccumulationStaging() {
+        if (accumulationStaging.length != width * height * 3) {
+            accumulationStaging = new float[width * height * 3];
+        }
+        return accumulationStaging;
+    }
+
+    /** Set the post processing applied by readFrame and frame batches */
+    public void setPostprocess(int mode, float exposure) {
+        clSetKernelArg(postprocessKernel, 3, Sizeof.cl_float, Pointer.to(new float[] {exposure}));
+        clSetKernelArg(postprocessKernel, 4, Sizeof.cl_int, Pointer.to(new int[] {mode}));
+    }
+
+    /**
+     * Post-process the accumulation buffer multiplied by scale in the rows of this device and read them
+     * back as ARGB pixels. The other pixels of argb are not changed.
+     */
+    public void readFrame(int[] argb, double scale) {
+        if (rowEnd <= rowStart) {
+            return;
+        }
+
+        long offset = (long) Sizeof.cl_int * rowStart * width;
+        enqueuePostprocess(scale, null);
+        clEnqueueReadBuffer(commandQueue, frameBuffer, CL_TRUE, offset, (long) Sizeof.cl_int * (rowEnd - rowStart) * width,
+                Pointer.to(argb).withByteOffset(offset), 0, null, null);
+    }
+
+    /** Post-process the rows of this device */
+    private void enqueuePostprocess(double scale, cl_event event) {
+        clSetKernelArg(postprocessKernel, 2, Sizeof.cl_float, Pointer.to(new float[] {(float) scale}));
+        clEnqueueNDRangeKernel(commandQueue, postprocessKernel, 1, new long[] {(long) rowStart * width},
+                new long[] {(long) (rowEnd - rowStart) * width}, null, 0, null, event);
+    }
+
+    /** Read a range of the accumulation buffer into the same range of a host buffer */
+    private void enqueueRead(FloatBuffer buffer, int start, int end, boolean blocking, cl_event event) {
+        enqueueRead(Pointer.to(buffer), start, end, blocking, event);
+    }
+
+    /** Read a range of the accumulation buffer into the same range of host memory */
+    private void enqueueRead(Pointer buffer, int start, int end, boolean blocking, cl_event event) {
+        if (end <= start) {
+            // Nothing to read, still produce the event
+            if (event != null) {
+                clEnqueueMarkerWithWaitList(commandQueue, 0, null, event);
+            }
+            return;
+        }
+
+        clEnqueueReadBuffer(commandQueue, accumBuffer, blocking, (long) Sizeof.cl_float * start,
+                (long) Sizeof.cl_float * (end - start), buffer.withByteOffset((long) Sizeof.cl_float * start),
+                0, null, event);
+    }
+
+    /** Make sure the accumulation buffer can hold {@code length} floats */
+    private void ensureFrameCapacity(int length) {
+        if (length <= frameCapacity) {
+            return;
+        }
+
+        if (accumBuffer != null) {
+            clReleaseMemObject(accumBuffer);
+        }
+
+        if (frameBuffer != null) {
+            clReleaseMemObject(frameBuffer);
+            clReleaseMemObject(statsBuffer);
+            clReleaseMemObject(gbufferBuffer);
+            clReleaseMemObject(pixelQueue);
+        }
+
+        accumBuffer = clCreateBuffer(context, CL_MEM_READ_WRITE,
+                (long) Sizeof.cl_float * length, null, null);
+        frameBuffer = clCreateBuffer(context, CL_MEM_WRITE_ONLY,
+                (long) Sizeof.cl_int * (length / 3), null, null);
+        statsBuffer = clCreateBuffer(context, CL_MEM_READ_WRITE,
+                (long) Sizeof.cl_float * (length / 3) * 4, null, null);
+        gbufferBuffer = clCreateBuffer(context, CL_MEM_READ_WRITE,
+                (long) Sizeof.cl_float * (length / 3) * GBUFFER_SIZE, null, null);
+        pixelQueue = clCreateBuffer(context, CL_MEM_READ_WRITE,
+                (long) Sizeof.cl_int * (length / 3), null, null);
+        frameCapacity = length;
+
+        clSetKernelArg(kernel, 11, Sizeof.cl_mem, Pointer.to(accumBuffer));
+        clSetKernelArg(kernel, 22, Sizeof.cl_mem, Pointer.to(statsBuffer));
+        clSetKernelArg(kernel, 24, Sizeof.cl_mem, Pointer.to(pixelQueue));
+        clSetKernelArg(kernel, 27, Sizeof.cl_mem, Pointer.to(gbufferBuffer));
+        clSetKernelArg(adaptiveKernel, 1, Sizeof.cl_mem, Pointer.to(accumBuffer));
+        clSetKernelArg(adaptiveKernel, 2, Sizeof.cl_mem, Pointer.to(statsBuffer));
+        clSetKernelArg(adaptiveKernel, 6, Sizeof.cl_mem, Pointer.to(pixelQueue));
+        clSetKernelArg(postprocessKernel, 0, Sizeof.cl_mem, Pointer.to(accumBuffer));
+        clSetKernelArg(postprocessKernel, 1, Sizeof.cl_mem, Pointer.to(frameBuffer));
+        clSetKernelArg(relightKernel, 0, Sizeof.cl_mem, Pointer.to(gbufferBuffer));
+        clSetKernelArg(relightKernel, 5, Sizeof.cl_mem, Pointer.to(accumBuffer));
+
+        if (wavefront != null) {
+            wavefront.setFrameBuffers(accumBuffer, statsBuffer, gbufferBuffer, pixelQueue, length / 3);
+        }
+    }
+
+    /** Make sure the ray table buffer can hold {@code length} floats */
+    private void ensureRayTableCapacity(int length) {
+        if (length <= rayTableCapacity) {
+            return;
+        }
+
+        if (rayTableBuffer != null) {
+            clReleaseMemObject(rayTableBuffer);
+        }
+
+        rayTableBuffer = clCreateBuffer(context, CL_MEM_READ_ONLY,
+                (long) Sizeof.cl_float * length, null, null);
+        rayTableCapacity = length;
 
-        return rayRes;
+        clSetKernelArg(kernel, 1, Sizeof.cl_mem, Pointer.to(rayTableBuffer));
+    }
+
+    /** Get the number of bytes allocated on the device for the scene, frame and path state */
+    public long getMemorySize() {
+        long size = 0;
+        for (cl_mem mem : new cl_mem[] {octreeData, octreeBuffer, blockTextures, blockData, lightCells,
+                lightList, lights, rayTableBuffer, accumBuffer, frameBuffer, statsBuffer, gbufferBuffer, pixelQueue,
+                pixelQueueLength, countersBuffer}) {
+            size += getMemSize(mem);
+        }
+        if (wavefront != null) {
+            size += wavefront.getMemorySize();
+        }
+        return size;
+    }
+
+    /** Get the size of a memory object in bytes, 0 for null */
+    static long getMemSize(cl_mem mem) {
+        if (mem == null) {
+            return 0;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(Sizeof.size_t).order(ByteOrder.nativeOrder());
+        clGetMemObjectInfo(mem, CL_MEM_SIZE, Sizeof.size_t, Pointer.to(buffer), null);
+        return Sizeof.size_t == 4 ? buffer.getInt(0) : buffer.getLong(0);
     }
 
     /** Get a string from OpenCL */
-    private static String getString(cl_device_id device, int paramName)
+    static String getString(cl_device_id device, int paramName)
     {
         // Obtain the length of the string that will be queried
         long[] size = new long[1];
@@ -413,6 +1161,14 @@ public class GpuRayTracer {
         return new String(buffer, 0, buffer.length-1);
     }
 
+    /** get a cl_ulong from OpenCL */
+    static long getLong(cl_device_id device, int paramName)
+    {
+        long[] value = new long[1];
+        clGetDeviceInfo(device, paramName, Sizeof.cl_ulong, Pointer.to(value), null);
+        return value[0];
+    }
+
     /** get a long(array) from OpenCL */
     static long[] getSizes(cl_device_id device, int paramName, int numValues)
     {
@@ -0,0 +1,291 @@
+package chunkycl;
+
+import java.io.File;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import se.llbit.chunky.main.Chunky;
+import se.llbit.chunky.main.ChunkyOptions;
+import se.llbit.chunky.renderer.RenderContext;
+import se.llbit.chunky.renderer.RenderMode;
+import se.llbit.chunky.renderer.ResetReason;
+import se.llbit.chunky.renderer.SceneProvider;
+import se.llbit.chunky.renderer.scene.Camera;
+import se.llbit.chunky.renderer.scene.Scene;
+import se.llbit.math.Vector3;
+import se.llbit.util.TaskTracker;
+
+/**
+ * Renders a scene without a UI and writes a JSON performance report. The scene is either a saved
+ * scene or a synthetic terrain, so the same numbers can be collected on every machine.
+ *
+ * <pre>
+ * -benchmark [-scene NAME] [-scene-dir DIR] [-synthetic DEPTH] [-width W] [-height H] [-spp N] [-output FILE]
+ * </pre>
+ *
+ * Times are in milliseconds and memory in bytes. The report is printed if no output file is given.
+ * A saved scene keeps its canvas size unless -width or -height is given.
+ */
+public class HeadlessBenchmark {
+    static final String USAGE = "-benchmark [-scene NAME] [-scene-dir DIR] [-synthetic DEPTH] [-width W] "
+            + "[-height H] [-spp N] [-output FILE]";
+
+    /** Interval of the host memory samples in milliseconds */
+    private static final long MEMORY_SAMPLE_INTERVAL = 10;
+
+    private String sceneName = null;
+    private File sceneDir = null;
+    private int syntheticDepth = 9;
+    private int width = 1280;
+    private int height = 720;
+    private boolean widthSet = false;
+    private boolean heightSet = false;
+    private int spp = 64;
+    private File output = null;
+
+    /**
+     * Parse the arguments following {@code -benchmark}
+     *
+     * @throws IllegalArgumentException if an option is unknown or has no valid value
+     */
+    HeadlessBenchmark(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-benchmark")) {
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for benchmark option: " + args[i]);
+            }
+
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "-scene":
+                    sceneName = value;
+                    break;
+                case "-scene-dir":
+                    sceneDir = new File(value);
+                    break;
+                case "-synthetic":
+                    syntheticDepth = Integer.parseInt(value);
+                    break;
+                case "-width":
+                    width = Integer.parseInt(value);
+                    widthSet = true;
+                    break;
+                case "-height":
+                    height = Integer.parseInt(value);
+                    heightSet = true;
+                    break;
+                case "-spp":
+                    spp = Integer.parseInt(value);
+                    break;
+                case "-output":
+                    output = new File(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown benchmark option: " + args[i]);
+            }
+            i += 1;
+        }
+    }
+
+    /** Load the scene, render it and write the report */
+    void run() throws Exception {
+        try (MemorySampler memory = new MemorySampler()) {
+            run(memory);
+        }
+    }
+
+    private void run(MemorySampler memory) throws Exception {
+        ChunkyOptions options = ChunkyOptions.getDefaults();
+        if (sceneDir != null) {
+            options.sceneDir = sceneDir;
+        }
+        Chunky.loadDefaultTextures();
+        Chunky chunky = new Chunky(options);
+        RenderContext context = new RenderContext(chunky);
+        RayTracer rayTracer = RenderManagerCl.intersectCl;
+
+        // Load the scene and upload it to the backend
+        Scene scene = chunky.getSceneFactory().newScene();
+        long sceneStart = System.nanoTime();
+        SceneData synthetic = null;
+        if (sceneName != null) {
+            scene.loadScene(context, sceneName, TaskTracker.NONE);
+            scene.importMaterials();
+            if (widthSet || heightSet) {
+                scene.setCanvasSize(widthSet ? width : scene.canvasWidth(), heightSet ? height : scene.canvasHeight());
+            }
+        } else {
+            synthetic = SceneData.synthetic(syntheticDepth, 0);
+            scene.setCanvasSize(width, height);
+
+            // Look down at the terrain from above its center
+            int size = 1 << syntheticDepth;
+            Camera camera = scene.camera();
+            camera.setPosition(new Vector3(size / 2.0, size * 0.6, size / 2.0));
+            camera.setView(Math.PI / 4, -Math.PI / 4, 0);
+        }
+        double sceneTime = (System.nanoTime() - sceneStart) / 1e6;
+
+        long loadStart = System.nanoTime();
+        if (synthetic != null) {
+            rayTracer.load(synthetic, true);
+        } else {
+            rayTracer.load(scene, TaskTracker.Task.NONE, true);
+        }
+        double loadTime = (System.nanoTime() - loadStart) / 1e6;
+        long deviceMemory = rayTracer.getDeviceMemory();
+
+        // Render from scratch
+        scene.spp = 0;
+        scene.renderTime = 0;
+        scene.setTargetSpp(spp);
+        scene.setRenderMode(RenderMode.RENDERING);
+
+        RenderManagerCl renderer = new RenderManagerCl(context, true);
+        renderer.setSceneProvider(new BenchmarkSceneProvider(scene));
+        renderer.setRenderTask(TaskTracker.Task.NONE);
+        renderer.setOnFrameCompleted((frame, frameSpp) -> {});
+        renderer.setOnRenderCompleted((time, samplesPerSecond) -> {});
+
+        long renderStart = System.nanoTime();
+        renderer.start();
+        renderer.join();
+        double renderTime = (System.nanoTime() - renderStart) / 1e6;
+        deviceMemory = Math.max(deviceMemory, rayTracer.getDeviceMemory());
+
+        Scene rendered = renderer.getBufferedScene();
+        long pixels = (long) rendered.canvasWidth() * rendered.canvasHeight();
+        double seconds = rendered.renderTime / 1000.0;
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("scene", sceneName != null ? sceneName : "synthetic-" + syntheticDepth);
+        report.put("backend", rayTracer.getClass().getSimpleName());
+        if (rayTracer instanceof CpuRayTracer) {
+            report.put("engine", "cpu");
+            report.put("devices", "cpu");
+        } else {
+            boolean wavefront = "wavefront".equalsIgnoreCase(System.getProperty("chunkycl.engine"));
+            report.put("engine", wavefront ? "wavefront" : "megakernel");
+            report.put("devices", System.getProperty("chunkycl.devices", "0:0"));
+        }
+        report.put("width", rendered.canvasWidth());
+        report.put("height", rendered.canvasHeight());
+        report.put("spp", rendered.spp);
+        report.put("rayDepth", rendered.getRayDepth());
+        report.put("sceneTime", sceneTime);
+        report.put("loadTime", loadTime);
+        report.put("renderTime", renderTime);
+        report.put("kernelTime", renderer.getKernelTime());
+        report.put("readbackTime", renderer.getReadbackTime());
+        report.put("samplesPerSecond", rendered.spp * pixels / seconds);
+        report.put("raysPerSecond", renderer.getRayCount() / seconds);
+        report.put("peakHostMemory", memory.getPeak());
+        report.put("peakDeviceMemory", deviceMemory);
+
+        String json = toJson(report);
+        if (output != null) {
+            Files.write(output.toPath(), json.getBytes(StandardCharsets.UTF_8));
+        } else {
+            System.out.println(json);
+        }
+    }
+
+    /** Memory used by direct buffers, e.g. the readback staging buffers */
+    private static long directMemory() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Samples the used heap and direct buffer memory while the benchmark runs. The peaks of the single
+     * memory pools are reached at different times, so their sum would overstate the peak. Short spikes
+     * between two samples are missed.
+     */
+    private static class MemorySampler implements AutoCloseable {
+        private final AtomicLong peak = new AtomicLong();
+        private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Benchmark Memory Sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        MemorySampler() {
+            executor.scheduleAtFixedRate(this::sample, 0, MEMORY_SAMPLE_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+
+        private void sample() {
+            long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() + directMemory();
+            peak.accumulateAndGet(used, Math::max);
+        }
+
+        /** Get the highest sampled memory use in bytes, including the current use */
+        long getPeak() {
+            sample();
+            return peak.get();
+        }
+
+        @Override public void close() {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Write a flat map of strings and numbers as a JSON object */
+    private static String toJson(Map<String, Object> values) {
+        StringBuilder json = new StringBuilder("{\n");
+        int i = 0;
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            json.append("  \"").append(entry.getKey()).append("\": ");
+            Object value = entry.getValue();
+            if (value instanceof Number) {
+                json.append(value);
+            } else {
+                json.append('"').append(value.toString().replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+            }
+            json.append(++i < values.size() ? ",\n" : "\n");
+        }
+        return json.append("}\n").toString();
+    }
+
+    /** Provides the benchmark scene once */
+    private static class BenchmarkSceneProvider implements SceneProvider {
+        private final Scene scene;
+
+        BenchmarkSceneProvider(Scene scene) {
+            this.scene = scene;
+        }
+
+        /** The scene is already loaded, so the settings change only copies it to the renderer */
+        @Override public ResetReason awaitSceneStateChange() {
+            return ResetReason.SETTINGS_CHANGED;
+        }
+
+        @Override public boolean pollSceneStateChange() {
+            return false;
+        }
+
+        @Override public void withSceneProtected(Consumer<Scene> fn) {
+            synchronized (scene) {
+                fn.accept(scene);
+            }
+        }
+
+        @Override public void withEditSceneProtected(Consumer<Scene> fn) {
+            withSceneProtected(fn);
+        }
+    }
+}
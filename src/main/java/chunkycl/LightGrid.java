@@ -0,0 +1,205 @@
+package chunkycl;
+
+import java.util.Arrays;
+
+import se.llbit.log.Log;
+
+/**
+ * Grid of the emissive blocks of a scene for next event estimation. The world is split into cells of
+ * {@code 1 << cellShift} blocks and every cell lists the emitters in the cell and its 26 neighbors, so
+ * a hit only samples nearby emitters. Paths do not count a hit on an emitter in the neighborhood of the
+ * previous hit, the shadow rays of the previous hit already count it.
+ *
+ * <p>Emitters that are enclosed by visible blocks on all sides can not be seen and are left out. If
+ * there are more than MAX_EMITTERS emitters the grid is empty and emitters are only found by the paths.
+ */
+final class LightGrid {
+    /** Maximum number of emitters in the grid */
+    static final int MAX_EMITTERS = 1 << 16;
+
+    /** Smallest cell size is 1 << MIN_CELL_SHIFT blocks */
+    private static final int MIN_CELL_SHIFT = 4;
+    /** Largest number of cells along an axis is 1 << MAX_GRID_SHIFT */
+    private static final int MAX_GRID_SHIFT = 6;
+
+    /** Number of cells along each axis, 0 if the grid is empty */
+    final int size;
+
+    /** Cells are 1 << cellShift blocks wide */
+    final int cellShift;
+
+    /** Start of the emitters of every cell in lightList, the emitters of cell i end at cells[i + 1] */
+    final int[] cells;
+
+    /** Indices into emitters for every cell */
+    final int[] lightList;
+
+    /** Position and block of every emitter, 4 ints each */
+    final int[] emitters;
+
+    private LightGrid(int size, int cellShift, int[] cells, int[] lightList, int[] emitters) {
+        this.size = size;
+        this.cellShift = cellShift;
+        this.cells = cells;
+        this.lightList = lightList;
+        this.emitters = emitters;
+    }
+
+    /** Build the light grid of the emissive blocks in the octree */
+    static LightGrid build(SceneData data) {
+        int cellShift = Math.max(MIN_CELL_SHIFT, data.depth - MAX_GRID_SHIFT);
+        int size = 1 << Math.max(data.depth - cellShift, 0);
+
+        EmitterCollector collector = new EmitterCollector(data);
+        if (!collector.collect(data.treeData[0], 0, 0, 0, data.depth)) {
+            Log.warn("More than " + MAX_EMITTERS + " visible emitters, emitter sampling is disabled for this scene.");
+            return empty();
+        }
+        if (collector.count == 0) {
+            return empty();
+        }
+        int[] emitters = Arrays.copyOf(collector.emitters, collector.count * 4);
+        int count = collector.count;
+
+        // Sort the emitters by cell
+        int cellCount = size * size * size;
+        int[] ownStart = new int[cellCount + 1];
+        for (int i = 0; i < count; i++) {
+            ownStart[cellIndex(emitters, i, cellShift, size) + 1] += 1;
+        }
+        for (int i = 0; i < cellCount; i++) {
+            ownStart[i + 1] += ownStart[i];
+        }
+        int[] own = new int[count];
+        int[] fill = Arrays.copyOf(ownStart, cellCount);
+        for (int i = 0; i < count; i++) {
+            own[fill[cellIndex(emitters, i, cellShift, size)]++] = i;
+        }
+
+        // List the emitters of the neighborhood of every cell, first count them and then copy them
+        int[] cells = new int[cellCount + 1];
+        for (int cell = 0; cell < cellCount; cell++) {
+            cells[cell + 1] = cells[cell] + listNeighborhood(cell, size, ownStart, own, null, 0);
+        }
+        int[] lightList = new int[cells[cellCount]];
+        for (int cell = 0; cell < cellCount; cell++) {
+            listNeighborhood(cell, size, ownStart, own, lightList, cells[cell]);
+        }
+
+        return new LightGrid(size, cellShift, cells, lightList, emitters);
+    }
+
+    /**
+     * Copy the emitters of a cell and its neighbors to {@code list} starting at {@code offset}.
+     *
+     * @param list the list to copy to, or null to only count the emitters
+     * @return the number of emitters
+     */
+    private static int listNeighborhood(int cell, int size, int[] ownStart, int[] own, int[] list, int offset) {
+        int cx = cell / (size * size);
+        int cy = (cell / size) % size;
+        int cz = cell % size;
+
+        int length = 0;
+        for (int nx = Math.max(cx - 1, 0); nx <= Math.min(cx + 1, size - 1); nx++) {
+            for (int ny = Math.max(cy - 1, 0); ny <= Math.min(cy + 1, size - 1); ny++) {
+                for (int nz = Math.max(cz - 1, 0); nz <= Math.min(cz + 1, size - 1); nz++) {
+                    int neighbor = (nx * size + ny) * size + nz;
+                    int start = ownStart[neighbor];
+                    int count = ownStart[neighbor + 1] - start;
+                    if (list != null) {
+                        System.arraycopy(own, start, list, offset + length, count);
+                    }
+                    length += count;
+                }
+            }
+        }
+        return length;
+    }
+
+    /** A grid without emitters */
+    private static LightGrid empty() {
+        return new LightGrid(0, 0, new int[1], new int[1], new int[4]);
+    }
+
+    private static int cellIndex(int[] emitters, int i, int cellShift, int size) {
+        int cx = emitters[i*4] >> cellShift;
+        int cy = emitters[i*4 + 1] >> cellShift;
+        int cz = emitters[i*4 + 2] >> cellShift;
+        return (cx * size + cy) * size + cz;
+    }
+
+    /** Walks the octree and collects the visible emitters */
+    private static final class EmitterCollector {
+        private final SceneData data;
+        private int[] emitters = new int[1024];
+        private int count = 0;
+
+        EmitterCollector(SceneData data) {
+            this.data = data;
+        }
+
+        /** Collect the emitters in a node. Returns false if there are too many emitters. */
+        boolean collect(int node, int x, int y, int z, int level) {
+            if (node > 0) {
+                int half = 1 << (level - 1);
+                for (int i = 0; i < 8; i++) {
+                    if (!collect(data.treeData[node + i], x + ((i >> 2) & 1) * half, y + ((i >> 1) & 1) * half,
+                            z + (i & 1) * half, level - 1)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            int block = -node;
+            if ((data.blockData[block*4 + 3] & SceneData.FLAG_EMISSIVE) == 0 || data.blockData[block*4 + 1] <= 0) {
+                return true;
+            }
+
+            int side = 1 << level;
+            for (int bx = x; bx < x + side; bx++) {
+                for (int by = y; by < y + side; by++) {
+                    for (int bz = z; bz < z + side; bz++) {
+                        if (!isEnclosed(bx, by, bz)) {
+                            if (count == MAX_EMITTERS) {
+                                return false;
+                            }
+                            if (count * 4 == emitters.length) {
+                                emitters = Arrays.copyOf(emitters, emitters.length * 2);
+                            }
+                            emitters[count*4] = bx;
+                            emitters[count*4 + 1] = by;
+                            emitters[count*4 + 2] = bz;
+                            emitters[count*4 + 3] = block;
+                            count += 1;
+                        }
+                    }
+                }
+            }
+            return true;
+        }
+
+        /** Check if all neighbors of a block are visible blocks inside the octree */
+        private boolean isEnclosed(int x, int y, int z) {
+            return isVisible(x - 1, y, z) && isVisible(x + 1, y, z)
+                    && isVisible(x, y - 1, z) && isVisible(x, y + 1, z)
+                    && isVisible(x, y, z - 1) && isVisible(x, y, z + 1);
+        }
+
+        private boolean isVisible(int x, int y, int z) {
+            if (((x | y | z) >> data.depth) != 0) {
+                return false;
+            }
+
+            int[] treeData = data.treeData;
+            int level = data.depth;
+            int node = treeData[0];
+            while (node > 0) {
+                level -= 1;
+                node = treeData[node + (((1 & (x >> level)) << 2) | ((1 & (y >> level)) << 1) | (1 & (z >> level)))];
+            }
+            return (data.blockData[-node * 4 + 3] & SceneData.FLAG_INVISIBLE) == 0;
+        }
+    }
+}
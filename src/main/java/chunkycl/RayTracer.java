@@ -0,0 +1,200 @@
+package chunkycl;
+
+import org.apache.commons.math3.util.FastMath;
+
+import se.llbit.chunky.renderer.Postprocess;
+import se.llbit.chunky.renderer.scene.Camera;
+import se.llbit.chunky.renderer.scene.Scene;
+import se.llbit.chunky.renderer.scene.Sun;
+import se.llbit.math.Vector3;
+import se.llbit.util.TaskTracker;
+
+/**
+ * A render backend. Samples are accumulated inside the backend and only read back on request.
+ */
+public interface RayTracer {
+    /**
+     * Relative standard error of the mean luminance below which a pixel is considered converged and
+     * no longer traced. Adaptive sampling stops early and is biased, so it is off by default. Enable it
+     * with {@code chunkycl.adaptiveThreshold}, e.g. 0.01.
+     */
+    float ADAPTIVE_THRESHOLD = Float.parseFloat(System.getProperty("chunkycl.adaptiveThreshold", "0"));
+
+    /** Samples per pixel before a pixel can converge. Set with {@code chunkycl.adaptiveMinSpp}. */
+    int ADAPTIVE_MIN_SAMPLES = Integer.getInteger("chunkycl.adaptiveMinSpp", 32);
+
+    /** Gamma applied to the sun intensity, same as DEFAULT_GAMMA in rayTracer.cl */
+    double DEFAULT_GAMMA = 2.2;
+
+    /** Post processing modes, must match rayTracer.cl */
+    int POSTPROCESS_NONE = 0;
+    int POSTPROCESS_GAMMA = 1;
+    int POSTPROCESS_TONEMAP1 = 2;
+    int POSTPROCESS_TONEMAP2 = 3;
+    int POSTPROCESS_TONEMAP3 = 4;
+    int POSTPROCESS_PREVIEW = 5;
+
+    /**
+     * Load a scene
+     *
+     * @param octreeChanged false if only the materials changed and the octree can be kept
+     */
+    void load(Scene scene, TaskTracker.Task renderTask, boolean octreeChanged);
+
+    /**
+     * Load scene data that was already extracted, e.g. SceneData.synthetic
+     *
+     * @param octreeChanged false if only the materials changed and the octree can be kept
+     */
+    void load(SceneData data, boolean octreeChanged);
+
+    /** Set the camera used by the following render calls */
+    void setCamera(Camera camera, Vector3 sceneOrigin, int width, int height);
+
+    /** Get the number of samples per pixel for the next batch */
+    int nextBatchSize(int maxSamples);
+
+    /**
+     * Enqueue a batch of render samples without waiting for it. The result selected by {@code readback}
+     * is read back once the batch is done. The batch must be awaited before the batch after the next
+     * one is enqueued.
+     */
+    Batch enqueueBatch(int seed, int rayDepth, Sun sun, int samples, Readback readback);
+
+    /**
+     * Trace {@code samples} samples for every pixel and add them to the accumulation buffer. This
+     * blocks until the samples are done. Nothing is read back, use readAccumulation to get the result.
+     */
+    void rayTrace(int seed, int rayDepth, boolean preview, Sun sun, int samples);
+
+    /**
+     * Trace {@code samples} samples for the pixels in the rows from {@code rowStart} to {@code rowEnd}
+     * and add them to the accumulation buffer. This blocks until the samples are done. It is used to
+     * render a frame in tiles, partial frames are not counted in getAccumulatedSpp.
+     */
+    void rayTrace(int seed, int rayDepth, boolean preview, Sun sun, int samples, int rowStart, int rowEnd);
+
+    /**
+     * Shade the first hits of the last preview again with new lighting, without tracing rays. The
+     * accumulation buffer is replaced by the relit preview. This requires a preview of every row with
+     * the current camera since the last load.
+     *
+     * @param emitterScale emitter intensity relative to the intensity the scene was loaded with
+     * @return false if there is no complete G-buffer and the preview must be traced
+     */
+    boolean relight(Sun sun, float emitterScale);
+
+    /** Reset the accumulation buffer to zero samples */
+    void clearAccumulation();
+
+    /** Continue accumulating from an existing sample buffer averaged over {@code spp} samples */
+    void loadAccumulation(double[] samples, int spp);
+
+    /** Read back the accumulation buffer and store the average sample values */
+    void readAccumulation(double[] samples);
+
+    /** Get the number of samples in the accumulation buffer, -1 if it has not been initialized */
+    int getAccumulatedSpp();
+
+    /** Get the number of bytes currently allocated by the backend for the scene and frame */
+    long getDeviceMemory();
+
+    /** Check if finished frames can be produced by the backend with readFrame and Readback.FRAME */
+    boolean supportsFrames();
+
+    /** Set the post processing used for frames. Previews use a square root like Chunky does. */
+    void setPostprocess(Postprocess postprocess, double exposure, boolean preview);
+
+    /** Post-process the accumulation buffer and read it back as ARGB pixels. Requires supportsFrames */
+    void readFrame(int[] argb);
+
+    /** Get the direction towards the sun. This is a float3 passed as 4 floats. */
+    static float[] sunDirection(Sun sun) {
+        float[] sunPos = new float[4];
+        sunPos[0] = (float) (FastMath.cos(sun.getAzimuth()) * FastMath.cos(sun.getAltitude()));
+        sunPos[1] = (float) (FastMath.sin(sun.getAltitude()));
+        sunPos[2] = (float) (FastMath.sin(sun.getAzimuth()) * FastMath.cos(sun.getAltitude()));
+        return sunPos;
+    }
+
+    /** Get the color of the sun. This is a float3 passed as 4 floats. */
+    static float[] sunColor(Sun sun) {
+        Vector3 color = sun.getColor();
+        return new float[] {(float) color.x, (float) color.y, (float) color.z, 0};
+    }
+
+    /**
+     * Get the emittance of the sun for the shadow rays. Like in Chunky this is the sun color scaled by
+     * the intensity raised to the default gamma. This is a float3 passed as 4 floats.
+     */
+    static float[] sunEmittance(Sun sun) {
+        Vector3 color = sun.getColor();
+        double scale = FastMath.pow(sun.getIntensity(), DEFAULT_GAMMA);
+        return new float[] {(float) (color.x * scale), (float) (color.y * scale), (float) (color.z * scale), 0};
+    }
+
+    /**
+     * Get the postprocess kernel mode for a Chunky post processing setting. Previews always use a
+     * square root like Chunky does.
+     */
+    static int postprocessMode(Postprocess postprocess, boolean preview) {
+        if (preview) {
+            return POSTPROCESS_PREVIEW;
+        }
+        switch (postprocess) {
+            case NONE:
+                return POSTPROCESS_NONE;
+            case TONEMAP1:
+                return POSTPROCESS_TONEMAP1;
+            case TONEMAP2:
+                return POSTPROCESS_TONEMAP2;
+            case TONEMAP3:
+                return POSTPROCESS_TONEMAP3;
+            default:
+                return POSTPROCESS_GAMMA;
+        }
+    }
+
+    /** Results read back with a batch */
+    enum Readback {
+        /** Nothing is read back */
+        NONE,
+        /** The average sample values */
+        SAMPLES,
+        /** The post-processed ARGB frame, requires supportsFrames */
+        FRAME
+    }
+
+    /** A batch of samples that is rendering */
+    interface Batch {
+        /** Wait for the batch to finish */
+        void await();
+
+        /** Number of samples per pixel in this batch */
+        int getSamples();
+
+        /** Total number of samples per pixel accumulated once this batch is done */
+        int getSpp();
+
+        /** Check if the samples are read back with this batch */
+        boolean hasSamples();
+
+        /** Store the average sample values read back with this batch. Only valid after await */
+        void readSamples(double[] samples);
+
+        /** Number of pixels that were skipped by adaptive sampling in this batch. Only valid after await */
+        int getConvergedPixels();
+
+        /** Number of rays traced in this batch, including bounces. Only valid after await */
+        long getRays();
+
+        /** Time in milliseconds the backend spent on this batch. Only valid after await */
+        double getDuration();
+
+        /** Check if a post-processed frame is read back with this batch */
+        boolean hasFrame();
+
+        /** Store the post-processed frame read back with this batch. Only valid after await */
+        void readFrame(int[] argb);
+    }
+}
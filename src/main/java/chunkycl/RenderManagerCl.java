@@ -1,12 +1,12 @@
 package chunkycl;
 
+import org.jocl.CLException;
 import se.llbit.chunky.PersistentSettings;
 import se.llbit.chunky.renderer.*;
-import se.llbit.chunky.renderer.scene.Camera;
 import se.llbit.chunky.renderer.scene.Scene;
+import se.llbit.chunky.renderer.scene.Sun;
 import se.llbit.chunky.resources.BitmapImage;
 import se.llbit.log.Log;
-import se.llbit.math.Ray;
 import se.llbit.math.Vector3;
 import se.llbit.util.TaskTracker;
 
@@ -18,11 +18,10 @@ public class RenderManagerCl extends Thread implements Renderer {
     private static final Repaintable EMPTY_CANVAS = () -> {};
     private Repaintable canvas = EMPTY_CANVAS;
 
-    private Thread[] workers = {};
     private final Scene bufferedScene;
     private final boolean headless;
     private int numThreads;
-    private JobManager jobManager;
+    private final FramePresenter presenter;
 
     private RenderMode mode = RenderMode.PREVIEW;
 
@@ -44,19 +43,62 @@ public class RenderManagerCl extends Thread implements Renderer {
 
     private TaskTracker.Task renderTask;
 
-    public static final GpuRayTracer intersectCl = new GpuRayTracer();
+    // Emitter intensity of the block data in the backend, relit previews are scaled to the current intensity
+    private double loadedEmitterIntensity = 1;
+
+    // Sun and emitter settings of the preview in the backend, null if there is no preview
+    private double[] previewLighting = null;
+
+    // Fraction of the pixels that were not traced in the last batch since they converged
+    private double convergedFraction = 0;
+
+    // Milliseconds the backend spent per sample per pixel in the recent batches, 0 before the first batch
+    private double sampleTime = 0;
+
+    // Totals of the last final render: time the backend spent on batches, time spent copying results
+    // on the host in milliseconds and the number of rays traced
+    private double kernelTime = 0;
+    private double readbackTime = 0;
+    private long rayCount = 0;
+
+    public static final RayTracer intersectCl = createRayTracer();
+
+    /** Timers of the render stages, also available through JMX */
+    private final RenderTimers timers = RenderTimers.INSTANCE;
+
+    /** Resolution divisor of the coarse preview pass */
+    private static final int PREVIEW_COARSE_SCALE = 4;
+    /** Number of rows rendered between checks for scene changes in the preview */
+    private static final int PREVIEW_TILE_ROWS = 64;
+
+    /**
+     * Create the render backend. The CPU backend is used if the {@code chunkycl.backend} system property
+     * is set to {@code cpu} or if OpenCL can not be initialized.
+     */
+    private static RayTracer createRayTracer() {
+        if ("cpu".equalsIgnoreCase(System.getProperty("chunkycl.backend"))) {
+            return new CpuRayTracer();
+        }
+
+        try {
+            return new DeviceManager();
+        } catch (CLException | LinkageError e) {
+            Log.error("Could not initialize OpenCL, falling back to the CPU ray tracer.", e);
+            return new CpuRayTracer();
+        }
+    }
 
     public RenderManagerCl(RenderContext context, boolean headless) {
         super("Render Manager");
 
         numThreads = context.numRenderThreads();
         cpuLoad = PersistentSettings.getCPULoad();
-        this.jobManager = new JobManager();
 
         this.context = context;
 
         this.headless = headless;
         bufferedScene = context.getChunky().getSceneFactory().newScene();
+        presenter = new FramePresenter(bufferedScene, () -> canvas.repaint(), numThreads);
 
         random = new Random(System.currentTimeMillis());
     }
@@ -65,10 +107,6 @@ public class RenderManagerCl extends Thread implements Renderer {
         return numThreads;
     }
 
-    public JobManager getJobManager() {
-        return jobManager;
-    }
-
     @Override public void setSceneProvider(SceneProvider sceneProvider) {
         this.sceneProvider = sceneProvider;
     }
@@ -137,6 +175,7 @@ public class RenderManagerCl extends Thread implements Renderer {
 
     @Override public void shutdown() {
         interrupt();
+        presenter.interrupt();
     }
 
     public Scene getBufferedScene() {
@@ -146,29 +185,33 @@ public class RenderManagerCl extends Thread implements Renderer {
 
     @Override public void run() {
         try {
-            workers = new Thread[numThreads];
-            for (int i = 0; i < numThreads; i++) {
-                workers[i] = new RenderWorkerCl(this, i);
-                workers[i].start();
-            }
+            presenter.start();
 
             while (!isInterrupted()) {
                 ResetReason reason = sceneProvider.awaitSceneStateChange();
 
                 synchronized (bufferedScene) {
                     sceneProvider.withSceneProtected(scene -> {
+                        long start = System.nanoTime();
                         if (reason.overwriteState()) {
                             bufferedScene.copyState(scene);
                         }
+                        timers.recordSince("scene.copy", start);
+
                         if (reason == ResetReason.MATERIALS_CHANGED || reason == ResetReason.SCENE_LOADED) {
+                            start = System.nanoTime();
                             scene.importMaterials();
-                            intersectCl.load(bufferedScene, renderTask);
+                            intersectCl.load(bufferedScene, renderTask, reason == ResetReason.SCENE_LOADED);
+                            loadedEmitterIntensity = bufferedScene.getEmitterIntensity();
+                            timers.recordSince("scene.load", start);
                         }
 
                         bufferedScene.copyTransients(scene);
 
                         if (reason == ResetReason.SCENE_LOADED) {
+                            start = System.nanoTime();
                             bufferedScene.swapBuffers();
+                            timers.recordSince("scene.swapBuffers", start);
 
                             String sceneStatus = bufferedScene.sceneStatus();
                             synchronized (sceneListeners) {
@@ -186,15 +229,14 @@ public class RenderManagerCl extends Thread implements Renderer {
 
                     System.out.println("Previewing");
 
-                    previewRender();
-
-                    renderTask.update("Preview", 1, 1, "");
-
-                    synchronized (bufferedScene) {
-                        bufferedScene.swapBuffers();
+                    // Settings changes that keep the camera and only change the lighting do not need new rays
+                    if (reason != ResetReason.SETTINGS_CHANGED
+                            || Arrays.equals(previewLighting, lighting(bufferedScene))
+                            || !relightPreview()) {
+                        previewRender();
                     }
 
-                    canvas.repaint();
+                    renderTask.update("Preview", 1, 1, "");
                 } else {
                     System.out.println("Rendering");
 
@@ -215,172 +257,352 @@ public class RenderManagerCl extends Thread implements Renderer {
         }
     }
 
+    /**
+     * Render a preview. A coarse pass at a fraction of the resolution is displayed first, then the full
+     * resolution is rendered in tiles of rows. The preview is abandoned between tiles if the scene
+     * changes, so a moving camera does not wait for full frames.
+     */
     private void previewRender() throws InterruptedException {
-        // Generate camera starting rays
         int width = bufferedScene.canvasWidth();
         int height = bufferedScene.canvasHeight();
+        previewLighting = lighting(bufferedScene);
+
+        // Coarse pass
+        int coarseWidth = width / PREVIEW_COARSE_SCALE;
+        int coarseHeight = height / PREVIEW_COARSE_SCALE;
+        if (coarseWidth > 0 && coarseHeight > 0) {
+            intersectCl.setCamera(bufferedScene.camera(), bufferedScene.getOrigin(), coarseWidth, coarseHeight);
+            intersectCl.clearAccumulation();
+            long start = System.nanoTime();
+            intersectCl.rayTrace(random.nextInt(), 1, true, bufferedScene.sun(), 1);
+            timers.recordSince("preview.rayTrace", start);
+            presentPreview(coarseWidth, coarseHeight);
+
+            if (sceneProvider.pollSceneStateChange()) {
+                return;
+            }
+        }
 
-        double halfWidth = width / (2.0 * height);
-        double invHeight = 1.0 / height;
-
-        float[] rayDirs = new float[width * height * 3];
+        // Full resolution pass
+        intersectCl.setCamera(bufferedScene.camera(), bufferedScene.getOrigin(), width, height);
+        intersectCl.clearAccumulation();
 
-        Camera cam = bufferedScene.camera();
-        Ray ray = new Ray();
+        int seed = random.nextInt();
+        for (int row = 0; row < height; row += PREVIEW_TILE_ROWS) {
+            long start = System.nanoTime();
+            intersectCl.rayTrace(seed, 1, true, bufferedScene.sun(), 1, row, Math.min(row + PREVIEW_TILE_ROWS, height));
+            timers.recordSince("preview.rayTrace", start);
 
-        for (int i = 0; i < width; i++) {
-            for (int j = 0; j < height; j++) {
-                cam.calcViewRay(ray, -halfWidth + i*invHeight, -.5 +  j*invHeight);
-                rayDirs[(j * width + i)*3 + 0] = (float) ray.d.x;
-                rayDirs[(j * width + i)*3 + 1] = (float) ray.d.y;
-                rayDirs[(j * width + i)*3 + 2] = (float) ray.d.z;
+            if (sceneProvider.pollSceneStateChange()) {
+                return;
             }
         }
 
-        Vector3 origin = ray.o;
-        origin.x -= bufferedScene.getOrigin().x;
-        origin.y -= bufferedScene.getOrigin().y;
-        origin.z -= bufferedScene.getOrigin().z;
+        presentPreview(width, height);
+    }
 
-        double[] samples = bufferedScene.getSampleBuffer();
+    /**
+     * Shade the first hits of the last preview again with the current lighting, without tracing rays.
+     *
+     * @return false if the preview must be traced since the camera changed, the last preview did
+     * not finish or the emitters were turned on
+     */
+    private boolean relightPreview() throws InterruptedException {
+        int width = bufferedScene.canvasWidth();
+        int height = bufferedScene.canvasHeight();
+
+        // Emitters loaded with intensity 0 have no emittance to scale, load the block data again
+        if (loadedEmitterIntensity == 0 && bufferedScene.getEmitterIntensity() > 0) {
+            long start = System.nanoTime();
+            intersectCl.load(bufferedScene, renderTask, false);
+            loadedEmitterIntensity = bufferedScene.getEmitterIntensity();
+            timers.recordSince("scene.load", start);
+            return false;
+        }
 
-        // Do the rendering
-        float[] depthmap = intersectCl.rayTrace(rayDirs, origin, random.nextInt(), 1, true, bufferedScene.sun());
+        intersectCl.setCamera(bufferedScene.camera(), bufferedScene.getOrigin(), width, height);
 
-        for (int i = 0; i < depthmap.length; i++) {
-            samples[i] = depthmap[i];
+        long start = System.nanoTime();
+        double emitterScale = loadedEmitterIntensity > 0 ? bufferedScene.getEmitterIntensity() / loadedEmitterIntensity : 1;
+        if (!intersectCl.relight(bufferedScene.sun(), (float) emitterScale)) {
+            return false;
         }
+        timers.recordSince("preview.relight", start);
+        previewLighting = lighting(bufferedScene);
+
+        presentPreview(width, height);
+        return true;
+    }
 
-        // Tell worker threads to finalize all pixels and exit
-        synchronized (jobManager) {
-            jobManager.count = 0;
-            jobManager.finalize = false;
-            jobManager.preview = true;
-            jobManager.notifyAll();
+    /** Get the settings that relight can change: sun direction, intensity and color and emitter intensity */
+    private static double[] lighting(Scene scene) {
+        Sun sun = scene.sun();
+        Vector3 color = sun.getColor();
+        return new double[] {
+                sun.getAzimuth(), sun.getAltitude(), sun.getIntensity(), color.x, color.y, color.z,
+                scene.getEmitterIntensity()
+        };
+    }
+
+    /** Display the preview in the accumulation buffer, scaled up to the canvas size if it is smaller */
+    private void presentPreview(int width, int height) throws InterruptedException {
+        long start = System.nanoTime();
+        try {
+            presentPreviewFrame(width, height);
+        } finally {
+            timers.recordSince("preview.present", start);
         }
+    }
+
+    private void presentPreviewFrame(int width, int height) throws InterruptedException {
+        int canvasWidth = bufferedScene.canvasWidth();
+        int canvasHeight = bufferedScene.canvasHeight();
+        boolean scaled = width != canvasWidth || height != canvasHeight;
+
+        // Post-process on the device if possible, otherwise finalize all pixels on the CPU
+        if (useDeviceFrames()) {
+            intersectCl.setPostprocess(bufferedScene.getPostprocess(), bufferedScene.getExposure(), true);
+            int[] frame = new int[width * height];
+            intersectCl.readFrame(frame);
+
+            if (scaled) {
+                int[] canvasFrame = new int[canvasWidth * canvasHeight];
+                for (int y = 0; y < canvasHeight; y++) {
+                    int sourceRow = Math.min(y * height / canvasHeight, height - 1) * width;
+                    for (int x = 0; x < canvasWidth; x++) {
+                        canvasFrame[y * canvasWidth + x] = frame[sourceRow + Math.min(x * width / canvasWidth, width - 1)];
+                    }
+                }
+                frame = canvasFrame;
+            }
 
-        // Wait for worker threads to finish
-        synchronized (jobManager) {
-            while (jobManager.count != numThreads) {
-                jobManager.wait();
+            if (presenter.presentFrame(frame)) {
+                return;
             }
+        }
 
-            jobManager.preview = false;
-            jobManager.notifyAll();
+        double[] samples = scaled ? new double[width * height * 3] : bufferedScene.getSampleBuffer();
+        synchronized (bufferedScene) {
+            intersectCl.readAccumulation(samples);
+
+            if (scaled) {
+                double[] canvasSamples = bufferedScene.getSampleBuffer();
+                for (int y = 0; y < canvasHeight; y++) {
+                    int sourceRow = Math.min(y * height / canvasHeight, height - 1) * width;
+                    for (int x = 0; x < canvasWidth; x++) {
+                        int source = (sourceRow + Math.min(x * width / canvasWidth, width - 1)) * 3;
+                        System.arraycopy(samples, source, canvasSamples, (y * canvasWidth + x) * 3, 3);
+                    }
+                }
+            }
         }
+        presenter.presentNow();
     }
 
     private void finalRenderer(int targetSpp, TaskTracker.Task renderTask) throws InterruptedException {
         renderTask.update("Rendering", targetSpp, 0);
+        convergedFraction = 0;
+        sampleTime = 0;
+        kernelTime = 0;
+        readbackTime = 0;
+        rayCount = 0;
 
-        // Generate camera rays
-        int width = bufferedScene.canvasWidth();
-        int height = bufferedScene.canvasHeight();
-
-        double halfWidth = width / (2.0 * height);
-        double invHeight = 1.0 / height;
-
-        float[] rayDirs = new float[width * height * 3];
+        // Setup camera rays
+        intersectCl.setCamera(bufferedScene.camera(), bufferedScene.getOrigin(),
+                bufferedScene.canvasWidth(), bufferedScene.canvasHeight());
 
-        Camera cam = bufferedScene.camera();
-        Ray ray = new Ray();
+        double[] samples = bufferedScene.getSampleBuffer();
 
-        for (int i = 0; i < width; i++) {
-            for (int j = 0; j < height; j++) {
-                cam.calcViewRay(ray, -halfWidth + i*invHeight, -.5 +  j*invHeight);
-                rayDirs[(j * width + i)*3 + 0] = (float) ray.d.x;
-                rayDirs[(j * width + i)*3 + 1] = (float) ray.d.y;
-                rayDirs[(j * width + i)*3 + 2] = (float) ray.d.z;
-            }
+        // Continue from the current samples if the accumulation buffer does not hold them
+        if (bufferedScene.spp == 0) {
+            intersectCl.clearAccumulation();
+        } else if (intersectCl.getAccumulatedSpp() != bufferedScene.spp) {
+            intersectCl.loadAccumulation(samples, bufferedScene.spp);
         }
 
-        Vector3 origin = ray.o;
-        origin.x -= bufferedScene.getOrigin().x;
-        origin.y -= bufferedScene.getOrigin().y;
-        origin.z -= bufferedScene.getOrigin().z;
-
-        double[] samples = bufferedScene.getSampleBuffer();
-        float[] rendermap = new float[samples.length];
-
         long startTime = System.currentTimeMillis();
-
-        // Tell the render workers to continuously finalize all pixels
-        synchronized (jobManager) {
-            jobManager.count = 0;
-            jobManager.finalize = true;
-            jobManager.preview = false;
-            jobManager.notifyAll();
+        long lastDisplayTime = startTime;
+
+        // Display frames post-processed on the device, the samples are only read back for the listeners
+        boolean deviceFrames = useDeviceFrames();
+        int[] frame = null;
+        if (deviceFrames) {
+            intersectCl.setPostprocess(bufferedScene.getPostprocess(), bufferedScene.getExposure(), false);
+            frame = new int[bufferedScene.canvasWidth() * bufferedScene.canvasHeight()];
         }
 
-        for (int sample = bufferedScene.spp; sample < targetSpp; sample++) {
-            // Do the rendering
-            float[] depthmap = intersectCl.rayTrace(rayDirs, origin, random.nextInt(), bufferedScene.getRayDepth(), false, bufferedScene.sun());
-
-            // Update the output buffer
-            for (int j = 0; j < rendermap.length; j++) {
-                rendermap[j] += depthmap[j] * (1.0 / targetSpp);
-            }
+        // Pipelined render loop: the next batch is enqueued before the previous one is processed so the
+        // GPU keeps rendering while the CPU updates the screen and the listeners.
+        RayTracer.Batch pending = null;
+        int enqueuedSpp = bufferedScene.spp;
+
+        while (true) {
+            RayTracer.Batch next = null;
+            if (enqueuedSpp < targetSpp) {
+                int batch = intersectCl.nextBatchSize(targetSpp - enqueuedSpp);
+
+                // Only read back the samples when the frame complete listener needs them,
+                // a frame is enough for the screen
+                long time = System.currentTimeMillis();
+                RayTracer.Readback readback = RayTracer.Readback.NONE;
+                if (isFrameComplete(enqueuedSpp, enqueuedSpp + batch)) {
+                    readback = RayTracer.Readback.SAMPLES;
+                } else if (time - lastDisplayTime >= presenter.frameInterval) {
+                    readback = deviceFrames ? RayTracer.Readback.FRAME : RayTracer.Readback.SAMPLES;
+                }
+                if (readback != RayTracer.Readback.NONE) {
+                    lastDisplayTime = time;
+                }
 
-            // Scale the preview buffer
-            for (int i = 0; i < rendermap.length; i++) {
-                samples[i] = rendermap[i] * ((float) targetSpp / (sample + 1));
+                long enqueueStart = System.nanoTime();
+                next = intersectCl.enqueueBatch(random.nextInt(), bufferedScene.getRayDepth(), bufferedScene.sun(),
+                        batch, readback);
+                timers.recordSince("render.enqueue", enqueueStart);
+                enqueuedSpp += batch;
             }
 
-            // Update render bar
-            bufferedScene.renderTime = System.currentTimeMillis() - startTime;
-            bufferedScene.spp = sample + 1;
-            updateRenderProgress();
+            if (pending != null) {
+                long awaitStart = System.nanoTime();
+                pending.await();
+                timers.recordSince("render.await", awaitStart);
+                kernelTime += pending.getDuration();
+                rayCount += pending.getRays();
+
+                // Update render bar
+                bufferedScene.renderTime = System.currentTimeMillis() - startTime;
+                bufferedScene.spp = pending.getSpp();
+                convergedFraction = pending.getConvergedPixels() / ((double) bufferedScene.width * bufferedScene.height);
+                double batchSampleTime = pending.getDuration() / pending.getSamples();
+                sampleTime = sampleTime > 0 ? 0.5 * sampleTime + 0.5 * batchSampleTime : batchSampleTime;
+                long progressStart = System.nanoTime();
+                updateRenderProgress();
+                timers.recordSince("render.progress", progressStart);
+
+                long readStart = System.nanoTime();
+                if (pending.hasSamples()) {
+                    synchronized (bufferedScene) {
+                        pending.readSamples(samples);
+                    }
+                    readbackTime += (System.nanoTime() - readStart) / 1e6;
+                    timers.recordSince("render.readSamples", readStart);
+
+                    // Update the screen
+                    long presentStart = System.nanoTime();
+                    presenter.publish();
+                    timers.recordSince("render.present", presentStart);
+                } else if (pending.hasFrame()) {
+                    pending.readFrame(frame);
+                    readbackTime += (System.nanoTime() - readStart) / 1e6;
+                    timers.recordSince("render.readFrame", readStart);
+
+                    long presentStart = System.nanoTime();
+                    presenter.presentFrame(frame);
+                    timers.recordSince("render.present", presentStart);
+                }
 
-            // Update the screen
-            bufferedScene.swapBuffers();
-            canvas.repaint();
+                // Update frame complete listener
+                // TODO: execute if time since last frame > threshold? updating every frame causes performance issues
+                if (isFrameComplete(pending.getSpp() - pending.getSamples(), pending.getSpp())) {
+                    long listenerStart = System.nanoTime();
+                    frameCompleteListener.accept(bufferedScene, bufferedScene.spp);
+                    timers.recordSince("render.frameListener", listenerStart);
+                }
 
-            // Update frame complete listener
-            // TODO: execute if time since last frame > threshold? updating every frame causes performance issues
-            if (sample % 32 == 0) {
-                frameCompleteListener.accept(bufferedScene, sample);
+                // Check if render was canceled
+                if (mode == RenderMode.PAUSED || sceneProvider.pollSceneStateChange()) {
+                    // The next batch is already in the accumulation buffer
+                    if (next != null) {
+                        next.await();
+                        kernelTime += next.getDuration();
+                        rayCount += next.getRays();
+                        bufferedScene.spp = next.getSpp();
+                    }
+                    break;
+                }
             }
 
-            // Check if render was canceled
-            if (mode == RenderMode.PAUSED || sceneProvider.pollSceneStateChange()) {
+            if (next == null) {
                 break;
             }
+            pending = next;
         }
 
-        // Tell render workers to stop finalizing pixels
-        synchronized (jobManager) {
-            jobManager.finalize = false;
+        // Read back the final samples
+        long readStart = System.nanoTime();
+        synchronized (bufferedScene) {
+            intersectCl.readAccumulation(samples);
         }
+        readbackTime += (System.nanoTime() - readStart) / 1e6;
+        timers.recordSince("render.readAccumulation", readStart);
 
         // Update the screen
-        bufferedScene.swapBuffers();
-        canvas.repaint();
+        presenter.presentNow();
 
         // Inform render is complete
         renderCompleteListener.accept(bufferedScene.renderTime, samplesPerSecond());
     }
 
+    /** Time in milliseconds the backend spent on the batches of the last final render */
+    public double getKernelTime() {
+        return kernelTime;
+    }
+
+    /** Time in milliseconds spent copying samples and frames of the last final render on the host */
+    public double getReadbackTime() {
+        return readbackTime;
+    }
+
+    /** Number of rays traced in the last final render */
+    public long getRayCount() {
+        return rayCount;
+    }
+
+    /** Check if frames can be post-processed by the backend and displayed directly */
+    private boolean useDeviceFrames() {
+        return intersectCl.supportsFrames() && presenter.canPresentFrames();
+    }
+
+    /** The frame complete listener runs on the first sample and then every 32 samples */
+    private static boolean isFrameComplete(int previousSpp, int spp) {
+        return previousSpp == 0 || previousSpp / 32 != spp / 32;
+    }
+
     private void updateRenderProgress() {
         double renderTime = bufferedScene.renderTime / 1000.0;
 
         // Notify progress listener.
+        // The remaining samples are estimated from the time of the recent batches, which gets shorter as
+        // pixels converge, and from the average time before the first batch is measured
         int target = bufferedScene.getTargetSpp();
-        long etaSeconds = (long) (((target - bufferedScene.spp) * renderTime) / bufferedScene.spp);
+        String name = "Rendering";
+        if (convergedFraction > 0) {
+            name = String.format("Rendering, %d%% converged", (int) (convergedFraction * 100));
+        }
+        long etaSeconds;
+        if (sampleTime > 0) {
+            etaSeconds = (long) ((target - bufferedScene.spp) * sampleTime / 1000);
+        } else {
+            etaSeconds = (long) (((target - bufferedScene.spp) * renderTime) / bufferedScene.spp);
+        }
         if (etaSeconds > 0) {
             int seconds = (int) ((etaSeconds) % 60);
             int minutes = (int) ((etaSeconds / 60) % 60);
             int hours = (int) (etaSeconds / 3600);
             String eta = String.format("%d:%02d:%02d", hours, minutes, seconds);
-            renderTask.update("Rendering", target, bufferedScene.spp, eta);
+            renderTask.update(name, target, bufferedScene.spp, eta);
         } else {
-            renderTask.update("Rendering", target, bufferedScene.spp, "");
+            renderTask.update(name, target, bufferedScene.spp, "");
         }
 
         synchronized (this) {
+            Map<String, Double> stageTimes = timers.getTotalTimes();
             renderListeners.forEach(listener -> {
                 listener.setRenderTime(bufferedScene.renderTime);
                 listener.setSamplesPerSecond(samplesPerSecond());
                 listener.setSpp(bufferedScene.spp);
+                if (listener instanceof StageTimeListener) {
+                    ((StageTimeListener) listener).setStageTimes(stageTimes);
+                }
             });
         }
     }
@@ -392,10 +614,4 @@ public class RenderManagerCl extends Thread implements Renderer {
         double renderTime = bufferedScene.renderTime / 1000.0;
         return (int) ((bufferedScene.spp * pixelsPerFrame) / renderTime);
     }
-
-    public class JobManager {
-        public boolean finalize = false;
-        public boolean preview = false;
-        public int count = 0;
-    }
 }
@@ -0,0 +1,121 @@
+package chunkycl;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import se.llbit.log.Log;
+
+/**
+ * Timers for the stages of loading and rendering. Every stage counts its timings and sorts them into
+ * a histogram with power of two buckets. Device stages are measured with OpenCL profiling events,
+ * host stages with the wall clock.
+ */
+public class RenderTimers implements RenderTimersMBean {
+    /** The timers of the plugin, also registered with the platform MBean server */
+    public static final RenderTimers INSTANCE = register();
+
+    /** Number of histogram buckets, the first one ends at 1/64 ms and the last one is unbounded */
+    private static final int HISTOGRAM_BUCKETS = 24;
+    private static final double HISTOGRAM_RESOLUTION = 64;
+
+    private final Map<String, Stage> stages = new TreeMap<>();
+
+    private static RenderTimers register() {
+        RenderTimers timers = new RenderTimers();
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(timers,
+                    new ObjectName("chunkycl:type=RenderTimers"));
+        } catch (JMException e) {
+            Log.warn("Could not register the render timers with JMX", e);
+        }
+        return timers;
+    }
+
+    /** Add a timing of a stage in milliseconds */
+    public synchronized void record(String stage, double milliseconds) {
+        stages.computeIfAbsent(stage, name -> new Stage()).add(milliseconds);
+    }
+
+    /** Add the wall clock time since {@code startTime}, a value of System.nanoTime */
+    public void recordSince(String stage, long startTime) {
+        record(stage, (System.nanoTime() - startTime) / 1e6);
+    }
+
+    /** Get the total time of every stage in milliseconds */
+    public synchronized Map<String, Double> getTotalTimes() {
+        Map<String, Double> times = new TreeMap<>();
+        stages.forEach((name, stage) -> times.put(name, stage.total));
+        return times;
+    }
+
+    @Override public synchronized String[] getStages() {
+        return stages.keySet().toArray(new String[0]);
+    }
+
+    @Override public double[] getHistogramBounds() {
+        double[] bounds = new double[HISTOGRAM_BUCKETS - 1];
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = (1 << i) / HISTOGRAM_RESOLUTION;
+        }
+        return bounds;
+    }
+
+    @Override public synchronized long getCount(String stage) {
+        Stage s = stages.get(stage);
+        return s != null ? s.count : 0;
+    }
+
+    @Override public synchronized double getTotalTime(String stage) {
+        Stage s = stages.get(stage);
+        return s != null ? s.total : 0;
+    }
+
+    @Override public synchronized double getMeanTime(String stage) {
+        Stage s = stages.get(stage);
+        return s != null && s.count > 0 ? s.total / s.count : 0;
+    }
+
+    @Override public synchronized double getMaxTime(String stage) {
+        Stage s = stages.get(stage);
+        return s != null ? s.max : 0;
+    }
+
+    @Override public synchronized long[] getHistogram(String stage) {
+        Stage s = stages.get(stage);
+        return s != null ? s.histogram.clone() : new long[HISTOGRAM_BUCKETS];
+    }
+
+    @Override public synchronized String getSummary() {
+        StringBuilder summary = new StringBuilder();
+        stages.forEach((name, stage) -> summary.append(String.format("%-24s %8d %12.2f ms %10.3f ms %10.3f ms%n",
+                name, stage.count, stage.total, stage.total / stage.count, stage.max)));
+        return summary.toString();
+    }
+
+    @Override public synchronized void reset() {
+        stages.clear();
+    }
+
+    /** Timings of a single stage */
+    private static class Stage {
+        private long count = 0;
+        private double total = 0;
+        private double max = 0;
+        private final long[] histogram = new long[HISTOGRAM_BUCKETS];
+
+        private void add(double milliseconds) {
+            count += 1;
+            total += milliseconds;
+            max = Math.max(max, milliseconds);
+
+            // Bucket i holds times below 2^i / HISTOGRAM_RESOLUTION
+            double scaled = milliseconds * HISTOGRAM_RESOLUTION;
+            int bucket = scaled < 1 ? 0 : Math.getExponent(scaled) + 1;
+            histogram[Math.min(bucket, HISTOGRAM_BUCKETS - 1)] += 1;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package chunkycl;
+
+/**
+ * JMX view of the render stage timers, registered as {@code chunkycl:type=RenderTimers}. Times are in
+ * milliseconds.
+ */
+public interface RenderTimersMBean {
+    /** Names of the stages that were timed at least once */
+    String[] getStages();
+
+    /** Upper bounds of the histogram buckets in milliseconds. The last bucket has no upper bound. */
+    double[] getHistogramBounds();
+
+    /** Number of times a stage was timed */
+    long getCount(String stage);
+
+    /** Total time spent in a stage */
+    double getTotalTime(String stage);
+
+    /** Mean time of a stage */
+    double getMeanTime(String stage);
+
+    /** Longest time of a stage */
+    double getMaxTime(String stage);
+
+    /** Number of times of a stage in each histogram bucket */
+    long[] getHistogram(String stage);
+
+    /** One line per stage with the count, total, mean and maximum time */
+    String getSummary();
+
+    /** Clear all stages */
+    void reset();
+}
@@ -0,0 +1,298 @@
+package chunkycl;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import se.llbit.chunky.block.Block;
+import se.llbit.chunky.chunk.BlockPalette;
+import se.llbit.chunky.renderer.scene.Scene;
+import se.llbit.chunky.resources.Texture;
+import se.llbit.math.Octree;
+import se.llbit.math.PackedOctree;
+import se.llbit.util.TaskTracker;
+
+/**
+ * Host side scene data used by the ray tracers. This is extracted once per scene load and then
+ * uploaded to every device.
+ */
+public class SceneData {
+    /** Block flag, the block is skipped by rays */
+    public static final int FLAG_INVISIBLE = 1;
+    /** Block flag, the block emits light */
+    public static final int FLAG_EMISSIVE = 2;
+    /** Block flag, the block has a specular component */
+    public static final int FLAG_SPECULAR = 4;
+
+    /** Number of octree ints hashed together to detect changes between uploads */
+    public static final int OCTREE_SLICE_INTS = 8192 * 4 * 16;
+
+    /** Depth of the world octree */
+    public final int depth;
+
+    /** Packed octree nodes. This is the array of the scene octree, not a copy. */
+    public final int[] treeData;
+
+    /** Block texture atlas pixels in ARGB, padded to full rows of TextureAtlas.WIDTH pixels */
+    public final int[] blockTextures;
+
+    /** Block data, x = texture index, y/256 = emittance, z/256 = specular, w = flags */
+    public final int[] blockData;
+
+    private long[] octreeSliceHashes = null;
+    private LightGrid lightGrid = null;
+
+    SceneData(int depth, int[] treeData, int[] blockTextures, int[] blockData) {
+        this.depth = depth;
+        this.treeData = treeData;
+        this.blockTextures = blockTextures;
+        this.blockData = blockData;
+    }
+
+    /**
+     * Extract the octree, palette and textures from a scene.
+     *
+     * @return the scene data or null if it could not be accessed
+     */
+    @SuppressWarnings("unchecked")
+    public static SceneData load(Scene scene, TaskTracker.Task renderTask) {
+        Octree octree;
+        int[] treeData;
+
+        renderTask.update("Loading Octree into GPU", 3, 0);
+
+        // Obtain octree through reflection
+        try {
+            Field worldOctree = scene.getClass().getDeclaredField("worldOctree");
+            worldOctree.setAccessible(true);
+            octree = (Octree) worldOctree.get(scene);
+
+            Field worldOctreeImplementation = octree.getClass().getDeclaredField("implementation");
+            worldOctreeImplementation.setAccessible(true);
+            PackedOctree packedWorldOctree = (PackedOctree) worldOctreeImplementation.get(octree);
+
+            Field worldOctreeTreeData = packedWorldOctree.getClass().getDeclaredField("treeData");
+            worldOctreeTreeData.setAccessible(true);
+            treeData = (int[]) worldOctreeTreeData.get(packedWorldOctree);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            e.printStackTrace();
+            return null;
+        }
+
+        renderTask.update("Loading blocks into GPU", 3, 1);
+
+        List<Block> blockPalette;
+        BlockPalette palette = scene.getPalette();
+
+        // Get block palette through reflection
+        try {
+            Field blockPaletteList = palette.getClass().getDeclaredField("palette");
+            blockPaletteList.setAccessible(true);
+            blockPalette = (List<Block>) blockPaletteList.get(palette);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            e.printStackTrace();
+            return null;
+        }
+
+        renderTask.update("Loading Block Textures into GPU", 3, 2);
+
+        // Pack the block textures into a shared atlas
+        List<Texture> textures = new ArrayList<>(blockPalette.size());
+        for (Block block : blockPalette) {
+            textures.add(block.getTexture(0));
+        }
+        TextureAtlas atlas = TextureAtlas.get(textures);
+
+        int[] blockIndexesArray = new int[blockPalette.size() * 4];
+        for (int i = 0; i < blockPalette.size(); i++) {
+            Block block = blockPalette.get(i);
+
+            // Include block information in auxiliary array
+            blockIndexesArray[i*4] = atlas.offsets[i];
+            blockIndexesArray[i*4 + 1] = (int) (block.emittance * scene.getEmitterIntensity() * 256);
+            blockIndexesArray[i*4 + 2] = (int) (block.specular * 256);
+            blockIndexesArray[i*4 + 3] = flags(block);
+
+            // x = index, y/256 = emittance, z/256 = specular, w = flags
+        }
+
+        return new SceneData(octree.getDepth(), treeData, atlas.pixels, blockIndexesArray);
+    }
+
+    /**
+     * Generate a rolling terrain with a few light blocks for benchmarks. Block 0 is air, the other
+     * blocks have random 16x16 textures. The result only depends on the arguments.
+     *
+     * @param depth depth of the octree, the terrain is {@code 1 << depth} blocks wide
+     */
+    public static SceneData synthetic(int depth, long seed) {
+        int size = 1 << depth;
+        Random random = new Random(seed);
+
+        // Height map from a few random waves
+        double[] phases = new double[8];
+        for (int i = 0; i < phases.length; i++) {
+            phases[i] = random.nextDouble() * Math.PI * 2;
+        }
+        int[] heights = new int[size * size];
+        int[] range = {size, 0};
+        for (int z = 0; z < size; z++) {
+            for (int x = 0; x < size; x++) {
+                double h = 0;
+                for (int i = 0; i < 4; i++) {
+                    double frequency = (i + 1) * 2 * Math.PI / size;
+                    h += Math.sin(x * frequency + phases[i*2]) * Math.cos(z * frequency + phases[i*2 + 1]) / (i + 1);
+                }
+                int height = (int) (size * (0.35 + 0.1 * h));
+                heights[z * size + x] = height;
+                range[0] = Math.min(range[0], height);
+                range[1] = Math.max(range[1], height);
+            }
+        }
+
+        // Blocks: air, stone, dirt, grass, light
+        int blocks = 5;
+        int[] textures = new int[((blocks * 256) / TextureAtlas.WIDTH + 1) * TextureAtlas.WIDTH];
+        int[] blockData = new int[blocks * 4];
+        for (int block = 1; block < blocks; block++) {
+            int base = random.nextInt(0x1000000);
+            for (int i = 0; i < 256; i++) {
+                textures[block * 256 + i] = 0xFF000000 | (base ^ (random.nextInt(0x20) * 0x010101));
+            }
+            blockData[block*4] = block * 256;
+        }
+        blockData[3] = FLAG_INVISIBLE;
+        blockData[4*4 + 1] = 256;
+        blockData[4*4 + 3] = FLAG_EMISSIVE;
+
+        IntBlockFunction terrain = (x, y, z) -> {
+            int height = heights[z * size + x];
+            if (y > height) {
+                return 0;
+            } else if (y == height) {
+                return (x * 31 + z * 17) % 97 == 0 ? 4 : 3;
+            } else {
+                return y > height - 3 ? 2 : 1;
+            }
+        };
+
+        // Regions completely above or below the terrain are collapsed without visiting every block
+        int minHeight = range[0];
+        int maxHeight = range[1];
+        OctreeBuilder builder = new OctreeBuilder((x, y, z, level) -> {
+            if (y > maxHeight) {
+                return 0;
+            } else if (y + (1 << level) <= minHeight - 3) {
+                return 1;
+            } else if (level == 0) {
+                return terrain.get(x, y, z);
+            }
+            return -1;
+        });
+        return new SceneData(depth, builder.build(depth), textures, blockData);
+    }
+
+    /** Block type at a position */
+    private interface IntBlockFunction {
+        int get(int x, int y, int z);
+    }
+
+    /** Block type of a whole node, or -1 if the node has to be split */
+    interface NodeFunction {
+        int get(int x, int y, int z, int level);
+    }
+
+    /**
+     * Builds a packed octree in the format of PackedOctree. A node is the index of its first child if
+     * positive and the negated block type of a leaf otherwise. Uniform nodes are merged into leaves.
+     */
+    static final class OctreeBuilder {
+        private final NodeFunction nodes;
+        private int[] tree = new int[1024];
+        private int length = 1;
+
+        OctreeBuilder(NodeFunction nodes) {
+            this.nodes = nodes;
+        }
+
+        int[] build(int depth) {
+            // The tree may be reallocated while building, so the root is stored afterwards
+            int root = node(0, 0, 0, depth);
+            tree[0] = root;
+            return Arrays.copyOf(tree, length);
+        }
+
+        private int node(int x, int y, int z, int level) {
+            int type = nodes.get(x, y, z, level);
+            if (type >= 0) {
+                return -type;
+            }
+
+            // Reserve the children, subtrees of the children are appended after them
+            int first = length;
+            length += 8;
+            if (length > tree.length) {
+                tree = Arrays.copyOf(tree, tree.length * 2);
+            }
+
+            int half = 1 << (level - 1);
+            boolean uniform = true;
+            for (int i = 0; i < 8; i++) {
+                int child = node(x + ((i >> 2) & 1) * half, y + ((i >> 1) & 1) * half, z + (i & 1) * half, level - 1);
+                tree[first + i] = child;
+                uniform &= child <= 0 && child == tree[first];
+            }
+
+            if (uniform) {
+                length = first;
+                return tree[first];
+            }
+            return first;
+        }
+    }
+
+    /**
+     * Get a hash of every OCTREE_SLICE_INTS ints of the octree. Devices compare these with the hashes
+     * of their last upload to only write the parts of the octree that changed.
+     */
+    public synchronized long[] getOctreeSliceHashes() {
+        if (octreeSliceHashes == null) {
+            long[] hashes = new long[(treeData.length + OCTREE_SLICE_INTS - 1) / OCTREE_SLICE_INTS];
+            IntStream.range(0, hashes.length).parallel().forEach(slice -> {
+                int end = Math.min(treeData.length, (slice + 1) * OCTREE_SLICE_INTS);
+
+                // 64 bit FNV-1a over the ints of the slice
+                long hash = 0xcbf29ce484222325L;
+                for (int i = slice * OCTREE_SLICE_INTS; i < end; i++) {
+                    hash = (hash ^ treeData[i]) * 0x100000001b3L;
+                }
+                hashes[slice] = hash;
+            });
+            octreeSliceHashes = hashes;
+        }
+        return octreeSliceHashes;
+    }
+
+    /** Get the grid of the emissive blocks for emitter sampling. It is built on the first call. */
+    public synchronized LightGrid getLightGrid() {
+        if (lightGrid == null) {
+            lightGrid = LightGrid.build(this);
+        }
+        return lightGrid;
+    }
+
+    /** Get the flags of a block for the w component of the block data */
+    private static int flags(Block block) {
+        int flags = 0;
+        if (block.invisible)
+            flags |= FLAG_INVISIBLE;
+        if (block.emittance > 0)
+            flags |= FLAG_EMISSIVE;
+        if (block.specular > 0)
+            flags |= FLAG_SPECULAR;
+        return flags;
+    }
+}
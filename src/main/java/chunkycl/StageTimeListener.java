@@ -0,0 +1,14 @@
+package chunkycl;
+
+import java.util.Map;
+
+import se.llbit.chunky.renderer.RenderStatusListener;
+
+/**
+ * A render status listener that also receives the stage times of RenderTimers. Render listeners that
+ * implement this interface are updated together with the render time and samples per second.
+ */
+public interface StageTimeListener extends RenderStatusListener {
+    /** Set the total time of every stage in milliseconds, see RenderTimers */
+    void setStageTimes(Map<String, Double> times);
+}
@@ -0,0 +1,110 @@
+package chunkycl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import se.llbit.chunky.resources.Texture;
+
+/**
+ * Block textures packed into one image. Textures with identical pixels are stored once. The atlas
+ * of the last load is cached and reused if the textures did not change.
+ */
+public class TextureAtlas {
+    /** Width of the atlas in pixels */
+    public static final int WIDTH = 8192;
+
+    /** ARGB pixels, padded to full rows of WIDTH pixels */
+    public final int[] pixels;
+
+    /** Index of the first pixel of the texture of every block */
+    public final int[] offsets;
+
+    // Textures the atlas was built from, in block order
+    private final List<TextureKey> keys;
+
+    private static TextureAtlas cached = null;
+
+    private TextureAtlas(int[] pixels, int[] offsets, List<TextureKey> keys) {
+        this.pixels = pixels;
+        this.offsets = offsets;
+        this.keys = keys;
+    }
+
+    /** Get the atlas for the given block textures, reusing the cached atlas if possible */
+    public static synchronized TextureAtlas get(List<Texture> textures) {
+        List<TextureKey> keys = new ArrayList<>(textures.size());
+        for (Texture texture : textures) {
+            keys.add(new TextureKey(texture.getData()));
+        }
+
+        if (cached == null || !cached.keys.equals(keys)) {
+            cached = build(keys);
+        }
+        return cached;
+    }
+
+    /** Pack the unique textures into a new atlas */
+    static TextureAtlas build(List<TextureKey> keys) {
+        // Assign every unique texture its offset first so the atlas is allocated once
+        Map<TextureKey, Integer> unique = new HashMap<>();
+        int[] offsets = new int[keys.size()];
+        int length = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            TextureKey key = keys.get(i);
+            Integer offset = unique.get(key);
+            if (offset == null) {
+                offset = length;
+                unique.put(key, offset);
+                length += key.data.length;
+            }
+            offsets[i] = offset;
+        }
+
+        int[] pixels = new int[(length / WIDTH + 1) * WIDTH];
+        for (Map.Entry<TextureKey, Integer> entry : unique.entrySet()) {
+            int[] data = entry.getKey().data;
+            System.arraycopy(data, 0, pixels, entry.getValue(), data.length);
+        }
+
+        return new TextureAtlas(pixels, offsets, keys);
+    }
+
+    /** Convert ARGB pixels to RGBA bytes, which do not depend on the byte order of the host */
+    static byte[] toRgba(int[] argb) {
+        byte[] rgba = new byte[argb.length * 4];
+        for (int i = 0; i < argb.length; i++) {
+            int pixel = argb[i];
+            rgba[i*4] = (byte) (pixel >>> 16);
+            rgba[i*4 + 1] = (byte) (pixel >>> 8);
+            rgba[i*4 + 2] = (byte) pixel;
+            rgba[i*4 + 3] = (byte) (pixel >>> 24);
+        }
+        return rgba;
+    }
+
+    /** Texture pixels compared by content */
+    static final class TextureKey {
+        final int[] data;
+        final int hash;
+
+        TextureKey(int[] data) {
+            this.data = data;
+            this.hash = Arrays.hashCode(data);
+        }
+
+        @Override public int hashCode() {
+            return hash;
+        }
+
+        @Override public boolean equals(Object obj) {
+            if (!(obj instanceof TextureKey)) {
+                return false;
+            }
+            TextureKey other = (TextureKey) obj;
+            return hash == other.hash && (data == other.data || Arrays.equals(data, other.data));
+        }
+    }
+}
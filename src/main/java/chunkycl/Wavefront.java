@@ -0,0 +1,240 @@
+package chunkycl;
+
+import static org.jocl.CL.*;
+
+import org.jocl.*;
+
+/**
+ * Wavefront path tracing on one device. Instead of tracing whole paths in one work item like the
+ * rayTracer kernel, every bounce is split into an extend kernel that traverses the octree, a shadow
+ * kernel that traces the shadow rays and a shade kernel that samples the material. Rays that continue
+ * are compacted into the next ray queue, so the work items of a launch stay busy when paths end at
+ * different bounces.
+ *
+ * <p>The shadow kernel traces one shadow ray to the sun and one to an emitter from the light grid of
+ * the scene, see LightGrid. It stores the light of both and the light grid cell of the hit in the
+ * path state, the shade kernel adds the light and skips emitters that the previous hit already
+ * sampled.
+ *
+ * <p>The path state lives in device memory instead of private memory. Queue kernels are launched
+ * for the whole range of pixels and return early past the queue length, so the host never waits for
+ * the queue lengths. Adaptive launches start paths only for the pixels in the pixel queue of
+ * GpuRayTracer.
+ */
+class Wavefront {
+    /** Floats of path state per pixel, must match rayTracer.cl */
+    private static final int PATH_SIZE = 25;
+
+    private final cl_context context;
+    private final cl_command_queue commandQueue;
+
+    private final cl_kernel generateKernel;
+    private final cl_kernel extendKernel;
+    private final cl_kernel shadowKernel;
+    private final cl_kernel shadeKernel;
+    private final cl_kernel finishKernel;
+
+    // Per pixel path state, random state and hit block
+    private cl_mem paths = null;
+    private cl_mem rng = null;
+    private cl_mem hits = null;
+    private int capacity = 0;
+
+    // Ray queues hold pixel indices, alternated between bounces
+    private final cl_mem[] queues = new cl_mem[2];
+    private final cl_mem[] queueLengths = new cl_mem[2];
+
+    Wavefront(cl_context context, cl_command_queue commandQueue, cl_program program, cl_mem counters,
+              cl_mem pixelQueueLength) {
+        this.context = context;
+        this.commandQueue = commandQueue;
+
+        generateKernel = clCreateKernel(program, "wavefrontGenerate", null);
+        extendKernel = clCreateKernel(program, "wavefrontExtend", null);
+        shadowKernel = clCreateKernel(program, "wavefrontShadow", null);
+        shadeKernel = clCreateKernel(program, "wavefrontShade", null);
+        finishKernel = clCreateKernel(program, "wavefrontFinish", null);
+
+        for (int i = 0; i < 2; i++) {
+            queueLengths[i] = clCreateBuffer(context, CL_MEM_READ_WRITE, Sizeof.cl_int, null, null);
+        }
+
+        clSetKernelArg(finishKernel, 3, Sizeof.cl_mem, Pointer.to(counters));
+        clSetKernelArg(generateKernel, 14, Sizeof.cl_mem, Pointer.to(queueLengths[0]));
+        clSetKernelArg(generateKernel, 16, Sizeof.cl_mem, Pointer.to(pixelQueueLength));
+        clSetKernelArg(finishKernel, 5, Sizeof.cl_mem, Pointer.to(pixelQueueLength));
+    }
+
+    /** Set the scene arguments after a load */
+    void setScene(int depth, cl_mem octreeData, cl_mem octreeBuffer, int octreeLayout, cl_mem textures,
+                  cl_mem blockData) {
+        clSetKernelArg(extendKernel, 4, Sizeof.cl_int, Pointer.to(new int[] {depth}));
+        clSetKernelArg(extendKernel, 5, Sizeof.cl_mem, Pointer.to(octreeData));
+        clSetKernelArg(extendKernel, 6, Sizeof.cl_mem, Pointer.to(octreeBuffer));
+        clSetKernelArg(extendKernel, 7, Sizeof.cl_int, Pointer.to(new int[] {octreeLayout}));
+        clSetKernelArg(extendKernel, 8, Sizeof.cl_mem, Pointer.to(blockData));
+
+        clSetKernelArg(shadowKernel, 6, Sizeof.cl_int, Pointer.to(new int[] {depth}));
+        clSetKernelArg(shadowKernel, 7, Sizeof.cl_mem, Pointer.to(octreeData));
+        clSetKernelArg(shadowKernel, 8, Sizeof.cl_mem, Pointer.to(octreeBuffer));
+        clSetKernelArg(shadowKernel, 9, Sizeof.cl_int, Pointer.to(new int[] {octreeLayout}));
+        clSetKernelArg(shadowKernel, 10, Sizeof.cl_mem, Pointer.to(blockData));
+        clSetKernelArg(shadowKernel, 11, Sizeof.cl_mem, Pointer.to(textures));
+
+        clSetKernelArg(shadeKernel, 7, Sizeof.cl_mem, Pointer.to(textures));
+        clSetKernelArg(shadeKernel, 8, Sizeof.cl_mem, Pointer.to(blockData));
+    }
+
+    /** Set the light grid arguments after a load, see LightGrid */
+    void setLights(cl_mem lightCells, cl_mem lightList, cl_mem lights, int lightGridSize, int lightCellShift) {
+        clSetKernelArg(shadowKernel, 12, Sizeof.cl_mem, Pointer.to(lightCells));
+        clSetKernelArg(shadowKernel, 13, Sizeof.cl_mem, Pointer.to(lightList));
+        clSetKernelArg(shadowKernel, 14, Sizeof.cl_mem, Pointer.to(lights));
+        clSetKernelArg(shadowKernel, 15, Sizeof.cl_int, Pointer.to(new int[] {lightGridSize}));
+        clSetKernelArg(shadowKernel, 16, Sizeof.cl_int, Pointer.to(new int[] {lightCellShift}));
+
+        clSetKernelArg(shadeKernel, 18, Sizeof.cl_int, Pointer.to(new int[] {lightGridSize}));
+        clSetKernelArg(shadeKernel, 19, Sizeof.cl_int, Pointer.to(new int[] {lightCellShift}));
+    }
+
+    /** Set the camera arguments. float3 arguments are passed as 4 floats. */
+    void setCamera(CameraRays camera, cl_mem rayTable) {
+        clSetKernelArg(generateKernel, 0, Sizeof.cl_float * 4, Pointer.to(camera.origin));
+        clSetKernelArg(generateKernel, 1, Sizeof.cl_mem, Pointer.to(rayTable));
+        clSetKernelArg(generateKernel, 2, Sizeof.cl_float * 4, Pointer.to(camera.forward));
+        clSetKernelArg(generateKernel, 3, Sizeof.cl_float * 4, Pointer.to(camera.right));
+        clSetKernelArg(generateKernel, 4, Sizeof.cl_float * 4, Pointer.to(camera.up));
+        clSetKernelArg(generateKernel, 5, Sizeof.cl_int, Pointer.to(new int[] {camera.width}));
+        clSetKernelArg(generateKernel, 6, Sizeof.cl_int, Pointer.to(new int[] {camera.height}));
+        clSetKernelArg(generateKernel, 7, Sizeof.cl_int, Pointer.to(new int[] {camera.projection}));
+    }
+
+    /**
+     * Set the accumulation, statistics, G-buffer and pixel queue of the frame and make sure the path
+     * state can hold {@code pixels} pixels
+     */
+    void setFrameBuffers(cl_mem accum, cl_mem stats, cl_mem gbuffer, cl_mem pixelQueue, int pixels) {
+        if (pixels > capacity) {
+            if (paths != null) {
+                clReleaseMemObject(paths);
+                clReleaseMemObject(rng);
+                clReleaseMemObject(hits);
+                clReleaseMemObject(queues[0]);
+                clReleaseMemObject(queues[1]);
+            }
+
+            paths = clCreateBuffer(context, CL_MEM_READ_WRITE, (long) Sizeof.cl_float * PATH_SIZE * pixels, null, null);
+            rng = clCreateBuffer(context, CL_MEM_READ_WRITE, (long) Sizeof.cl_int * pixels, null, null);
+            hits = clCreateBuffer(context, CL_MEM_READ_WRITE, (long) Sizeof.cl_int * pixels, null, null);
+            queues[0] = clCreateBuffer(context, CL_MEM_READ_WRITE, (long) Sizeof.cl_int * pixels, null, null);
+            queues[1] = clCreateBuffer(context, CL_MEM_READ_WRITE, (long) Sizeof.cl_int * pixels, null, null);
+            capacity = pixels;
+
+            clSetKernelArg(generateKernel, 11, Sizeof.cl_mem, Pointer.to(paths));
+            clSetKernelArg(generateKernel, 12, Sizeof.cl_mem, Pointer.to(rng));
+            clSetKernelArg(generateKernel, 13, Sizeof.cl_mem, Pointer.to(queues[0]));
+
+            clSetKernelArg(extendKernel, 2, Sizeof.cl_mem, Pointer.to(paths));
+            clSetKernelArg(extendKernel, 3, Sizeof.cl_mem, Pointer.to(hits));
+
+            clSetKernelArg(shadowKernel, 2, Sizeof.cl_mem, Pointer.to(paths));
+            clSetKernelArg(shadowKernel, 3, Sizeof.cl_mem, Pointer.to(hits));
+            clSetKernelArg(shadowKernel, 4, Sizeof.cl_mem, Pointer.to(rng));
+
+            clSetKernelArg(shadeKernel, 4, Sizeof.cl_mem, Pointer.to(paths));
+            clSetKernelArg(shadeKernel, 5, Sizeof.cl_mem, Pointer.to(hits));
+            clSetKernelArg(shadeKernel, 6, Sizeof.cl_mem, Pointer.to(rng));
+
+            clSetKernelArg(finishKernel, 2, Sizeof.cl_mem, Pointer.to(paths));
+        }
+
+        clSetKernelArg(generateKernel, 15, Sizeof.cl_mem, Pointer.to(pixelQueue));
+        clSetKernelArg(finishKernel, 4, Sizeof.cl_mem, Pointer.to(pixelQueue));
+        clSetKernelArg(shadeKernel, 12, Sizeof.cl_mem, Pointer.to(accum));
+        clSetKernelArg(shadeKernel, 13, Sizeof.cl_mem, Pointer.to(stats));
+        clSetKernelArg(shadeKernel, 16, Sizeof.cl_mem, Pointer.to(gbuffer));
+        clSetKernelArg(finishKernel, 0, Sizeof.cl_mem, Pointer.to(stats));
+    }
+
+    /**
+     * Set the sun direction, the color used by the preview shading and the emittance used by the shadow
+     * rays. float3 arguments are passed as 4 floats.
+     */
+    void setSun(float[] sunPos, float[] sunColor, float[] sunEmittance) {
+        clSetKernelArg(shadowKernel, 5, Sizeof.cl_float * 4, Pointer.to(sunPos));
+        clSetKernelArg(shadeKernel, 14, Sizeof.cl_float * 4, Pointer.to(sunPos));
+        clSetKernelArg(shadeKernel, 15, Sizeof.cl_float * 4, Pointer.to(sunColor));
+        clSetKernelArg(shadeKernel, 17, Sizeof.cl_float * 4, Pointer.to(sunEmittance));
+    }
+
+    /**
+     * Enqueue {@code samples} samples for the pixels from {@code offset} to {@code offset + size}, or
+     * for the first {@code size} entries of the pixel queue if the launch is compacted. The event is
+     * set on the last kernel of the launch.
+     */
+    void enqueue(int seed, int rayDepth, boolean preview, int samples, long offset, long size, boolean compacted,
+                 cl_event event) {
+        long[] pixelOffset = new long[] {offset};
+        long[] workSize = new long[] {size};
+
+        // Preview rays go through the pixel center, render rays are jittered over the whole pixel
+        clSetKernelArg(generateKernel, 8, Sizeof.cl_float, Pointer.to(new float[] {preview ? 0 : 1}));
+        clSetKernelArg(generateKernel, 9, Sizeof.cl_int, Pointer.to(new int[] {seed}));
+        clSetKernelArg(generateKernel, 17, Sizeof.cl_int, Pointer.to(new int[] {compacted ? 1 : 0}));
+        clSetKernelArg(finishKernel, 6, Sizeof.cl_int, Pointer.to(new int[] {compacted ? 1 : 0}));
+        clSetKernelArg(shadeKernel, 10, Sizeof.cl_int, Pointer.to(new int[] {rayDepth}));
+        clSetKernelArg(shadeKernel, 11, Sizeof.cl_int, Pointer.to(new int[] {preview ? 1 : 0}));
+
+        // Previews only shade the first hit
+        int bounces = preview ? 1 : Math.max(1, rayDepth);
+
+        for (int sample = 0; sample < samples; sample++) {
+            clearQueue(0);
+            clSetKernelArg(generateKernel, 10, Sizeof.cl_int, Pointer.to(new int[] {sample}));
+            clSetKernelArg(shadeKernel, 20, Sizeof.cl_int, Pointer.to(new int[] {sample}));
+            clEnqueueNDRangeKernel(commandQueue, generateKernel, 1, pixelOffset, workSize, null, 0, null, null);
+
+            for (int bounce = 0; bounce < bounces; bounce++) {
+                int in = bounce & 1;
+                int out = in ^ 1;
+                clearQueue(out);
+
+                clSetKernelArg(extendKernel, 0, Sizeof.cl_mem, Pointer.to(queues[in]));
+                clSetKernelArg(extendKernel, 1, Sizeof.cl_mem, Pointer.to(queueLengths[in]));
+                clEnqueueNDRangeKernel(commandQueue, extendKernel, 1, null, workSize, null, 0, null, null);
+
+                // Previews do not sample the sun
+                if (!preview) {
+                    clSetKernelArg(shadowKernel, 0, Sizeof.cl_mem, Pointer.to(queues[in]));
+                    clSetKernelArg(shadowKernel, 1, Sizeof.cl_mem, Pointer.to(queueLengths[in]));
+                    clEnqueueNDRangeKernel(commandQueue, shadowKernel, 1, null, workSize, null, 0, null, null);
+                }
+
+                clSetKernelArg(shadeKernel, 0, Sizeof.cl_mem, Pointer.to(queues[in]));
+                clSetKernelArg(shadeKernel, 1, Sizeof.cl_mem, Pointer.to(queueLengths[in]));
+                clSetKernelArg(shadeKernel, 2, Sizeof.cl_mem, Pointer.to(queues[out]));
+                clSetKernelArg(shadeKernel, 3, Sizeof.cl_mem, Pointer.to(queueLengths[out]));
+                clSetKernelArg(shadeKernel, 9, Sizeof.cl_int, Pointer.to(new int[] {bounce}));
+                clEnqueueNDRangeKernel(commandQueue, shadeKernel, 1, null, workSize, null, 0, null, null);
+            }
+        }
+
+        clSetKernelArg(finishKernel, 1, Sizeof.cl_int, Pointer.to(new int[] {samples}));
+        clEnqueueNDRangeKernel(commandQueue, finishKernel, 1, pixelOffset, workSize, null, 0, null, event);
+    }
+
+    /** Get the number of bytes allocated for the path state and ray queues */
+    long getMemorySize() {
+        long size = 0;
+        for (cl_mem mem : new cl_mem[] {paths, rng, hits, queues[0], queues[1], queueLengths[0], queueLengths[1]}) {
+            size += GpuRayTracer.getMemSize(mem);
+        }
+        return size;
+    }
+
+    /** Reset the length of a ray queue */
+    private void clearQueue(int queue) {
+        clEnqueueFillBuffer(commandQueue, queueLengths[queue], Pointer.to(new int[] {0}), Sizeof.cl_int, 0,
+                Sizeof.cl_int, 0, null, null);
+    }
+}
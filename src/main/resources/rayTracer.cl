@@ -1,155 +1,675 @@
 #define EPS 0.000005    // Ray epsilon and exit offset
 #define OFFSET 0.0001   // TODO: refine these values?
+#define MAX_STEPS 1024  // Max octree nodes visited by a single ray
+#define RUSSIAN_ROULETTE_DEPTH 3  // Bounces before paths can be terminated by Russian roulette
+#define SUN_RADIUS 0.03f          // Angular radius of the sun disk, same as Chunky
+
+// Octree storage, must match GpuRayTracer
+#define OCTREE_LAYOUT_IMAGE 0   // 8192 x (x) image with 4 ints per texel
+#define OCTREE_LAYOUT_BUFFER 1  // Plain int buffer for octrees that do not fit in an image
+
+// Post processing modes, must match GpuRayTracer
+#define POSTPROCESS_NONE 0
+#define POSTPROCESS_GAMMA 1
+#define POSTPROCESS_TONEMAP1 2
+#define POSTPROCESS_TONEMAP2 3
+#define POSTPROCESS_TONEMAP3 4
+#define POSTPROCESS_PREVIEW 5
+
+#define DEFAULT_GAMMA 2.2f
+
+// Wavefront path state, must match GpuRayTracer. Floats per pixel and their offsets.
+#define PATH_SIZE 25
+#define PATH_ORIGIN 0
+#define PATH_DIRECTION 3
+#define PATH_NORMAL 6
+#define PATH_THROUGHPUT 9
+#define PATH_RADIANCE 12
+#define PATH_SCALE 15
+#define PATH_RAYS 18
+#define PATH_SUN 19
+#define PATH_LIGHT 20
+#define PATH_CELL 23
+#define PATH_PREV_CELL 24
+
+// First hit G-buffer of the preview, must match GpuRayTracer. Floats per pixel and their offsets.
+// The block is stored with as_float, -1 for the sky.
+#define GBUFFER_SIZE 10
+#define GBUFFER_POSITION 0
+#define GBUFFER_NORMAL 3
+#define GBUFFER_ALBEDO 6
+#define GBUFFER_BLOCK 9
+
+// Launch counters, must match GpuRayTracer. The ray count wraps at 2^32, far more than a launch traces.
+#define COUNTER_CONVERGED 0
+#define COUNTER_RAYS 1
+
+// Block flags stored in blockData.w, must match SceneData
+#define FLAG_INVISIBLE 1
+#define FLAG_EMISSIVE 2
+#define FLAG_SPECULAR 4
+
+// Camera projections, must match GpuRayTracer
+#define PROJECTION_PINHOLE 0
+#define PROJECTION_TABLE 1
 
 void getTextureRay(float color[3], float o[3], float n[3], float e[3], int block, image2d_t textures, image1d_t blockData);
-int intersect(image2d_t octreeData, int depth, int x, int y, int z, __global const int *transparent, int transparentLength);
-int octreeGet(int x, int y, int z, int bounds, image2d_t treeData);
-int octreeRead(int index, image2d_t treeData);
+int traceOctree(float o[3], float d[3], float n[3], float *distance, image2d_t octreeData, __global const int *octreeBuffer, int octreeLayout, int depth, image1d_t blockData);
+int isTransparent(int block, image1d_t blockData);
+int octreeGet(int x, int y, int z, int depth, image2d_t treeData, __global const int *treeBuffer, int layout, int *level);
+int octreeRead(int index, image2d_t treeData, __global const int *treeBuffer, int layout);
 int inbounds(float o[3], int bounds);
 void exitBlock(float o[3], float d[3], float n[3], float *distance);
+void exitNode(float o[3], float d[3], float n[3], float *distance, float size);
 void diffuseReflect(float d[3], float o[3], float n[3], unsigned int *state);
+int russianRoulette(float throughput[3], int bounce, unsigned int *state);
+int sampleEmitters(float light[3], float o[3], float n[3], unsigned int *state, int *rays, image2d_t octreeData,
+                   __global const int *octreeBuffer, int octreeLayout, int depth, image2d_t textures, image1d_t blockData,
+                   __global const int *lightCells, __global const int *lightList, __global const int *lights,
+                   int lightGridSize, int lightCellShift);
+int lightCell(float o[3], int lightGridSize, int lightCellShift);
+int nearLightCell(int a, int b, int lightGridSize);
+float sampleSun(float o[3], float n[3], float3 sunPos, unsigned int *state, int *rays, image2d_t octreeData,
+                __global const int *octreeBuffer, int octreeLayout, int depth, image1d_t blockData);
+void generateRay(float o[3], float d[3], int gid, float3 rayPos, float3 camForward, float3 camRight, float3 camUp,
+                 int width, int height, int projection, float jitter, __global const float *rayTable, unsigned int *state);
+
+// Adaptive sampling
+int skipConverged(int gid, int samples, __global float *accum, __global float *stats,
+                  float adaptiveThreshold, int adaptiveMinSamples);
+int launchPixel(__global const int *pixelQueue, __global const int *pixelQueueLength, int compacted);
+void addSample(int gid, float color[3], __global float *accum, __global float *stats);
+
+// Post processing
+void previewShade(float sampleColor[3], float color[3], float n[3], float e[3], float3 sunPos, float3 sunColor);
+void writeGBuffer(__global float *gbuffer, int gid, float o[3], float n[3], float color[3], int block);
+float postprocessChannel(float x, int mode);
+float hableCurve(float x);
 
 // Randomness
 void xorshift(unsigned int *state);
 float nextFloat(unsigned int *state);
 
 // Ray tracer entrypoint
-__kernel void rayTracer(__global const float *rayPos,
-                        __global const float *rayDir,
-                        __global const int *depth,
+__kernel void rayTracer(const float3 rayPos,
+                        __global const float *rayTable,
+                        const int depth,
                         image2d_t octreeData,
-                        __global const int *voxelLength,
-                        __global const int *transparent,
-                        __global const int *transparentLength,
+                        const int voxelLength,
                         image2d_t textures,
                         image1d_t blockData,
-                        __global const int *seed,
-                        __global const int *rayDepth,
-                        __global const int *preview,
-                        __global const float *sunPos,
-                        __global float *res)
+                        const int seed,
+                        const int rayDepth,
+                        const int preview,
+                        const float3 sunPos,
+                        __global float *accum,
+                        const float3 camForward,
+                        const float3 camRight,
+                        const float3 camUp,
+                        const int width,
+                        const int height,
+                        const int projection,
+                        const float jitter,
+                        const int samples,
+                        __global const int *octreeBuffer,
+                        const int octreeLayout,
+                        __global float *stats,
+                        __global int *counters,
+                        __global const int *pixelQueue,
+                        __global const int *pixelQueueLength,
+                        const float3 sunColor,
+                        __global float *gbuffer,
+                        const float3 sunEmittance,
+                        __global const int *lightCells,
+                        __global const int *lightList,
+                        __global const int *lights,
+                        const int lightGridSize,
+                        const int lightCellShift,
+                        const int compacted)
 {
-    int gid = get_global_id(0);
+    int gid = launchPixel(pixelQueue, pixelQueueLength, compacted);
+    if (gid < 0)
+        return;
+
     float distance = 0;
+    float sunLight[3] = {sunEmittance.x, sunEmittance.y, sunEmittance.z};
 
     // Initialize rng
-    unsigned int rngState = *seed * (gid+1);
+    unsigned int rngState = seed * (gid+1);
     unsigned int *random = &rngState;
     xorshift(random);
 
-    // Ray origin
+    // Previews only shade the first hit
+    int maxbounces = preview ? 1 : rayDepth;
+
+    // Rays traced by this work item
+    int rays = 0;
+
+    for (int sample = 0; sample < samples; sample++) {
+        // Generate the camera ray for this pixel
+        float o[3];
+        float d[3];
+        generateRay(o, d, gid, rayPos, camForward, camRight, camUp, width, height, projection, jitter, rayTable, random);
+
+        // Ray normal
+        float n[3] = {0};
+
+        // Junk array
+        float junk[3];
+
+        // The sample is scale * radiance. scale is the emittance of the first hit plus one, radiance is
+        // the emittance of the following hits weighted by the throughput, the product of the colors
+        // before them.
+        float scale[3] = {1, 1, 1};
+        float throughput[3] = {1, 1, 1};
+        float radiance[3] = {0};
+
+        // Light grid cell of the previous hit, -1 if no emitters were sampled there
+        int lastCell = -1;
+
+        // Do the bounces
+        for (int bounces = 0; bounces < maxbounces; bounces++)
+        {
+            float e[3] = {0};
+
+            // Find the next visible block, skipping empty octree nodes
+            int block = traceOctree(o, d, n, &distance, octreeData, octreeBuffer, octreeLayout, depth, blockData);
+            int hit = block >= 0;
+            rays++;
+
+            // Set color to sky color (1, 1, 1) or texture color
+            // TODO: Implement Nishita sky
+            float color[3];
+            if (hit) {
+                getTextureRay(color, o, n, e, block, textures, blockData);
+            } else {
+                color[0] = 1;
+                color[1] = 1;
+                color[2] = 1;
+
+                e[0] = color[0] * color[0];
+                e[1] = color[1] * color[1];
+                e[2] = color[2] * color[2];
+            }
+
+            if (preview) {
+                // Keep the first hit so the preview can be relit without tracing
+                previewShade(radiance, color, n, e, sunPos, sunColor);
+                if (sample == 0) {
+                    writeGBuffer(gbuffer, gid, o, n, color, block);
+                }
+                break;
+            }
+
+            // Emitters near the previous hit were already counted by its shadow ray
+            if (hit && bounces > 0 && nearLightCell(lastCell, lightCell(o, lightGridSize, lightCellShift), lightGridSize)) {
+                e[0] = e[1] = e[2] = 0;
+            }
+
+            // Add the color and emittance to the path
+            for (int i = 0; i < 3; i++) {
+                if (bounces == 0) {
+                    scale[i] = e[i] + 1;
+                    throughput[i] = color[i];
+                } else {
+                    radiance[i] += throughput[i] * e[i];
+                    throughput[i] *= color[i];
+                }
+            }
+
+            // Exit on sky-hit
+            if (!hit) break;
+
+            // Direct sunlight through a shadow ray to a random point on the sun disk
+            float sun = sampleSun(o, n, sunPos, random, &rays, octreeData, octreeBuffer, octreeLayout, depth, blockData);
+            for (int i = 0; i < 3; i++) {
+                radiance[i] += throughput[i] * sunLight[i] * sun;
+            }
+
+            // Direct light of a random emitter near the hit
+            float light[3];
+            lastCell = sampleEmitters(light, o, n, random, &rays, octreeData, octreeBuffer, octreeLayout, depth,
+                                      textures, blockData, lightCells, lightList, lights, lightGridSize, lightCellShift);
+            for (int i = 0; i < 3; i++) {
+                radiance[i] += throughput[i] * light[i];
+            }
+
+            if (!russianRoulette(throughput, bounces, random)) break;
+
+            // Calculate new diffuse reflection ray
+            // TODO: Implement specular reflection
+            diffuseReflect(d, o, n, random);
+            exitBlock(o, d, junk, &distance);
+        }
+
+        float sampleColor[3];
+        sampleColor[0] = scale[0] * radiance[0];
+        sampleColor[1] = scale[1] * radiance[1];
+        sampleColor[2] = scale[2] * radiance[2];
+        addSample(gid, sampleColor, accum, stats);
+    }
+
+    stats[gid*4 + 2] += samples;
+    stats[gid*4 + 3] += samples;
+    atomic_add(&counters[COUNTER_RAYS], rays);
+}
+
+// Wavefront ray generation. Starts one camera path for every pixel of the launch and appends it to the
+// ray queue. The first sample of a launch also seeds the random number generator.
+__kernel void wavefrontGenerate(const float3 rayPos,
+                                __global const float *rayTable,
+                                const float3 camForward,
+                                const float3 camRight,
+                                const float3 camUp,
+                                const int width,
+                                const int height,
+                                const int projection,
+                                const float jitter,
+                                const int seed,
+                                const int sample,
+                                __global float *paths,
+                                __global unsigned int *rng,
+                                __global int *queue,
+                                __global int *queueLength,
+                                __global const int *pixelQueue,
+                                __global const int *pixelQueueLength,
+                                const int compacted)
+{
+    int gid = launchPixel(pixelQueue, pixelQueueLength, compacted);
+    if (gid < 0)
+        return;
+
+    if (sample == 0) {
+        // Same random sequence as the rayTracer kernel
+        unsigned int rngState = seed * (gid+1);
+        xorshift(&rngState);
+        rng[gid] = rngState;
+    }
+
+    unsigned int rngState = rng[gid];
     float o[3];
-    o[0] = rayPos[0];
-    o[1] = rayPos[1];
-    o[2] = rayPos[2];
+    float d[3];
+    generateRay(o, d, gid, rayPos, camForward, camRight, camUp, width, height, projection, jitter, rayTable, &rngState);
+    rng[gid] = rngState;
+
+    __global float *path = paths + gid * PATH_SIZE;
+    for (int i = 0; i < 3; i++) {
+        path[PATH_ORIGIN + i] = o[i];
+        path[PATH_DIRECTION + i] = d[i];
+        path[PATH_NORMAL + i] = 0;
+        path[PATH_THROUGHPUT + i] = 1;
+        path[PATH_RADIANCE + i] = 0;
+        path[PATH_SCALE + i] = 1;
+    }
+    path[PATH_CELL] = -1;
+    path[PATH_PREV_CELL] = -1;
+    if (sample == 0) {
+        path[PATH_RAYS] = 0;
+    }
+
+    queue[atomic_inc(queueLength)] = gid;
+}
+
+// Wavefront extension. Finds the next hit of every queued ray.
+__kernel void wavefrontExtend(__global const int *queue,
+                              __global const int *queueLength,
+                              __global float *paths,
+                              __global int *hits,
+                              const int depth,
+                              image2d_t octreeData,
+                              __global const int *octreeBuffer,
+                              const int octreeLayout,
+                              image1d_t blockData)
+{
+    int index = get_global_id(0);
+    if (index >= *queueLength)
+        return;
 
-    // Ray direction
+    int gid = queue[index];
+    __global float *path = paths + gid * PATH_SIZE;
+
+    float o[3];
     float d[3];
-    d[0] = rayDir[gid*3 + 0];
-    d[1] = rayDir[gid*3 + 1];
-    d[2] = rayDir[gid*3 + 2];
+    float n[3];
+    for (int i = 0; i < 3; i++) {
+        o[i] = path[PATH_ORIGIN + i];
+        d[i] = path[PATH_DIRECTION + i];
+        n[i] = path[PATH_NORMAL + i];
+    }
 
-    // Ray normal
-    float n[3] = {0};
+    float distance = 0;
+    hits[gid] = traceOctree(o, d, n, &distance, octreeData, octreeBuffer, octreeLayout, depth, blockData);
+    path[PATH_RAYS] += 1;
 
-    // Junk array
-    float junk[3];
+    for (int i = 0; i < 3; i++) {
+        path[PATH_ORIGIN + i] = o[i];
+        path[PATH_NORMAL + i] = n[i];
+    }
+}
 
-    // Jitter each ray randomly
-    // TODO: Pass the jitter amount as an argument?
-    junk[0] = rayDir[gid*3 + 3] - d[0];
-    junk[1] = rayDir[gid*3 + 4] - d[1];
-    junk[2] = rayDir[gid*3 + 5] - d[2];
-
-    float jitter = sqrt(junk[0]*junk[0] + junk[1]*junk[1] + junk[2]*junk[2]);
-
-    d[0] += nextFloat(random) * jitter;
-    d[1] += nextFloat(random) * jitter;
-    d[2] += nextFloat(random) * jitter;
-
-    // Cap max bounces at 23 since no dynamic memory allocation
-    int maxbounces = *rayDepth;
-    if (maxbounces > 23) maxbounces = 23;
-
-    // Ray bounce data stacks
-    float colorStack[3 * 24] = {0};
-    float emittanceStack[3 * 24] = {0};
-
-    // Do the bounces
-    for (int bounces = 0; bounces < maxbounces; bounces++)
-    {
-        float e[3] = {0};
-        int hit = 0;
-
-        // Ray march 256 times
-        // TODO: Maybe march until octree exit? Test performance impact.
-        for (int i = 0; i < 256; i++) {
-            if (!intersect(octreeData, *depth, o[0], o[1], o[2], transparent, *transparentLength))
-                exitBlock(o, d, n, &distance);
-            else
-            {
-                hit = 1;
-                break;
-            }
+// Wavefront shadow rays. Samples the sun and a nearby emitter for every queued ray that hit a block and
+// stores the visible fraction of the sun light and the emitter light in the path, the shade kernel
+// weights them with the throughput. The light grid cell of the previous hit is kept for the shade kernel.
+__kernel void wavefrontShadow(__global const int *queue,
+                              __global const int *queueLength,
+                              __global float *paths,
+                              __global const int *hits,
+                              __global unsigned int *rng,
+                              const float3 sunPos,
+                              const int depth,
+                              image2d_t octreeData,
+                              __global const int *octreeBuffer,
+                              const int octreeLayout,
+                              image1d_t blockData,
+                              image2d_t textures,
+                              __global const int *lightCells,
+                              __global const int *lightList,
+                              __global const int *lights,
+                              const int lightGridSize,
+                              const int lightCellShift)
+{
+    int index = get_global_id(0);
+    if (index >= *queueLength)
+        return;
+
+    int gid = queue[index];
+    __global float *path = paths + gid * PATH_SIZE;
+
+    path[PATH_PREV_CELL] = path[PATH_CELL];
+    if (hits[gid] < 0) {
+        path[PATH_SUN] = 0;
+        path[PATH_CELL] = -1;
+        for (int i = 0; i < 3; i++) {
+            path[PATH_LIGHT + i] = 0;
+        }
+        return;
+    }
 
-            if (!inbounds(o, *depth))
-                break;
+    float o[3];
+    float n[3];
+    for (int i = 0; i < 3; i++) {
+        o[i] = path[PATH_ORIGIN + i];
+        n[i] = path[PATH_NORMAL + i];
+    }
+
+    unsigned int rngState = rng[gid];
+    int rays = 0;
+    path[PATH_SUN] = sampleSun(o, n, sunPos, &rngState, &rays, octreeData, octreeBuffer, octreeLayout, depth, blockData);
+
+    float light[3];
+    path[PATH_CELL] = sampleEmitters(light, o, n, &rngState, &rays, octreeData, octreeBuffer, octreeLayout, depth,
+                                     textures, blockData, lightCells, lightList, lights, lightGridSize, lightCellShift);
+    for (int i = 0; i < 3; i++) {
+        path[PATH_LIGHT + i] = light[i];
+    }
+    path[PATH_RAYS] += rays;
+    rng[gid] = rngState;
+}
+
+// Wavefront shading. Adds the hit of every queued ray to its path and appends the rays that continue
+// to the next queue. Finished paths are added to the accumulation buffer. The path is accumulated like
+// in the rayTracer kernel.
+__kernel void wavefrontShade(__global const int *queue,
+                             __global const int *queueLength,
+                             __global int *nextQueue,
+                             __global int *nextQueueLength,
+                             __global float *paths,
+                             __global const int *hits,
+                             __global unsigned int *rng,
+                             image2d_t textures,
+                             image1d_t blockData,
+                             const int bounce,
+                             const int rayDepth,
+                             const int preview,
+                             __global float *accum,
+                             __global float *stats,
+                             const float3 sunPos,
+                             const float3 sunColor,
+                             __global float *gbuffer,
+                             const float3 sunEmittance,
+                             const int lightGridSize,
+                             const int lightCellShift,
+                             const int sample)
+{
+    int index = get_global_id(0);
+    if (index >= *queueLength)
+        return;
+
+    int gid = queue[index];
+    __global float *path = paths + gid * PATH_SIZE;
+
+    float o[3];
+    float d[3];
+    float n[3];
+    for (int i = 0; i < 3; i++) {
+        o[i] = path[PATH_ORIGIN + i];
+        d[i] = path[PATH_DIRECTION + i];
+        n[i] = path[PATH_NORMAL + i];
+    }
+
+    int block = hits[gid];
+    int hit = block >= 0;
+
+    // Sky color (1, 1, 1) or texture color
+    float color[3];
+    float e[3];
+    if (hit) {
+        getTextureRay(color, o, n, e, block, textures, blockData);
+    } else {
+        for (int i = 0; i < 3; i++) {
+            color[i] = 1;
+            e[i] = 1;
+        }
+    }
+
+    if (preview) {
+        float sampleColor[3];
+        previewShade(sampleColor, color, n, e, sunPos, sunColor);
+        if (sample == 0) {
+            writeGBuffer(gbuffer, gid, o, n, color, block);
         }
+        addSample(gid, sampleColor, accum, stats);
+        return;
+    }
 
-        // Set color to sky color (1, 1, 1) or texture color
-        // TODO: Implement Nishita sky
-        float color[3];
-        if (hit) {
-            getTextureRay(color, o, n, e, octreeGet(o[0], o[1], o[2], *depth, octreeData), textures, blockData);
+    // Emitters near the previous hit were already counted by its shadow ray
+    int cell = lightCell(o, lightGridSize, lightCellShift);
+    if (hit && bounce > 0 && nearLightCell((int) path[PATH_PREV_CELL], cell, lightGridSize)) {
+        e[0] = e[1] = e[2] = 0;
+    }
+
+    float throughput[3];
+    for (int i = 0; i < 3; i++) {
+        if (bounce == 0) {
+            path[PATH_SCALE + i] = e[i] + 1;
+            throughput[i] = color[i];
         } else {
-            color[0] = 1;
-            color[1] = 1;
-            color[2] = 1;
+            path[PATH_RADIANCE + i] += path[PATH_THROUGHPUT + i] * e[i];
+            throughput[i] = path[PATH_THROUGHPUT + i] * color[i];
+        }
+    }
 
-            e[0] = color[0] * color[0];
-            e[1] = color[1] * color[1];
-            e[2] = color[2] * color[2];
+    // Direct sunlight and emitter light found by the shadow kernel
+    if (hit) {
+        float sunLight[3] = {sunEmittance.x, sunEmittance.y, sunEmittance.z};
+        for (int i = 0; i < 3; i++) {
+            path[PATH_RADIANCE + i] += throughput[i] * (sunLight[i] * path[PATH_SUN] + path[PATH_LIGHT + i]);
         }
+    }
 
-        // Add color and emittance to proper stacks
-        colorStack[bounces*3 + 0] = color[0];
-        colorStack[bounces*3 + 1] = color[1];
-        colorStack[bounces*3 + 2] = color[2];
+    unsigned int rngState = rng[gid];
+    if (hit && bounce + 1 < rayDepth && russianRoulette(throughput, bounce, &rngState)) {
+        // Continue with a diffuse reflection ray
+        float junk[3];
+        float distance = 0;
+        diffuseReflect(d, o, n, &rngState);
+        exitBlock(o, d, junk, &distance);
+        rng[gid] = rngState;
 
-        emittanceStack[bounces*3 + 0] = e[0];
-        emittanceStack[bounces*3 + 1] = e[1];
-        emittanceStack[bounces*3 + 2] = e[2];
+        for (int i = 0; i < 3; i++) {
+            path[PATH_ORIGIN + i] = o[i];
+            path[PATH_DIRECTION + i] = d[i];
+            path[PATH_THROUGHPUT + i] = throughput[i];
+        }
 
-        // Exit on sky-hit
-        if (!hit) break;
+        nextQueue[atomic_inc(nextQueueLength)] = gid;
+    } else {
+        rng[gid] = rngState;
 
-        // Calculate new diffuse reflection ray
-        // TODO: Implement specular reflection
-        diffuseReflect(d, o, n, random);
-        exitBlock(o, d, junk, &distance);
+        float sampleColor[3];
+        for (int i = 0; i < 3; i++) {
+            sampleColor[i] = path[PATH_SCALE + i] * path[PATH_RADIANCE + i];
+        }
+        addSample(gid, sampleColor, accum, stats);
     }
+}
+
+// Wavefront end of a launch. Counts the samples and rays of the pixels that were traced.
+__kernel void wavefrontFinish(__global float *stats,
+                              const int samples,
+                              __global const float *paths,
+                              __global int *counters,
+                              __global const int *pixelQueue,
+                              __global const int *pixelQueueLength,
+                              const int compacted)
+{
+    int gid = launchPixel(pixelQueue, pixelQueueLength, compacted);
+    if (gid < 0)
+        return;
+
+    stats[gid*4 + 2] += samples;
+    stats[gid*4 + 3] += samples;
+    atomic_add(&counters[COUNTER_RAYS], (int) paths[gid * PATH_SIZE + PATH_RAYS]);
+}
 
-    if (*preview) {
-        // preview shading = first intersect color * sun&ambient shading
-        double shading = n[0] * 0.25 + n[1]*0.866 + n[2]*0.433;
-        if (shading < 0.3) shading = 0.3;
+// Adaptive sampling pass of a launch. Adds the mean color to the converged pixels and appends the other
+// pixels to the pixel queue, the compacted kernels of the launch only trace the queued pixels.
+__kernel void adaptiveQueue(const int samples,
+                            __global float *accum,
+                            __global float *stats,
+                            __global int *counters,
+                            const float adaptiveThreshold,
+                            const int adaptiveMinSamples,
+                            __global int *pixelQueue,
+                            __global int *pixelQueueLength)
+{
+    int gid = get_global_id(0);
 
-        colorStack[0] *= shading;
-        colorStack[1] *= shading;
-        colorStack[2] *= shading;
+    if (skipConverged(gid, samples, accum, stats, adaptiveThreshold, adaptiveMinSamples)) {
+        atomic_inc(&counters[COUNTER_CONVERGED]);
     } else {
-        // rendering shading = accumulate over all bounces
-        // TODO: implement specular shading
-        for (int i = maxbounces - 1; i >= 0; i--) {
-            colorStack[i*3 + 0] *= colorStack[i*3 + 3] + emittanceStack[i*3 + 3];
-            colorStack[i*3 + 1] *= colorStack[i*3 + 4] + emittanceStack[i*3 + 4];
-            colorStack[i*3 + 2] *= colorStack[i*3 + 5] + emittanceStack[i*3 + 5];
+        pixelQueue[atomic_inc(pixelQueueLength)] = gid;
+    }
+}
+
+// Shade the preview G-buffer again with new lighting and replace the accumulated preview sample.
+// Emittance is recomputed from the block data, scaled by the change of the emitter intensity since the
+// block data was loaded. No rays are traced.
+__kernel void relight(__global const float *gbuffer,
+                      image1d_t blockData,
+                      const float3 sunPos,
+                      const float3 sunColor,
+                      const float emitterScale,
+                      __global float *accum)
+{
+    int gid = get_global_id(0);
+    __global const float *g = gbuffer + gid * GBUFFER_SIZE;
+
+    float n[3];
+    float color[3];
+    for (int i = 0; i < 3; i++) {
+        n[i] = g[GBUFFER_NORMAL + i];
+        color[i] = g[GBUFFER_ALBEDO + i];
+    }
+
+    // Same emittance as getTextureRay, the sky has an emittance of 1
+    float e[3] = {1, 1, 1};
+    int block = as_int(g[GBUFFER_BLOCK]);
+    if (block >= 0) {
+        sampler_t imageSampler = CLK_NORMALIZED_COORDS_FALSE |
+                                 CLK_ADDRESS_CLAMP_TO_EDGE |
+                                 CLK_FILTER_NEAREST;
+        int4 blockD = read_imagei(blockData, imageSampler, block);
+        for (int i = 0; i < 3; i++) {
+            e[i] = color[i] * color[i] * (blockD.y / 256.0f) * emitterScale;
         }
     }
 
-    res[gid*3 + 0] = colorStack[0] * (emittanceStack[0] + 1);
-    res[gid*3 + 1] = colorStack[1] * (emittanceStack[1] + 1);
-    res[gid*3 + 2] = colorStack[2] * (emittanceStack[2] + 1);
+    float sampleColor[3];
+    previewShade(sampleColor, color, n, e, sunPos, sunColor);
+    for (int i = 0; i < 3; i++) {
+        accum[gid*3 + i] = sampleColor[i];
+    }
+}
+
+// Preview shading = first intersect color * sun&ambient shading, plus the emittance
+void previewShade(float sampleColor[3], float color[3], float n[3], float e[3], float3 sunPos, float3 sunColor) {
+    float sun = n[0] * sunPos.x + n[1] * sunPos.y + n[2] * sunPos.z;
+    float sunLight[3] = {sunColor.x, sunColor.y, sunColor.z};
+
+    for (int i = 0; i < 3; i++) {
+        float shading = sun * sunLight[i];
+        if (shading < 0.3f) shading = 0.3f;
+        sampleColor[i] = color[i] * shading * (e[i] + 1);
+    }
+}
+
+// Store the first hit of a preview ray
+void writeGBuffer(__global float *gbuffer, int gid, float o[3], float n[3], float color[3], int block) {
+    __global float *g = gbuffer + gid * GBUFFER_SIZE;
+    for (int i = 0; i < 3; i++) {
+        g[GBUFFER_POSITION + i] = o[i];
+        g[GBUFFER_NORMAL + i] = n[i];
+        g[GBUFFER_ALBEDO + i] = color[i];
+    }
+    g[GBUFFER_BLOCK] = as_float(block);
+}
+
+// Adaptive sampling. stats holds the sum of the luminance, the sum of the squared luminance, the
+// number of traced samples and the total number of samples of every pixel. Once the standard error
+// of the mean luminance is small enough the pixel is no longer traced and its mean color is added
+// instead, so every pixel keeps the same number of samples in the accumulation buffer.
+// Returns 1 if the pixel converged and its samples were added.
+int skipConverged(int gid, int samples, __global float *accum, __global float *stats,
+                  float adaptiveThreshold, int adaptiveMinSamples) {
+    float traced = stats[gid*4 + 2];
+    float total = stats[gid*4 + 3];
+    if (adaptiveThreshold <= 0 || traced < adaptiveMinSamples)
+        return 0;
+
+    float mean = stats[gid*4 + 0] / traced;
+    float variance = max(stats[gid*4 + 1] / traced - mean * mean, 0.0f);
+    if (sqrt(variance / traced) > adaptiveThreshold * max(mean, 0.001f))
+        return 0;
+
+    float scale = samples / total;
+    accum[gid*3 + 0] += accum[gid*3 + 0] * scale;
+    accum[gid*3 + 1] += accum[gid*3 + 1] * scale;
+    accum[gid*3 + 2] += accum[gid*3 + 2] * scale;
+    stats[gid*4 + 3] = total + samples;
+    return 1;
+}
+
+// Get the pixel traced by a work item. Compacted launches trace the pixels in the pixel queue, the work
+// items past the end of the queue get -1. Other launches trace the pixel of the global id.
+int launchPixel(__global const int *pixelQueue, __global const int *pixelQueueLength, int compacted) {
+    int index = get_global_id(0);
+    if (!compacted)
+        return index;
+
+    return index < *pixelQueueLength ? pixelQueue[index] : -1;
+}
+
+// Add a sample to the accumulation buffer and the luminance statistics of a pixel. The sample counts
+// are updated once per launch by the caller.
+void addSample(int gid, float color[3], __global float *accum, __global float *stats) {
+    accum[gid*3 + 0] += color[0];
+    accum[gid*3 + 1] += color[1];
+    accum[gid*3 + 2] += color[2];
+
+    float luminance = 0.2126f * color[0] + 0.7152f * color[1] + 0.0722f * color[2];
+    stats[gid*4 + 0] += luminance;
+    stats[gid*4 + 1] += luminance * luminance;
 }
 
 // Xorshift random number generator based on
@@ -169,6 +689,47 @@ float nextFloat(unsigned int *state) {
     return (*state >> 8) / ((float) (1 << 24));
 }
 
+// Generate the camera ray through a random point of a pixel. Based on chunky code
+void generateRay(float o[3], float d[3], int gid, float3 rayPos, float3 camForward, float3 camRight, float3 camUp,
+                 int width, int height, int projection, float jitter, __global const float *rayTable, unsigned int *state) {
+    int px = gid % width;
+    int py = gid / width;
+
+    // Sub pixel offset, jitter = 0 samples the pixel center
+    float ox = 0.5 + (nextFloat(state) - 0.5) * jitter;
+    float oy = 0.5 + (nextFloat(state) - 0.5) * jitter;
+
+    o[0] = rayPos.x;
+    o[1] = rayPos.y;
+    o[2] = rayPos.z;
+
+    if (projection == PROJECTION_PINHOLE) {
+        float invHeight = 1.0 / height;
+        float x = -0.5 * width * invHeight + (px + ox) * invHeight;
+        float y = -0.5 + (py + oy) * invHeight;
+
+        d[0] = camForward.x + x * camRight.x + y * camUp.x;
+        d[1] = camForward.y + x * camRight.y + y * camUp.y;
+        d[2] = camForward.z + x * camRight.z + y * camUp.z;
+    } else {
+        // Interpolate between the directions at the pixel corners
+        int stride = width + 1;
+        int i00 = (py * stride + px) * 3;
+        int i01 = i00 + stride * 3;
+
+        for (int i = 0; i < 3; i++) {
+            float top = rayTable[i00 + i] + (rayTable[i00 + 3 + i] - rayTable[i00 + i]) * ox;
+            float bottom = rayTable[i01 + i] + (rayTable[i01 + 3 + i] - rayTable[i01 + i]) * ox;
+            d[i] = top + (bottom - top) * oy;
+        }
+    }
+
+    float r = 1 / sqrt(d[0] * d[0] + d[1] * d[1] + d[2] * d[2]);
+    d[0] *= r;
+    d[1] *= r;
+    d[2] *= r;
+}
+
 // Generate a diffuse reflection ray. Based on chunky code
 void diffuseReflect(float d[3], float o[3], float n[3], unsigned int *state) {
     float x1 = nextFloat(state);
@@ -214,6 +775,181 @@ void diffuseReflect(float d[3], float o[3], float n[3], unsigned int *state) {
     d[2] = uz * tx + vz * ty + n[2] * tz;
 }
 
+// Next event estimation of the sun. Traces a shadow ray from a hit towards a random point on the sun
+// disk and returns the cosine between the shadow ray and the normal if the sun is visible, 0 otherwise.
+// The sun light is the sun emittance times this value, like the sun sampling in Chunky.
+float sampleSun(float o[3], float n[3], float3 sunPos, unsigned int *state, int *rays, image2d_t octreeData,
+                __global const int *octreeBuffer, int octreeLayout, int depth, image1d_t blockData) {
+    // Uniform direction in the cone of the sun disk
+    float x1 = nextFloat(state);
+    float x2 = nextFloat(state);
+    float cosTheta = 1 - x1 * (1 - cos(SUN_RADIUS));
+    float sinTheta = sqrt(1 - cosTheta * cosTheta);
+    float phi = 2 * M_PI * x2;
+
+    float s[3] = {sunPos.x, sunPos.y, sunPos.z};
+    float u[3];
+    if (fabs(s[0]) > .1) {
+        u[0] = -s[2];
+        u[1] = 0;
+        u[2] = s[0];
+    } else {
+        u[0] = 0;
+        u[1] = s[2];
+        u[2] = -s[1];
+    }
+    float r = 1 / sqrt(u[0] * u[0] + u[1] * u[1] + u[2] * u[2]);
+    u[0] *= r;
+    u[1] *= r;
+    u[2] *= r;
+    float v[3] = {s[1] * u[2] - s[2] * u[1], s[2] * u[0] - s[0] * u[2], s[0] * u[1] - s[1] * u[0]};
+
+    float d[3];
+    for (int i = 0; i < 3; i++) {
+        d[i] = u[i] * sinTheta * cos(phi) + v[i] * sinTheta * sin(phi) + s[i] * cosTheta;
+    }
+
+    float cosine = d[0] * n[0] + d[1] * n[1] + d[2] * n[2];
+    if (cosine <= 0)
+        return 0;
+
+    // Leave the hit block like a reflected ray and look for anything in the way
+    float so[3] = {o[0], o[1], o[2]};
+    float junk[3];
+    float distance = 0;
+    exitBlock(so, d, junk, &distance);
+    *rays += 1;
+    if (traceOctree(so, d, junk, &distance, octreeData, octreeBuffer, octreeLayout, depth, blockData) >= 0)
+        return 0;
+
+    return cosine;
+}
+
+// Next event estimation of the emissive blocks. Picks a random emitter from the light grid cell of the
+// hit, a random face of it that faces the hit and a random point on that face, and traces a shadow ray
+// to the point. light is the emitted light reaching the hit divided by the probability of the sample,
+// 0 if the point is hidden. Returns the cell of the hit, -1 if the light grid is empty.
+int sampleEmitters(float light[3], float o[3], float n[3], unsigned int *state, int *rays, image2d_t octreeData,
+                   __global const int *octreeBuffer, int octreeLayout, int depth, image2d_t textures, image1d_t blockData,
+                   __global const int *lightCells, __global const int *lightList, __global const int *lights,
+                   int lightGridSize, int lightCellShift) {
+    light[0] = light[1] = light[2] = 0;
+
+    int cell = lightCell(o, lightGridSize, lightCellShift);
+    if (cell < 0)
+        return -1;
+
+    int start = lightCells[cell];
+    int count = lightCells[cell + 1] - start;
+    if (count == 0)
+        return cell;
+
+    int emitter = lightList[start + min((int) (nextFloat(state) * count), count - 1)];
+    float l[3] = {lights[emitter*4], lights[emitter*4 + 1], lights[emitter*4 + 2]};
+    int block = lights[emitter*4 + 3];
+    float x0 = nextFloat(state);
+    float x1 = nextFloat(state);
+    float x2 = nextFloat(state);
+
+    // Faces of the emitter that face the hit, there are none if the hit is the emitter itself
+    int faces = 0;
+    for (int a = 0; a < 3; a++) {
+        if (fabs(o[a] - (l[a] + 0.5f)) > 0.5f)
+            faces++;
+    }
+    if (faces == 0)
+        return cell;
+
+    int face = min((int) (x0 * faces), faces - 1);
+    int axis = -1;
+    for (int a = 0; a < 3 && axis < 0; a++) {
+        if (fabs(o[a] - (l[a] + 0.5f)) > 0.5f && face-- == 0)
+            axis = a;
+    }
+
+    // Random point on the face
+    int b = axis == 0 ? 1 : 0;
+    int c = axis == 2 ? 1 : 2;
+    float ln[3] = {0, 0, 0};
+    float p[3];
+    ln[axis] = o[axis] > l[axis] ? 1 : -1;
+    p[axis] = ln[axis] > 0 ? l[axis] + 1 : l[axis];
+    p[b] = l[b] + x1;
+    p[c] = l[c] + x2;
+
+    float d[3] = {p[0] - o[0], p[1] - o[1], p[2] - o[2]};
+    float r2 = d[0] * d[0] + d[1] * d[1] + d[2] * d[2];
+    float r = sqrt(r2);
+    d[0] /= r;
+    d[1] /= r;
+    d[2] /= r;
+
+    float cosine = d[0] * n[0] + d[1] * n[1] + d[2] * n[2];
+    float lightCosine = -(d[0] * ln[0] + d[1] * ln[1] + d[2] * ln[2]);
+    if (cosine <= 0 || lightCosine <= 0)
+        return cell;
+
+    // The point is visible if the emitter is the first block hit by the shadow ray
+    float so[3] = {o[0], o[1], o[2]};
+    float junk[3];
+    float distance = 0;
+    exitBlock(so, d, junk, &distance);
+    *rays += 1;
+    if (traceOctree(so, d, junk, &distance, octreeData, octreeBuffer, octreeLayout, depth, blockData) < 0
+            || floor(so[0]) != l[0] || floor(so[1]) != l[1] || floor(so[2]) != l[2])
+        return cell;
+
+    float color[3];
+    float e[3];
+    getTextureRay(color, p, ln, e, block, textures, blockData);
+
+    // Divide by the probability of the point, faces have an area of 1
+    float weight = cosine * lightCosine / (M_PI * r2) * faces * count;
+    for (int i = 0; i < 3; i++) {
+        light[i] = e[i] * weight;
+    }
+    return cell;
+}
+
+// Get the light grid cell of a hit, -1 if the light grid is empty
+int lightCell(float o[3], int lightGridSize, int lightCellShift) {
+    if (lightGridSize == 0)
+        return -1;
+
+    int x = clamp(((int) floor(o[0])) >> lightCellShift, 0, lightGridSize - 1);
+    int y = clamp(((int) floor(o[1])) >> lightCellShift, 0, lightGridSize - 1);
+    int z = clamp(((int) floor(o[2])) >> lightCellShift, 0, lightGridSize - 1);
+    return (x * lightGridSize + y) * lightGridSize + z;
+}
+
+// Check if the emitters listed for cell a include the emitters in cell b, i.e. if b is a or one of its
+// neighbors. Returns 0 if either cell is -1.
+int nearLightCell(int a, int b, int lightGridSize) {
+    if (a < 0 || b < 0)
+        return 0;
+
+    int size2 = lightGridSize * lightGridSize;
+    return abs(a / size2 - b / size2) <= 1
+            && abs((a / lightGridSize) % lightGridSize - (b / lightGridSize) % lightGridSize) <= 1
+            && abs(a % lightGridSize - b % lightGridSize) <= 1;
+}
+
+// Randomly terminate paths with a low throughput. Surviving paths are weighted up by the inverse of the
+// survival probability so the result stays unbiased. Returns 0 if the path is terminated.
+int russianRoulette(float throughput[3], int bounce, unsigned int *state) {
+    if (bounce < RUSSIAN_ROULETTE_DEPTH)
+        return 1;
+
+    float p = min(max(throughput[0], max(throughput[1], throughput[2])), 1.0f);
+    if (nextFloat(state) >= p)
+        return 0;
+
+    throughput[0] /= p;
+    throughput[1] /= p;
+    throughput[2] /= p;
+    return 1;
+}
+
 // Calculate the texture value of a ray
 void getTextureRay(float color[3], float o[3], float n[3], float e[3], int block, image2d_t textures, image1d_t blockData) {
     sampler_t imageSampler = CLK_NORMALIZED_COORDS_FALSE |
@@ -251,28 +987,11 @@ void getTextureRay(float color[3], float o[3], float n[3], float e[3], int block
     int index = blockD.x;
     index += 16 * (int) v + (int) u;
 
-    // Lookup texture value
-    uint4 texturePixels = read_imageui(textures, imageSampler, (int2) ((index / 4) % 8192, (index / 4) / 8192));
-    unsigned int argb;
-
-    switch (index % 4) {
-        case 0:
-            argb = texturePixels.x;
-            break;
-        case 1:
-            argb = texturePixels.y;
-            break;
-        case 2:
-            argb = texturePixels.z;
-            break;
-        default:
-            argb = texturePixels.w;
-    }
-
-    // Separate ARGB value
-    color[0] = (0xFF & (argb >> 16)) / 256.0;
-    color[1] = (0xFF & (argb >> 8 )) / 256.0;
-    color[2] = (0xFF & (argb >> 0 )) / 256.0;
+    // Lookup texture value, the atlas is normalized to [0, 1] by the image format
+    float4 texturePixel = read_imagef(textures, imageSampler, (int2) (index % 8192, index / 8192));
+    color[0] = texturePixel.x;
+    color[1] = texturePixel.y;
+    color[2] = texturePixel.z;
 
     // Calculate emittance
     e[0] = color[0] * color[0] * (blockD.y / 256.0);
@@ -282,28 +1001,32 @@ void getTextureRay(float color[3], float o[3], float n[3], float e[3], int block
     // TODO: Specular reflection?
 }
 
-// Get the value of a location in the octree
-int octreeGet(int x, int y, int z, int depth, image2d_t treeData) {
+// Get the value of a location in the octree and the level of the leaf node containing it.
+// The leaf node is a cube with a side length of 1 << level.
+int octreeGet(int x, int y, int z, int depth, image2d_t treeData, __global const int *treeBuffer, int layout, int *level) {
     int nodeIndex = 0;
-    int level = depth;
+    *level = depth;
 
-    int data = octreeRead(nodeIndex, treeData);
+    int data = octreeRead(nodeIndex, treeData, treeBuffer, layout);
     while (data > 0) {
-        level -= 1;
+        *level -= 1;
 
-        int lx = 1 & (x >> level);
-        int ly = 1 & (y >> level);
-        int lz = 1 & (z >> level);
+        int lx = 1 & (x >> *level);
+        int ly = 1 & (y >> *level);
+        int lz = 1 & (z >> *level);
 
         nodeIndex = data + ((lx << 2) | (ly << 1) | lz);
-        data = octreeRead(nodeIndex, treeData);
+        data = octreeRead(nodeIndex, treeData, treeBuffer, layout);
     }
 
     return -data;
 }
 
 // Get the value in the octree array
-int octreeRead(int index, image2d_t treeData) {
+int octreeRead(int index, image2d_t treeData, __global const int *treeBuffer, int layout) {
+    if (layout == OCTREE_LAYOUT_BUFFER)
+        return treeBuffer[index];
+
     sampler_t voxelSampler = CLK_NORMALIZED_COORDS_FALSE |
                              CLK_ADDRESS_CLAMP_TO_EDGE |
                              CLK_FILTER_NEAREST;
@@ -322,15 +1045,33 @@ int octreeRead(int index, image2d_t treeData) {
     }
 }
 
-// Check intersect with octree
+// Move the ray forward until it hits a visible block. Transparent leaf nodes are skipped as a whole
+// instead of one block at a time. Returns the block or -1 if the ray leaves the octree.
 // TODO: check BVH tree and custom block models
-int intersect(image2d_t octreeData, int depth, int x, int y, int z, __global const int *transparent, int transparentLength) {
-    int block = octreeGet(x, y, z, depth, octreeData);
+int traceOctree(float o[3], float d[3], float n[3], float *distance, image2d_t octreeData, __global const int *octreeBuffer, int octreeLayout, int depth, image1d_t blockData) {
+    for (int i = 0; i < MAX_STEPS; i++) {
+        int level;
+        int block = octreeGet(o[0], o[1], o[2], depth, octreeData, octreeBuffer, octreeLayout, &level);
 
-    for (int i = 0; i < transparentLength; i++)
-        if (block == transparent[i])
-            return 0;
-    return 1;
+        if (!isTransparent(block, blockData))
+            return block;
+
+        exitNode(o, d, n, distance, 1 << level);
+
+        if (!inbounds(o, depth))
+            return -1;
+    }
+
+    return -1;
+}
+
+// Check if a block is invisible
+int isTransparent(int block, image1d_t blockData) {
+    sampler_t imageSampler = CLK_NORMALIZED_COORDS_FALSE |
+                             CLK_ADDRESS_CLAMP_TO_EDGE |
+                             CLK_FILTER_NEAREST;
+
+    return read_imagei(blockData, imageSampler, block).w & FLAG_INVISIBLE;
 }
 
 // Check if we are inbounds
@@ -348,12 +1089,17 @@ int inbounds(float o[3], int depth) {
 
 // Exit the current block. Based on chunky code.
 void exitBlock(float o[3], float d[3], float n[3], float *distance) {
+    exitNode(o, d, n, distance, 1);
+}
+
+// Exit the current axis aligned cube with the given side length
+void exitNode(float o[3], float d[3], float n[3], float *distance, float size) {
     float tNext = 10000000;
 
     float b[3];
-    b[0] = floor(o[0]);
-    b[1] = floor(o[1]);
-    b[2] = floor(o[2]);
+    b[0] = floor(o[0] / size) * size;
+    b[1] = floor(o[1] / size) * size;
+    b[2] = floor(o[2] / size) * size;
 
     float t = (b[0] - o[0]) / d[0];
     if (t > EPS) {
@@ -361,7 +1107,7 @@ void exitBlock(float o[3], float d[3], float n[3], float *distance) {
         n[0] = 1;
         n[1] = n[2] = 0;
     } else {
-        t = ((b[0] + 1) - o[0]) / d[0];
+        t = ((b[0] + size) - o[0]) / d[0];
         if (t < tNext && t > EPS) {
             tNext = t;
             n[0] = -1;
@@ -376,7 +1122,7 @@ void exitBlock(float o[3], float d[3], float n[3], float *distance) {
         n[0] = n[2] = 0;
     }
     else {
-        t = ((b[1] + 1) - o[1]) / d[1];
+        t = ((b[1] + size) - o[1]) / d[1];
         if (t < tNext && t > EPS) {
             tNext = t;
             n[1] = -1;
@@ -390,7 +1136,7 @@ void exitBlock(float o[3], float d[3], float n[3], float *distance) {
         n[2] = 1;
         n[0] = n[1] = 0;
     } else {
-        t = ((b[2] + 1) - o[2]) / d[2];
+        t = ((b[2] + size) - o[2]) / d[2];
         if (t < tNext && t > EPS) {
             tNext = t;
             n[2] = -1;
@@ -408,3 +1154,58 @@ void exitBlock(float o[3], float d[3], float n[3], float *distance) {
 
     *distance += tNext;
 }
+
+// Convert the accumulated samples to ARGB pixels, based on Scene.postProcessPixel in Chunky
+__kernel void postprocess(__global const float *accum,
+                          __global int *frame,
+                          const float scale,
+                          const float exposure,
+                          const int mode)
+{
+    int gid = get_global_id(0);
+    int argb = 0xFF000000;
+
+    for (int i = 0; i < 3; i++) {
+        float x = postprocessChannel(accum[gid*3 + i] * scale * exposure, mode);
+        x = clamp(x, 0.0f, 1.0f);
+        argb |= ((int) (x * 255 + 0.5f)) << (16 - 8*i);
+    }
+
+    frame[gid] = argb;
+}
+
+// Apply the post processing curve to a color channel
+float postprocessChannel(float x, int mode) {
+    switch (mode) {
+        case POSTPROCESS_GAMMA:
+            return pow(x, 1 / DEFAULT_GAMMA);
+        case POSTPROCESS_TONEMAP1:
+            // http://filmicgames.com/archives/75
+            x = max(0.0f, x - 0.004f);
+            return (x * (6.2f * x + 0.5f)) / (x * (6.2f * x + 1.7f) + 0.06f);
+        case POSTPROCESS_TONEMAP2:
+            // https://knarkowicz.wordpress.com/2016/01/06/aces-filmic-tone-mapping-curve/
+            // Unlike TONEMAP1 the curve has no gamma built in, so it is applied after, like in Chunky
+            x = clamp((x * (2.51f * x + 0.03f)) / (x * (2.43f * x + 0.59f) + 0.14f), 0.0f, 1.0f);
+            return pow(x, 1 / DEFAULT_GAMMA);
+        case POSTPROCESS_TONEMAP3:
+            // Exposure is adjusted by 16 to roughly match the other curves, 11.2 is the white point
+            x = hableCurve(x * 16) / hableCurve(11.2f);
+            return pow(max(x, 0.0f), 1 / DEFAULT_GAMMA);
+        case POSTPROCESS_PREVIEW:
+            return sqrt(x);
+        default:
+            return x;
+    }
+}
+
+// Hable filmic curve, http://filmicgames.com/archives/75
+float hableCurve(float x) {
+    float a = 0.15f;
+    float b = 0.50f;
+    float c = 0.10f;
+    float d = 0.20f;
+    float e = 0.02f;
+    float f = 0.30f;
+    return ((x * (a * x + c * b) + d * e) / (x * (a * x + b) + d * f)) - e / f;
+}
@@ -0,0 +1,63 @@
+package chunkycl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import se.llbit.chunky.renderer.scene.Camera;
+import se.llbit.chunky.renderer.scene.Scene;
+import se.llbit.math.Vector3;
+
+/**
+ * Like the kernel, the CPU backend seeds every pixel from the launch seed, so the result must not
+ * depend on how the frame is split into rows or how the tiles are scheduled on the threads.
+ */
+public class CpuRayTracerTest {
+    private static final int DEPTH = 6;
+    private static final int WIDTH = 48;
+    private static final int HEIGHT = 70;
+    private static final int SEED = 11;
+    private static final int SAMPLES = 2;
+
+    @Test
+    public void rowBandsMatchFullFrame() {
+        Scene scene = new Scene();
+
+        // Full frame on a single thread
+        CpuRayTracer full = createRayTracer(scene, 1);
+        full.rayTrace(SEED, 5, false, scene.sun(), SAMPLES);
+        double[] fullFrame = new double[WIDTH * HEIGHT * 3];
+        full.readAccumulation(fullFrame);
+
+        // Bands of rows that do not line up with the tiles on several threads. Partial frames are not
+        // counted, so the samples are read back as sums.
+        CpuRayTracer split = createRayTracer(scene, 4);
+        for (int row = 0; row < HEIGHT; row += 7) {
+            split.rayTrace(SEED, 5, false, scene.sun(), SAMPLES, row, Math.min(row + 7, HEIGHT));
+        }
+        double[] stitched = new double[WIDTH * HEIGHT * 3];
+        split.readAccumulation(stitched);
+
+        boolean lit = false;
+        for (int i = 0; i < fullFrame.length; i++) {
+            fullFrame[i] *= SAMPLES;
+            lit |= fullFrame[i] > 0;
+        }
+        assertTrue("the frame is black", lit);
+        assertArrayEquals(fullFrame, stitched, 0);
+    }
+
+    private static CpuRayTracer createRayTracer(Scene scene, int threads) {
+        int size = 1 << DEPTH;
+        Camera camera = scene.camera();
+        camera.setPosition(new Vector3(size / 2.0, size * 0.6, size / 2.0));
+        camera.setView(Math.PI / 4, -Math.PI / 4, 0);
+
+        CpuRayTracer rayTracer = new CpuRayTracer(threads);
+        rayTracer.load(SceneData.synthetic(DEPTH, 0), true);
+        rayTracer.setCamera(camera, new Vector3(), WIDTH, HEIGHT);
+        rayTracer.clearAccumulation();
+        return rayTracer;
+    }
+}
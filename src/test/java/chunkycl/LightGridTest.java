@@ -0,0 +1,143 @@
+package chunkycl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Every cell of the light grid must list exactly the visible emitters of the cell and its neighbors,
+ * since paths skip emitters near the previous hit on the assumption that its shadow ray could pick
+ * them.
+ */
+public class LightGridTest {
+    private static final int AIR = 0;
+    private static final int STONE = 1;
+    private static final int LIGHT = 2;
+
+    @Test
+    public void listsVisibleEmitters() {
+        int depth = 6;
+        int size = 1 << depth;
+        int[] blocks = scene(size, new Random(3));
+        SceneData data = sceneData(depth, blocks);
+        LightGrid grid = data.getLightGrid();
+
+        Set<Integer> expected = new HashSet<>();
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                for (int z = 0; z < size; z++) {
+                    if (blocks[(x * size + y) * size + z] == LIGHT && !isEnclosed(blocks, size, x, y, z)) {
+                        expected.add((x * size + y) * size + z);
+                    }
+                }
+            }
+        }
+
+        Set<Integer> emitters = new HashSet<>();
+        for (int i = 0; i < grid.emitters.length / 4; i++) {
+            int x = grid.emitters[i*4];
+            int y = grid.emitters[i*4 + 1];
+            int z = grid.emitters[i*4 + 2];
+            assertEquals(LIGHT, grid.emitters[i*4 + 3]);
+            assertTrue("duplicate emitter", emitters.add((x * size + y) * size + z));
+        }
+        assertTrue(!expected.isEmpty());
+        assertEquals(expected, emitters);
+    }
+
+    @Test
+    public void neighborhoodListsAreComplete() {
+        int depth = 6;
+        int size = 1 << depth;
+        LightGrid grid = sceneData(depth, scene(size, new Random(4))).getLightGrid();
+        int cells = grid.size;
+        assertTrue(cells > 1);
+        assertEquals(cells * cells * cells + 1, grid.cells.length);
+
+        for (int cell = 0; cell < cells * cells * cells; cell++) {
+            int cx = cell / (cells * cells);
+            int cy = (cell / cells) % cells;
+            int cz = cell % cells;
+
+            Set<Integer> expected = new HashSet<>();
+            for (int i = 0; i < grid.emitters.length / 4; i++) {
+                if (Math.abs((grid.emitters[i*4] >> grid.cellShift) - cx) <= 1
+                        && Math.abs((grid.emitters[i*4 + 1] >> grid.cellShift) - cy) <= 1
+                        && Math.abs((grid.emitters[i*4 + 2] >> grid.cellShift) - cz) <= 1) {
+                    expected.add(i);
+                }
+            }
+
+            Set<Integer> listed = new HashSet<>();
+            for (int i = grid.cells[cell]; i < grid.cells[cell + 1]; i++) {
+                assertTrue("duplicate emitter in cell " + cell, listed.add(grid.lightList[i]));
+            }
+            assertEquals("emitters of cell " + cell, expected, listed);
+        }
+    }
+
+    @Test
+    public void emptyWithoutEmitters() {
+        int depth = 5;
+        int size = 1 << depth;
+        int[] blocks = new int[size * size * size];
+        for (int i = 0; i < blocks.length; i += 7) {
+            blocks[i] = STONE;
+        }
+
+        LightGrid grid = sceneData(depth, blocks).getLightGrid();
+        assertEquals(0, grid.size);
+    }
+
+    /** Stone and air with scattered lights and a cube of lights that is enclosed by stone */
+    private static int[] scene(int size, Random random) {
+        int[] blocks = new int[size * size * size];
+        for (int i = 0; i < blocks.length; i++) {
+            float r = random.nextFloat();
+            blocks[i] = r < 0.02f ? LIGHT : r < 0.5f ? STONE : AIR;
+        }
+
+        // Only the surface of the cube is visible
+        for (int x = 8; x < 16; x++) {
+            for (int y = 8; y < 16; y++) {
+                for (int z = 8; z < 16; z++) {
+                    boolean inner = x > 8 && x < 15 && y > 8 && y < 15 && z > 8 && z < 15;
+                    blocks[(x * size + y) * size + z] = inner ? LIGHT : STONE;
+                }
+            }
+        }
+        return blocks;
+    }
+
+    private static SceneData sceneData(int depth, int[] blocks) {
+        int size = 1 << depth;
+        int[] tree = new SceneData.OctreeBuilder(
+                (x, y, z, level) -> level == 0 ? blocks[(x * size + y) * size + z] : -1).build(depth);
+
+        int[] blockData = new int[3 * 4];
+        blockData[AIR*4 + 3] = SceneData.FLAG_INVISIBLE;
+        blockData[LIGHT*4 + 1] = 256;
+        blockData[LIGHT*4 + 3] = SceneData.FLAG_EMISSIVE;
+        return new SceneData(depth, tree, new int[TextureAtlas.WIDTH], blockData);
+    }
+
+    /** Check if all neighbors of a block are inside the world and not air */
+    private static boolean isEnclosed(int[] blocks, int size, int x, int y, int z) {
+        int[][] offsets = {{-1, 0, 0}, {1, 0, 0}, {0, -1, 0}, {0, 1, 0}, {0, 0, -1}, {0, 0, 1}};
+        for (int[] offset : offsets) {
+            int nx = x + offset[0];
+            int ny = y + offset[1];
+            int nz = z + offset[2];
+            if (nx < 0 || ny < 0 || nz < 0 || nx >= size || ny >= size || nz >= size
+                    || blocks[(nx * size + ny) * size + nz] == AIR) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
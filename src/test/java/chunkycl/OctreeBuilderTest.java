@@ -0,0 +1,101 @@
+package chunkycl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * The packed octree of SceneData.OctreeBuilder must contain the block of the node function at every
+ * position, no matter how nodes were merged or collapsed.
+ */
+public class OctreeBuilderTest {
+    /** Random blocks in a few clusters so that some nodes are uniform and merged */
+    @Test
+    public void matchesBlockFunction() {
+        int depth = 5;
+        int size = 1 << depth;
+        int[] blocks = randomBlocks(size, new Random(1));
+
+        int[] tree = new SceneData.OctreeBuilder(
+                (x, y, z, level) -> level == 0 ? blocks[(x * size + y) * size + z] : -1).build(depth);
+
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                for (int z = 0; z < size; z++) {
+                    assertEquals("block at " + x + ", " + y + ", " + z,
+                            blocks[(x * size + y) * size + z], get(tree, depth, x, y, z));
+                }
+            }
+        }
+    }
+
+    /** Nodes returned as a whole by the node function cover all of their blocks */
+    @Test
+    public void collapsesWholeNodes() {
+        int depth = 6;
+        int size = 1 << depth;
+        int[] blocks = randomBlocks(size, new Random(2));
+
+        // The upper half is air and the lowest quarter stone without visiting single blocks
+        int[] tree = new SceneData.OctreeBuilder((x, y, z, level) -> {
+            if (y >= size / 2) {
+                return 0;
+            } else if (y + (1 << level) <= size / 4) {
+                return 1;
+            } else if (level == 0) {
+                return blocks[(x * size + y) * size + z];
+            }
+            return -1;
+        }).build(depth);
+
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                for (int z = 0; z < size; z++) {
+                    int expected = y >= size / 2 ? 0 : y < size / 4 ? 1 : blocks[(x * size + y) * size + z];
+                    assertEquals("block at " + x + ", " + y + ", " + z, expected, get(tree, depth, x, y, z));
+                }
+            }
+        }
+    }
+
+    /** A uniform world is a single leaf */
+    @Test
+    public void mergesUniformTree() {
+        int[] tree = new SceneData.OctreeBuilder((x, y, z, level) -> level == 0 ? 3 : -1).build(4);
+        assertEquals(1, tree.length);
+        assertEquals(-3, tree[0]);
+    }
+
+    /** Random blocks, mostly air with cubes of 4 blocks of the same type */
+    static int[] randomBlocks(int size, Random random) {
+        int[] blocks = new int[size * size * size];
+        for (int x = 0; x < size; x += 4) {
+            for (int y = 0; y < size; y += 4) {
+                for (int z = 0; z < size; z += 4) {
+                    boolean uniform = random.nextBoolean();
+                    int type = random.nextInt(4);
+                    for (int i = 0; i < 64; i++) {
+                        int bx = x + (i >> 4);
+                        int by = y + ((i >> 2) & 3);
+                        int bz = z + (i & 3);
+                        blocks[(bx * size + by) * size + bz] = uniform ? type : random.nextInt(4);
+                    }
+                }
+            }
+        }
+        return blocks;
+    }
+
+    /** Get the block at a position, same traversal as octreeGet in rayTracer.cl */
+    static int get(int[] tree, int depth, int x, int y, int z) {
+        int level = depth;
+        int node = tree[0];
+        while (node > 0) {
+            level -= 1;
+            node = tree[node + (((1 & (x >> level)) << 2) | ((1 & (y >> level)) << 1) | (1 & (z >> level)))];
+        }
+        return -node;
+    }
+}
@@ -0,0 +1,61 @@
+package chunkycl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/** Deduplicated textures must share an offset and every offset must point at the block's pixels. */
+public class TextureAtlasTest {
+    @Test
+    public void dedupeKeepsOffsets() {
+        Random random = new Random(5);
+        int[] a = randomTexture(random, 16);
+        int[] b = randomTexture(random, 16);
+        int[] large = randomTexture(random, 32);
+        int[] c = randomTexture(random, 16);
+        List<int[]> textures = Arrays.asList(a, b, a.clone(), large, b, c, large.clone());
+
+        TextureAtlas.TextureKey[] keys = new TextureAtlas.TextureKey[textures.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new TextureAtlas.TextureKey(textures.get(i));
+        }
+        TextureAtlas atlas = TextureAtlas.build(Arrays.asList(keys));
+
+        assertEquals(textures.size(), atlas.offsets.length);
+        assertEquals(0, atlas.pixels.length % TextureAtlas.WIDTH);
+        for (int i = 0; i < textures.size(); i++) {
+            int[] texture = textures.get(i);
+            int offset = atlas.offsets[i];
+            assertArrayEquals("pixels of block " + i, texture,
+                    Arrays.copyOfRange(atlas.pixels, offset, offset + texture.length));
+        }
+
+        // Identical content is stored once, different content is not merged
+        assertEquals(atlas.offsets[0], atlas.offsets[2]);
+        assertEquals(atlas.offsets[1], atlas.offsets[4]);
+        assertEquals(atlas.offsets[3], atlas.offsets[6]);
+        assertTrue(atlas.offsets[0] != atlas.offsets[1]);
+        assertTrue(atlas.offsets[1] != atlas.offsets[5]);
+        assertTrue(atlas.pixels.length < 16 * 16 * 3 + 32 * 32 + TextureAtlas.WIDTH);
+    }
+
+    @Test
+    public void rgbaByteOrder() {
+        byte[] rgba = TextureAtlas.toRgba(new int[] {0x80FF4010, 0x00000001});
+        assertArrayEquals(new byte[] {(byte) 0xFF, 0x40, 0x10, (byte) 0x80, 0, 0, 1, 0}, rgba);
+    }
+
+    private static int[] randomTexture(Random random, int side) {
+        int[] texture = new int[side * side];
+        for (int i = 0; i < texture.length; i++) {
+            texture[i] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+        return texture;
+    }
+}